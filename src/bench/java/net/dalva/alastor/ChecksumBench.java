@@ -0,0 +1,95 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunk checksums: CRC32 as used on the wire, against CRC32C and buffer-based variants
+ *
+ * @author Dalva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBench {
+
+  @Param({"64", "1024", "16384"})
+  int chunkKB;
+
+  private byte[] data;
+  private ByteBuffer heap;
+  private ByteBuffer direct;
+
+  @Setup
+  public void setup() {
+    data = new byte[chunkKB * 1024];
+    ThreadLocalRandom.current().nextBytes(data);
+    heap = ByteBuffer.wrap(data);
+    direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+  }
+
+  @Benchmark
+  public long crc32Array() {
+    return Tools.makeCRC32(data);
+  }
+
+  @Benchmark
+  public long crc32HeapBuffer() {
+    return Tools.makeCRC32(heap);
+  }
+
+  @Benchmark
+  public long crc32DirectBuffer() {
+    return Tools.makeCRC32(direct);
+  }
+
+  //CRC32C (Castagnoli), which the JVM computes with dedicated CPU instructions where it can
+  @Benchmark
+  public long crc32cArray() {
+    CRC32C hasher = new CRC32C();
+    hasher.update(data);
+    return hasher.getValue();
+  }
+
+  @Benchmark
+  public long crc32cDirectBuffer() {
+    CRC32C hasher = new CRC32C();
+    hasher.update(direct.duplicate());
+    return hasher.getValue();
+  }
+
+}
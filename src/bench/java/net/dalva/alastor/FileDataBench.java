@@ -0,0 +1,95 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import net.dalva.alastor.grpc.ErrorMsg;
+import net.dalva.alastor.grpc.FileData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building, serializing and parsing the FileData reply, as the server and client do for every chunk
+ *
+ * @author Dalva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileDataBench {
+
+  @Param({"64", "1024", "8192"})
+  int chunkKB;
+
+  private byte[] data;
+  private FileData reply;
+  private byte[] serialized;
+  private byte[] out;
+
+  @Setup
+  public void setup() {
+    data = new byte[chunkKB * 1024];
+    ThreadLocalRandom.current().nextBytes(data);
+    reply = build();
+    serialized = reply.toByteArray();
+    out = new byte[serialized.length];
+  }
+
+  /**
+   * What the server does once a chunk has been read: copy it in and checksum it
+   */
+  @Benchmark
+  public FileData build() {
+    return FileData.newBuilder()
+            .setError(ErrorMsg.newBuilder().setCode(0).build())
+            .setFileName("bench.bin")
+            .setChunkData(ByteString.copyFrom(data))
+            .setChunkCrc32(Tools.makeCRC32(data))
+            .build();
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    CodedOutputStream cos = CodedOutputStream.newInstance(out);
+    reply.writeTo(cos);
+    return out;
+  }
+
+  @Benchmark
+  public FileData parse() throws InvalidProtocolBufferException {
+    return FileData.parseFrom(serialized);
+  }
+
+}
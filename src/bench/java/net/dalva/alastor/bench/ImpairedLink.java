@@ -0,0 +1,313 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A loopback TCP proxy that behaves like a bad link.
+ *
+ * Every connection is a flow of its own. Both directions get latency and jitter, while the server-to-client
+ * direction, where the chunks go, is also subject to bandwidth caps, random stalls and corruption. Corruption is
+ * done inside HTTP/2 DATA frames, away from the frame edges, so it lands in chunk data and is caught by the CRC
+ * rather than breaking the connection.
+ *
+ * @author Dalva
+ */
+public class ImpairedLink implements Closeable {
+
+  private static final int SEGMENT = 16 * 1024;
+
+  /**
+   * How bad the link is
+   */
+  public static class Impairment {
+
+    long latencyMillis = 0;
+    long jitterMillis = 0;
+    long linkBytesPerSecond = 0; //shared by every flow, 0 for no cap
+    long flowBytesPerSecond = 0; //per connection, 0 for no cap
+    double stallsPerMinute = 0; //per connection
+    long stallMillis = 0;
+    double corruptChance = 0; //per DATA frame
+  }
+
+  private final InetSocketAddress target;
+  private final Impairment impairment;
+  private final TokenBucket link;
+  private final LongAdder corrupted = new LongAdder();
+  private final LongAdder stalls = new LongAdder();
+  private ServerSocket listener;
+
+  public ImpairedLink(InetSocketAddress target, Impairment impairment) {
+    this.target = target;
+    this.impairment = impairment;
+    this.link = new TokenBucket(impairment.linkBytesPerSecond);
+  }
+
+  /**
+   * Start accepting connections
+   *
+   * @return the local port to connect to instead of the target
+   * @throws IOException
+   */
+  public int start() throws IOException {
+    listener = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    daemon("alastor-link-accept", () -> {
+      while (!listener.isClosed()) {
+        try {
+          Socket client = listener.accept();
+          Socket server = new Socket(target.getAddress(), target.getPort());
+          client.setTcpNoDelay(true);
+          server.setTcpNoDelay(true);
+          TokenBucket flow = new TokenBucket(impairment.flowBytesPerSecond);
+          new Pipe(client, server, null, false).start("up");
+          new Pipe(server, client, flow, true).start("down");
+        } catch (IOException ex) {
+          if (!listener.isClosed()) {
+            System.err.println("Link: " + ex.getLocalizedMessage());
+          }
+        }
+      }
+    });
+    return listener.getLocalPort();
+  }
+
+  public long getCorrupted() {
+    return corrupted.sum();
+  }
+
+  public long getStalls() {
+    return stalls.sum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (listener != null) {
+      listener.close();
+    }
+  }
+
+  private static void daemon(String name, Runnable r) {
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Debt-based token bucket: taking more than there is succeeds, and tells how long to sleep it off
+   */
+  private static class TokenBucket {
+
+    private final long rate;
+    private final long burst;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    private TokenBucket(long rate) {
+      this.rate = rate;
+      this.burst = Math.max(SEGMENT, rate / 20);
+      this.tokens = burst;
+    }
+
+    private void take(int bytes) {
+      if (rate <= 0) {
+        return;
+      }
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) / 1e9 * rate);
+        last = now;
+        tokens -= bytes;
+        waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+      }
+      sleepNanos(waitNanos);
+    }
+  }
+
+  private static class Segment {
+
+    private final byte[] data;
+    private final long releaseAt;
+
+    private Segment(byte[] data, long releaseAt) {
+      this.data = data;
+      this.releaseAt = releaseAt;
+    }
+  }
+
+  /**
+   * One direction of a flow: a reader putting segments on a delay line and a writer letting them out
+   */
+  private class Pipe {
+
+    private final Socket from;
+    private final Socket to;
+    private final TokenBucket flow;
+    private final boolean downstream;
+    private final BlockingQueue<Segment> line = new ArrayBlockingQueue(256);
+    private long lastRelease = 0;
+    private long nextStall;
+
+    //HTTP/2 frame tracking, for corruption
+    private final byte[] header = new byte[9];
+    private int headerFill = 0;
+    private int payloadLeft = 0;
+    private int payloadPos = 0;
+    private int corruptAt = -1;
+
+    private Pipe(Socket from, Socket to, TokenBucket flow, boolean downstream) {
+      this.from = from;
+      this.to = to;
+      this.flow = flow;
+      this.downstream = downstream;
+      this.nextStall = System.nanoTime() + nextStallNanos();
+    }
+
+    private void start(String direction) {
+      daemon("alastor-link-" + direction + "-read", this::read);
+      daemon("alastor-link-" + direction + "-write", this::write);
+    }
+
+    private void read() {
+      byte[] buf = new byte[SEGMENT];
+      try (InputStream in = from.getInputStream()) {
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          long now = System.nanoTime();
+          long delay = impairment.latencyMillis * 1_000_000L;
+          if (impairment.jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(impairment.jitterMillis * 1_000_000L);
+          }
+          //TCP does not reorder, so a segment never overtakes the one before it
+          lastRelease = Math.max(lastRelease, now + delay);
+          line.put(new Segment(Arrays.copyOf(buf, n), lastRelease));
+        }
+      } catch (IOException | InterruptedException ex) {
+        //connection gone
+      }
+      try {
+        line.put(new Segment(null, 0));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void write() {
+      try (OutputStream out = to.getOutputStream()) {
+        while (true) {
+          Segment s = line.take();
+          if (s.data == null) {
+            break;
+          }
+          sleepNanos(s.releaseAt - System.nanoTime());
+          if (downstream) {
+            stallIfDue();
+            corrupt(s.data);
+            flow.take(s.data.length);
+            link.take(s.data.length);
+          }
+          out.write(s.data);
+        }
+      } catch (IOException | InterruptedException ex) {
+        //connection gone
+      }
+      try {
+        from.close();
+        to.close();
+      } catch (IOException ex) {
+        //already closed
+      }
+    }
+
+    private long nextStallNanos() {
+      if (impairment.stallsPerMinute <= 0) {
+        return Long.MAX_VALUE / 2;
+      }
+      //exponentially distributed gaps, so stalls come at random like they do on a real link
+      double minutes = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / impairment.stallsPerMinute;
+      return (long) (minutes * 60e9);
+    }
+
+    private void stallIfDue() {
+      long now = System.nanoTime();
+      if (now >= nextStall) {
+        stalls.increment();
+        sleepNanos(impairment.stallMillis * 1_000_000L);
+        nextStall = System.nanoTime() + nextStallNanos();
+      }
+    }
+
+    /**
+     * Walk the HTTP/2 frames in the segment, flipping a byte in the middle of some DATA frames
+     */
+    private void corrupt(byte[] data) {
+      if (impairment.corruptChance <= 0) {
+        return;
+      }
+      int i = 0;
+      while (i < data.length) {
+        if (payloadLeft == 0) {
+          header[headerFill++] = data[i++];
+          if (headerFill == 9) {
+            headerFill = 0;
+            payloadLeft = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            payloadPos = 0;
+            corruptAt = -1;
+            boolean isData = header[3] == 0;
+            if (isData && payloadLeft >= 1024 && ThreadLocalRandom.current().nextDouble() < impairment.corruptChance) {
+              corruptAt = 64 + ThreadLocalRandom.current().nextInt(payloadLeft - 128);
+            }
+          }
+        } else {
+          int n = Math.min(payloadLeft, data.length - i);
+          if (corruptAt >= payloadPos && corruptAt < payloadPos + n) {
+            data[i + corruptAt - payloadPos] ^= 0x5a;
+            corrupted.increment();
+          }
+          payloadPos += n;
+          payloadLeft -= n;
+          i += n;
+        }
+      }
+    }
+  }
+
+  private static void sleepNanos(long nanos) {
+    long deadline = System.nanoTime() + nanos;
+    while (nanos > 0) {
+      LockSupport.parkNanos(nanos);
+      nanos = deadline - System.nanoTime();
+    }
+  }
+
+}
@@ -0,0 +1,259 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.bench;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.dalva.alastor.server.AlastorImpl;
+import net.dalva.alastor.server.Auth;
+import net.dalva.alastor.server.Volumes;
+import net.dalva.alastor.server.ServerIndex;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+
+/**
+ * End-to-end load harness: an in-process server behind an {@link ImpairedLink}, downloaded from by real "get"
+ * clients, once for every combination of connection count and chunk size.
+ *
+ * Each client runs in a JVM of its own, since the client keeps its state in statics, and writes its --report.
+ * The reports are collected into a single JSON summary, and a table of goodput, tail latency and retries is printed.
+ *
+ * @author Dalva
+ */
+@CommandLine.Command(name = "load", mixinStandardHelpOptions = true,
+        description = "Download through an impaired loopback link for every -c/-k combination and report how it went")
+public class LoadHarness implements Callable<Integer> {
+
+  private static final String KEY = "load-harness";
+  private static final String FILE = "load.bin";
+
+  @Option(names = {"-c", "--connections"}, split = ",", description = "Connection counts to try (default 8,32)")
+  private int[] connections = {8, 32};
+
+  @Option(names = {"-k", "--chunksize"}, split = ",", description = "Chunk sizes in kB to try (default 100,1024)")
+  private int[] chunkKBs = {100, 1024};
+
+  @Option(names = {"--file-size"}, description = "Size of the file to download in MB (default 64)")
+  private int fileMB = 64;
+
+  @Option(names = {"--latency"}, description = "One-way latency in ms (default 50)")
+  private long latencyMillis = 50;
+
+  @Option(names = {"--jitter"}, description = "Extra random latency in ms, up to this much (default 20)")
+  private long jitterMillis = 20;
+
+  @Option(names = {"--link-rate"}, description = "Bandwidth of the whole link in kB/s, 0 for no cap (default 20480)")
+  private long linkKBps = 20480;
+
+  @Option(names = {"--flow-rate"}, description = "Bandwidth of each connection in kB/s, 0 for no cap (default 1024)")
+  private long flowKBps = 1024;
+
+  @Option(names = {"--stalls"}, description = "Random stalls per connection per minute (default 1)")
+  private double stallsPerMinute = 1;
+
+  @Option(names = {"--stall-time"}, description = "Length of a stall in ms (default 3000)")
+  private long stallMillis = 3000;
+
+  @Option(names = {"--corrupt"}, description = "Chance of corrupting a DATA frame on its way to the client (default 0.001)")
+  private double corruptChance = 0.001;
+
+  @Option(names = {"--io-slots"}, description = "Server chunk reads at once (default 32)")
+  private int ioSlots = 32;
+
+  @Option(names = {"--timeout"}, description = "Give up on a run after this many seconds (default 600)")
+  private long timeoutSeconds = 600;
+
+  @Option(names = {"-o", "--out"}, description = "Summary JSON file (default target/load-report.json)")
+  private String out = "target/load-report.json";
+
+  public static void main(String... args) {
+    System.exit(new CommandLine(new LoadHarness()).execute(args));
+  }
+
+  @Override
+  public Integer call() throws Exception {
+    File work = Files.createTempDirectory("alastor-load").toFile();
+    File serveDir = new File(work, "serve");
+    serveDir.mkdirs();
+    File source = new File(serveDir, FILE);
+    System.out.println("Writing " + fileMB + " MB test file...");
+    writeRandomFile(source, (long) fileMB * 1024 * 1024);
+    String sourceDigest = sha256(source);
+
+    File keys = new File(work, "clients.keylist");
+    Files.write(keys.toPath(), (KEY + "\n").getBytes(StandardCharsets.UTF_8));
+    Auth.setup(keys.getPath());
+    Volumes.setup(Collections.singletonList(serveDir.getPath()), ioSlots, 4096);
+    ServerIndex.setup(Collections.singletonList(serveDir.getPath()), false, 0);
+
+    int maxMessage = 16 * 1024 * 1024;
+    Server server = NettyServerBuilder.forAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+            .maxInboundMessageSize(maxMessage)
+            .addService(new AlastorImpl(maxMessage, 1024 * 1024))
+            .build()
+            .start();
+
+    ImpairedLink.Impairment impairment = new ImpairedLink.Impairment();
+    impairment.latencyMillis = latencyMillis;
+    impairment.jitterMillis = jitterMillis;
+    impairment.linkBytesPerSecond = linkKBps * 1024;
+    impairment.flowBytesPerSecond = flowKBps * 1024;
+    impairment.stallsPerMinute = stallsPerMinute;
+    impairment.stallMillis = stallMillis;
+    impairment.corruptChance = corruptChance;
+
+    List<String> results = new ArrayList();
+    List<String[]> table = new ArrayList();
+    try {
+      for (int c : connections) {
+        for (int k : chunkKBs) {
+          File runDir = new File(work, "c" + c + "-k" + k);
+          runDir.mkdirs();
+          try (ImpairedLink link = new ImpairedLink(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), impairment)) {
+            int port = link.start();
+            System.out.println("Running -c " + c + " -k " + k + "...");
+            long start = System.nanoTime();
+            boolean finished = runClient(runDir, port, c, k);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            File downloaded = new File(runDir, FILE);
+            boolean intact = finished && downloaded.exists() && sourceDigest.equals(sha256(downloaded));
+            File reportFile = new File(runDir, "report.json");
+            String report = reportFile.exists() ? new String(Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8).trim() : "null";
+            results.add(String.format(Locale.ROOT,
+                    "    {\"connections\": %d, \"chunk_kb\": %d, \"finished\": %b, \"intact\": %b, \"seconds\": %.3f, "
+                    + "\"frames_corrupted\": %d, \"stalls\": %d,\n     \"report\": %s}",
+                    c, k, finished, intact, seconds, link.getCorrupted(), link.getStalls(), report.replace("\n", "\n     ")));
+            table.add(new String[]{
+              Integer.toString(c), Integer.toString(k), intact ? "ok" : (finished ? "CORRUPT" : "TIMEOUT"),
+              String.format(Locale.ROOT, "%.2f", number(report, "\"bytes_per_second\": ([0-9.]+)") / 1048576),
+              String.format(Locale.ROOT, "%.0f", number(report, "\"chunk_latency_ms\": \\{[^}]*\"p50\": ([0-9.]+)")),
+              String.format(Locale.ROOT, "%.0f", number(report, "\"chunk_latency_ms\": \\{[^}]*\"p99\": ([0-9.]+)")),
+              String.format(Locale.ROOT, "%.0f", retries(report)),
+              Long.toString(link.getCorrupted()),
+              Long.toString(link.getStalls())});
+          }
+        }
+      }
+    } finally {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    try (Writer w = Files.newBufferedWriter(new File(out).toPath(), StandardCharsets.UTF_8)) {
+      w.write(String.format(Locale.ROOT,
+              "{\n  \"file_size\": %d,\n  \"impairment\": {\"latency_ms\": %d, \"jitter_ms\": %d, \"link_kbps\": %d, \"flow_kbps\": %d, "
+              + "\"stalls_per_minute\": %s, \"stall_ms\": %d, \"corrupt_chance\": %s},\n  \"runs\": [\n%s\n  ]\n}\n",
+              source.length(), latencyMillis, jitterMillis, linkKBps, flowKBps,
+              stallsPerMinute, stallMillis, corruptChance, String.join(",\n", results)));
+    }
+
+    System.out.println("");
+    System.out.println(String.format("%6s %8s %8s %10s %9s %9s %8s %9s %7s",
+            "-c", "-k", "result", "MB/s", "p50 ms", "p99 ms", "retries", "corrupted", "stalls"));
+    for (String[] row : table) {
+      System.out.println(String.format("%6s %8s %8s %10s %9s %9s %8s %9s %7s", (Object[]) row));
+    }
+    System.out.println("Summary written to " + out + ", client logs in " + work);
+    return 0;
+  }
+
+  /**
+   * Download the test file with a separate client JVM
+   *
+   * @return false if it did not finish in time
+   */
+  private boolean runClient(File runDir, int port, int c, int k) throws IOException, InterruptedException {
+    String java = ProcessHandle.current().info().command().orElse("java");
+    Process client = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "net.dalva.alastor.Main",
+            "get", "-n", "-c", Integer.toString(c), "-k", Integer.toString(k), "--report", "report.json",
+            "127.0.0.1:" + port, KEY, FILE)
+            .directory(runDir)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(runDir, "client.log"))
+            .start();
+    if (!client.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+      client.destroyForcibly().waitFor();
+      return false;
+    }
+    return client.exitValue() == 0;
+  }
+
+  private static void writeRandomFile(File file, long size) throws IOException {
+    byte[] block = new byte[1024 * 1024];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      for (long written = 0; written < size; written += block.length) {
+        ThreadLocalRandom.current().nextBytes(block);
+        raf.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+    }
+  }
+
+  private static String sha256(File file) throws IOException, NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    byte[] buf = new byte[1024 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        md.update(buf, 0, n);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private static double number(String json, String regex) {
+    Matcher m = Pattern.compile(regex).matcher(json);
+    return m.find() ? Double.parseDouble(m.group(1)) : Double.NaN;
+  }
+
+  /**
+   * Total of the top-level retries object of a client report
+   */
+  private static double retries(String json) {
+    Matcher m = Pattern.compile("\"retries\": \\{([^}]*)\\}").matcher(json);
+    if (!m.find()) {
+      return Double.NaN;
+    }
+    return Arrays.stream(m.group(1).split(",")).mapToDouble((kv) -> Double.parseDouble(kv.split(":")[1].trim())).sum();
+  }
+
+}
@@ -0,0 +1,160 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import net.dalva.alastor.FileHandler;
+import net.dalva.alastor.Tools;
+import net.dalva.alastor.grpc.ErrorMsg;
+import net.dalva.alastor.grpc.FileData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client's per-chunk bookkeeping: picking the next chunk, verifying it and writing it out
+ *
+ * @author Dalva
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlameWeaverBench {
+
+  /**
+   * A received chunk
+   */
+  @State(Scope.Thread)
+  public static class Chunk {
+
+    @Param({"64", "1024", "8192"})
+    int chunkKB;
+
+    FileData fd;
+
+    @Setup
+    public void setup() {
+      fd = randomChunk(chunkKB);
+    }
+  }
+
+  /**
+   * A transfer with most chunks already taken, as it is towards the end of a big file
+   */
+  @State(Scope.Benchmark)
+  public static class Tracker {
+
+    @Param({"10000", "1000000"})
+    int trackedChunks;
+
+    @Param({"0", "90", "100"})
+    int takenPercent;
+
+    FlameWeaver weaver;
+
+    @Setup
+    public void setup() {
+      weaver = FlameWeaver.prepare(1, trackedChunks, null);
+      List<ChunkTracker> chunks = weaver.getChunks();
+      long taken = (long) trackedChunks * takenPercent / 100;
+      for (int i = 0; i < taken; i++) {
+        chunks.get(i).setWritten();
+      }
+    }
+  }
+
+  /**
+   * An output file and a chunk that is written all over it
+   */
+  @State(Scope.Benchmark)
+  public static class Output {
+
+    @Param({"64", "1024"})
+    int writeKB;
+
+    @Param({"256"})
+    int fileChunks;
+
+    File file;
+    FileHandler fh;
+    FileData fd;
+    FlameWeaver weaver;
+
+    @Setup
+    public void setup() throws IOException {
+      file = File.createTempFile("alastor-bench", ".bin");
+      fh = new FileHandler(file.getPath(), false);
+      weaver = FlameWeaver.prepare(writeKB * 1024, (long) writeKB * 1024 * fileChunks, fh);
+      fd = randomChunk(writeKB);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      fh.close();
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public boolean validateData(Chunk chunk) {
+    return FlameWeaver.validateData(chunk.fd);
+  }
+
+  @Benchmark
+  public ChunkTracker getNextReadyChunk(Tracker tracker) {
+    return tracker.weaver.getNextReadyChunk();
+  }
+
+  /**
+   * Servants writing chunks at random offsets, 4 of them by default, use -t to change it
+   */
+  @Benchmark
+  @Threads(4)
+  public void submitChunk(Output output) throws IOException {
+    output.weaver.submitChunk(output.fd, ThreadLocalRandom.current().nextInt(output.fileChunks));
+  }
+
+  private static FileData randomChunk(int kB) {
+    byte[] data = new byte[kB * 1024];
+    ThreadLocalRandom.current().nextBytes(data);
+    return FileData.newBuilder()
+            .setError(ErrorMsg.newBuilder().setCode(0).build())
+            .setFileName("bench.bin")
+            .setChunkData(ByteString.copyFrom(data))
+            .setChunkCrc32(Tools.makeCRC32(data))
+            .build();
+  }
+
+}
@@ -0,0 +1,94 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Random chunk reads of one shared file, the way many connections hit the same ServerFileHandler.
+ * Runs on 4 threads by default, use -t to change the contention.
+ *
+ * @author Dalva
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ServerFileHandlerBench {
+
+  @Param({"64", "1024"})
+  int chunkKB;
+
+  @Param({"256"})
+  int fileMB;
+
+  private File dir;
+  private ServerFileHandler fh;
+  private long chunks;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("alastor-bench").toFile();
+    File file = new File(dir, "bench.bin");
+    byte[] block = new byte[1024 * 1024];
+    ThreadLocalRandom.current().nextBytes(block);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      for (int i = 0; i < fileMB; i++) {
+        raf.write(block);
+      }
+    }
+    Volumes.setup(Collections.singletonList(dir.getPath()), 32, 4096);
+    fh = ServerFileHandler.get("bench.bin", true);
+    chunks = (long) fileMB * 1024 / chunkKB;
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fh.close();
+    new File(dir, "bench.bin").delete();
+    dir.delete();
+  }
+
+  @Benchmark
+  public byte[] readOffsetChunk() throws IOException {
+    return fh.readOffsetChunk(ThreadLocalRandom.current().nextLong(chunks), chunkKB * 1024);
+  }
+
+}
@@ -17,10 +17,12 @@
  */
 package net.dalva.alastor;
 
+import com.google.protobuf.ByteString;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
@@ -46,6 +48,10 @@ public class FileHandler implements Closeable {
   public int getHashCode() {
     return hashCode;
   }
+  
+  public FileChannel getChannel() {
+    return fileChannel;
+  }
 
   /**
    * Opens the specified file and obtain a lock
@@ -112,6 +118,40 @@ public class FileHandler implements Closeable {
     return raFile.readLine();
   }
   
+  /**
+   * Truncate or extend the file
+   *
+   * @param length new length in bytes
+   * @throws IOException
+   */
+  public synchronized void setLength(long length) throws IOException {
+    if (readOnly) {
+      throw new IOException("File is read only");
+    }
+    raFile.setLength(length);
+  }
+  
+  /**
+   * Grow the file to a length and actually allocate the new range, by writing zeros over it sequentially.
+   * The filesystem then lays it out contiguously up front, instead of piecemeal as scattered writes extend it.
+   *
+   * @param length length to grow the file to, nothing is done if it is already that long
+   * @throws IOException
+   */
+  public synchronized void preallocate(long length) throws IOException {
+    if (readOnly) {
+      throw new IOException("File is read only");
+    }
+    long position = fileChannel.size();
+    ByteBuffer zeros = ByteBuffer.allocateDirect(8 * 1024 * 1024);
+    while (position < length) {
+      zeros.clear().limit((int) Math.min(zeros.capacity(), length - position));
+      while (zeros.hasRemaining()) {
+        position += fileChannel.write(zeros, position);
+      }
+    }
+  }
+  
   /**
    * Perform a Random Write of the entire passed byte array to an offset
    *
@@ -127,4 +167,24 @@ public class FileHandler implements Closeable {
     raFile.write(data);
   }
 
+  /**
+   * Perform a positional write of a ByteString's backing buffers, without copying them out first.
+   * Not synchronized: positional writes don't move the file pointer, so any number of threads may write at once.
+   *
+   * @param offset offset in bytes
+   * @param data data to be written
+   * @throws IOException
+   */
+  public void writeOffset(long offset, ByteString data) throws IOException {
+    if (readOnly) {
+      throw new IOException("File is read only");
+    }
+    long position = offset;
+    for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+      while (buffer.hasRemaining()) {
+        position += fileChannel.write(buffer, position);
+      }
+    }
+  }
+
 }
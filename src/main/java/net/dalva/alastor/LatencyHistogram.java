@@ -0,0 +1,149 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of nanosecond durations, in the style of HdrHistogram.
+ * Every power of two is split into 16 linear sub-buckets, so recorded values keep about 6% precision.
+ *
+ * @author Dalva
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Record a single duration
+   *
+   * @param nanos duration in nanoseconds, negative values count as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(indexOf(nanos));
+    count.increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * Record the time passed since a System.nanoTime() reading
+   *
+   * @param startNanos the earlier System.nanoTime() reading
+   * @return the current System.nanoTime(), handy for timing consecutive stages
+   */
+  public long recordSince(long startNanos) {
+    long now = System.nanoTime();
+    record(now - startNanos);
+    return now;
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Get an approximate percentile
+   *
+   * @param percentile 0 to 100
+   * @return the upper bound of the bucket holding the percentile, in nanoseconds
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = snapshot();
+    long total = 0;
+    for (long c : snapshot) {
+      total += c;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return upperBoundOf(i);
+      }
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+
+  /**
+   * Count the recorded values at or below each bound, as needed by cumulative histogram formats
+   *
+   * @param boundsNanos ascending upper bounds in nanoseconds
+   * @return cumulative counts, one for each bound
+   */
+  public long[] cumulativeCounts(long[] boundsNanos) {
+    long[] snapshot = snapshot();
+    long[] retval = new long[boundsNanos.length];
+    int b = 0;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS && b < boundsNanos.length; i++) {
+      while (b < boundsNanos.length && upperBoundOf(i) > boundsNanos[b]) {
+        retval[b++] = seen;
+      }
+      seen += snapshot[i];
+    }
+    while (b < boundsNanos.length) {
+      retval[b++] = seen;
+    }
+    return retval;
+  }
+
+  private long[] snapshot() {
+    long[] retval = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      retval[i] = counts.get(i);
+    }
+    return retval;
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int exponent = index / SUB_COUNT + SUB_BITS - 1;
+    long sub = index % SUB_COUNT;
+    long lower = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    return lower + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+}
@@ -18,6 +18,8 @@
 package net.dalva.alastor;
 
 import net.dalva.alastor.client.EntryClient;
+import net.dalva.alastor.client.EntryList;
+import net.dalva.alastor.client.EntryPut;
 import net.dalva.alastor.server.EntryServer;
 import java.util.concurrent.Callable;
 import org.fusesource.jansi.AnsiConsole;
@@ -31,10 +33,12 @@ import picocli.CommandLine.Spec;
  * @author Dalva
  */
 @Command(name = "alastor", mixinStandardHelpOptions = true, version = Main.VERSION_FULL,
-        description = {"Massively Concurrent File Transfer System", "Please choose a command, either to become server or download files."},
+        description = {"Massively Concurrent File Transfer System", "Please choose a command, either to become server, download or upload files."},
         subcommands = {
           EntryServer.class,
-          EntryClient.class})
+          EntryClient.class,
+          EntryList.class,
+          EntryPut.class})
 public class Main implements Callable<Integer> {
   
   public static final String VERSION = "v0.2";
@@ -0,0 +1,190 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 Merkle tree over the chunks of a file, shared by the server that builds it and the client that verifies
+ * chunks against its root.
+ *
+ * Leaves are H(0x00 || chunk SHA-256) and inner nodes are H(0x01 || left || right), so a leaf can never pass for
+ * an inner node. A node without a sibling, at the end of an odd-sized level, is carried up unchanged.
+ *
+ * @author Dalva
+ */
+public class MerkleTree {
+
+  public static final int HASH_LENGTH = 32;
+
+  //levels this wide or wider are hashed on every core
+  private static final int PARALLEL_WIDTH = 4096;
+
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
+
+  private final List<byte[]> levels = new ArrayList(); //concatenated node hashes, leaves first
+  private final int leafCount;
+
+  /**
+   * Build the tree
+   *
+   * @param chunkDigests concatenated SHA-256 digests of every chunk, in order
+   */
+  public MerkleTree(byte[] chunkDigests) {
+    leafCount = chunkDigests.length / HASH_LENGTH;
+    byte[] leaves = new byte[chunkDigests.length];
+    hashLevel(leafCount, (i) -> {
+      MessageDigest md = SHA256.get();
+      md.update((byte) 0);
+      md.update(chunkDigests, i * HASH_LENGTH, HASH_LENGTH);
+      digestInto(md, leaves, i);
+    });
+    levels.add(leaves);
+    byte[] level = leaves;
+    while (level.length > HASH_LENGTH) {
+      byte[] below = level;
+      int width = below.length / HASH_LENGTH;
+      byte[] above = new byte[(width + 1) / 2 * HASH_LENGTH];
+      hashLevel(width / 2, (i) -> {
+        MessageDigest md = SHA256.get();
+        md.update((byte) 1);
+        md.update(below, 2 * i * HASH_LENGTH, 2 * HASH_LENGTH);
+        digestInto(md, above, i);
+      });
+      if (width % 2 == 1) {
+        System.arraycopy(below, (width - 1) * HASH_LENGTH, above, (width / 2) * HASH_LENGTH, HASH_LENGTH);
+      }
+      levels.add(above);
+      level = above;
+    }
+  }
+
+  public int getLeafCount() {
+    return leafCount;
+  }
+
+  /**
+   * @return the root hash, or the hash of nothing for an empty file
+   */
+  public byte[] getRoot() {
+    if (leafCount == 0) {
+      return SHA256.get().digest();
+    }
+    return levels.get(levels.size() - 1).clone();
+  }
+
+  /**
+   * Build the proof of a chunk
+   *
+   * @param index chunk index
+   * @return the sibling hashes from the leaf up, concatenated
+   */
+  public byte[] proof(int index) {
+    byte[] proof = new byte[(levels.size() - 1) * HASH_LENGTH];
+    int length = 0;
+    for (int l = 0; l < levels.size() - 1; l++) {
+      byte[] level = levels.get(l);
+      int sibling = index ^ 1;
+      if (sibling < level.length / HASH_LENGTH) {
+        System.arraycopy(level, sibling * HASH_LENGTH, proof, length, HASH_LENGTH);
+        length += HASH_LENGTH;
+      }
+      index /= 2;
+    }
+    return Arrays.copyOf(proof, length);
+  }
+
+  /**
+   * Check a chunk against the root of its file's tree
+   *
+   * @param chunkDigest SHA-256 of the chunk data
+   * @param index chunk index
+   * @param leafCount number of chunks in the file
+   * @param proof the chunk's proof
+   * @param root the tree's root
+   * @return whether the chunk belongs in the file at that index
+   */
+  public static boolean verify(byte[] chunkDigest, long index, long leafCount, byte[] proof, byte[] root) {
+    if (index < 0 || index >= leafCount) {
+      return false;
+    }
+    MessageDigest md = SHA256.get();
+    md.update((byte) 0);
+    md.update(chunkDigest);
+    byte[] node = md.digest();
+    int used = 0;
+    for (long width = leafCount; width > 1; width = (width + 1) / 2) {
+      long sibling = index ^ 1;
+      if (sibling < width) {
+        if (used + HASH_LENGTH > proof.length) {
+          return false;
+        }
+        md.update((byte) 1);
+        if ((index & 1) == 0) {
+          md.update(node);
+          md.update(proof, used, HASH_LENGTH);
+        } else {
+          md.update(proof, used, HASH_LENGTH);
+          md.update(node);
+        }
+        node = md.digest();
+        used += HASH_LENGTH;
+      }
+      index /= 2;
+    }
+    return used == proof.length && MessageDigest.isEqual(node, root);
+  }
+
+  /**
+   * @return lowercase hex of a hash, for printing
+   */
+  public static String toHex(byte[] hash) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : hash) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private static void hashLevel(int count, IntConsumer node) {
+    IntStream nodes = IntStream.range(0, count);
+    (count >= PARALLEL_WIDTH ? nodes.parallel() : nodes).forEach(node);
+  }
+
+  private static void digestInto(MessageDigest md, byte[] level, int i) {
+    try {
+      md.digest(level, i * HASH_LENGTH, HASH_LENGTH);
+    } catch (DigestException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+}
@@ -17,6 +17,9 @@
  */
 package net.dalva.alastor;
 
+import com.google.protobuf.ByteString;
+import io.grpc.Metadata;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 /**
@@ -25,12 +28,43 @@ import java.util.zip.CRC32;
  */
 public class Tools {
   
+  /**
+   * Trailer sent along with RESOURCE_EXHAUSTED, telling the client how long to back off before retrying
+   */
+  public static final Metadata.Key<String> RETRY_AFTER_MS = Metadata.Key.of("alastor-retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+  
   public static long makeCRC32(byte[] b) {
     CRC32 hasher = new CRC32();
     hasher.update(b);
     return hasher.getValue();
   }
   
+  /**
+   * CRC32 of a buffer's remaining bytes, without copying them out of it. The buffer's position is left alone.
+   *
+   * @param b the buffer, heap or direct
+   * @return the checksum
+   */
+  public static long makeCRC32(ByteBuffer b) {
+    CRC32 hasher = new CRC32();
+    hasher.update(b.duplicate());
+    return hasher.getValue();
+  }
+  
+  /**
+   * CRC32 of a ByteString, straight over its backing buffers instead of a copy of them
+   *
+   * @param b the data
+   * @return the checksum
+   */
+  public static long makeCRC32(ByteString b) {
+    CRC32 hasher = new CRC32();
+    for (ByteBuffer buffer : b.asReadOnlyByteBufferList()) {
+      hasher.update(buffer);
+    }
+    return hasher.getValue();
+  }
+  
   public static String sanitizePath(String path) {
     return path.replaceAll("[~:|]|\\.\\.", "");
   }
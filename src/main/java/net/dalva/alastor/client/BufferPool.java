@@ -0,0 +1,83 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A fixed number of direct buffers, allocated on first use and reused for every write after that.
+ *
+ * Writing a heap buffer to a channel makes the JDK copy it into a temporary direct buffer cached per thread, as big
+ * as the write, which with a thread per connection grows with the connection count. Copying through these instead
+ * keeps direct memory at the pool's size.
+ *
+ * @author Dalva
+ */
+public class BufferPool {
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque();
+
+  private int allocated = 0;
+
+  /**
+   * @param bufferSize size of each buffer
+   * @param maxBuffers most buffers ever allocated
+   */
+  public BufferPool(int bufferSize, int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  /**
+   * Take a cleared buffer, waiting for one to be given back if they are all in use
+   *
+   * @return the buffer
+   * @throws InterruptedIOException if interrupted while waiting, so it passes through write paths
+   */
+  public synchronized ByteBuffer take() throws InterruptedIOException {
+    while (free.isEmpty() && allocated >= maxBuffers) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a buffer");
+      }
+    }
+    if (free.isEmpty()) {
+      allocated++;
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    ByteBuffer buffer = free.pop();
+    buffer.clear();
+    return buffer;
+  }
+
+  public synchronized void give(ByteBuffer buffer) {
+    free.push(buffer);
+    notify();
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+}
@@ -0,0 +1,64 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import net.dalva.alastor.FileHandler;
+
+/**
+ * Positional writes through the file's channel, copied through pooled direct buffers
+ *
+ * @author Dalva
+ */
+public class ChannelSink implements ChunkSink {
+
+  private final FileHandler fh;
+  private final BufferPool pool;
+
+  public ChannelSink(FileHandler fh, BufferPool pool) {
+    this.fh = fh;
+    this.pool = pool;
+  }
+
+  @Override
+  public void write(long position, ByteString data) throws IOException {
+    FileChannel channel = fh.getChannel();
+    ByteBuffer buffer = pool.take();
+    try {
+      for (int from = 0; from < data.size(); from += buffer.capacity()) {
+        buffer.clear();
+        data.substring(from, Math.min(data.size(), from + buffer.capacity())).copyTo(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+    } finally {
+      pool.give(buffer);
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    fh.getChannel().force(false);
+  }
+
+}
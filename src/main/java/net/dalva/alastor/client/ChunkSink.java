@@ -0,0 +1,97 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import net.dalva.alastor.FileHandler;
+
+/**
+ * Where downloaded chunks go. Writes may come from every servant at once, so implementations must not serialize them.
+ *
+ * @author Dalva
+ */
+public interface ChunkSink {
+
+  /**
+   * How the output file is written
+   */
+  public static enum Mode {
+    write, //positional writes, growing the file as chunks land
+    prealloc, //positional writes into a file allocated to its full size up front
+    mmap //copies into memory-mapped windows of a file allocated to its full size up front
+  };
+
+  /**
+   * Write data at a position of the file
+   *
+   * @param position offset in bytes
+   * @param data the data
+   * @throws IOException
+   */
+  void write(long position, ByteString data) throws IOException;
+
+  /**
+   * Flush everything written to the storage device, once, when the download is done
+   *
+   * @throws IOException
+   */
+  void finish() throws IOException;
+
+  /**
+   * How far into the file chunks may be downloaded, for sinks with bounded buffers
+   *
+   * @return position in bytes that a chunk may end at, at most
+   */
+  default long writableUntil() {
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Whether a chunk may be written a fragment at a time, and written again if it turns out to be corrupt
+   *
+   * @return false if only whole, verified chunks may be written
+   */
+  default boolean acceptsPartialChunks() {
+    return true;
+  }
+
+  /**
+   * Open a sink over an output file
+   *
+   * @param mode how to write
+   * @param fh the output file
+   * @param fileSize final size of the file
+   * @param pool direct buffers to write through
+   * @return the sink
+   * @throws IOException
+   */
+  public static ChunkSink open(Mode mode, FileHandler fh, long fileSize, BufferPool pool) throws IOException {
+    switch (mode) {
+      case prealloc:
+        fh.preallocate(fileSize);
+        return new ChannelSink(fh, pool);
+      case mmap:
+        fh.preallocate(fileSize);
+        return new MappedSink(fh, fileSize);
+      default:
+        return new ChannelSink(fh, pool);
+    }
+  }
+
+}
@@ -50,8 +50,13 @@ public class ChunkTracker {
     this.isDownloaded = true;
   }
   
-  public synchronized void setWritten() {
+  /**
+   * @return false if it was already written, such as by another servant that got the same chunk
+   */
+  public synchronized boolean setWritten() {
+    boolean wasWritten = isWritten;
     this.isWritten = true;
+    return !wasWritten;
   }
   
   public synchronized void reset() {
@@ -0,0 +1,239 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.handler.ssl.SslContext;
+import java.io.Closeable;
+import javax.net.ssl.SSLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs any number of downloads and uploads at once in a single JVM, sharing threads and connections between them.
+ *
+ * Connections to the same server are pooled: a download asking for 50 connections gets the first 50 channels of the
+ * pool for that server, opening the missing ones, so downloads running side by side reuse each other's connections
+ * instead of opening their own. Every TLS channel shares one SSL context, so after the first handshake to a server the
+ * others resume its session instead of doing a full one. Chunk data in flight is bounded by a memory budget shared by
+ * every transfer, and writes go through a shared pool of direct buffers.
+ * <pre>
+ * try (ClientEngine engine = new ClientEngine()) {
+ *   FlameWeaver a = engine.download().address("example.com").key("secret").file("a.tar.gz").start();
+ *   FlameWeaver b = engine.download().address("example.com").key("secret").file("b.tar.gz").connections(200).start();
+ *   a.getResult().join();
+ *   b.getResult().join();
+ * }
+ * </pre>
+ *
+ * @author Dalva
+ */
+public class ClientEngine implements Closeable {
+
+  public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+  private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+  private static final int WARMUP_WAVE = 64;
+  private static final long WARMUP_WAIT_MILLIS = 2000;
+
+  private final MemoryBudget memoryBudget;
+  private final BufferPool writeBuffers;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService ticker;
+  private final Map<String, List<ManagedChannel>> channels = new HashMap();
+  private SslContext sslContext;
+  private boolean closed = false;
+
+  public ClientEngine() {
+    this(DEFAULT_MEMORY_BUDGET);
+  }
+
+  /**
+   * @param memoryBudget most chunk data held in memory by all transfers together, in bytes
+   */
+  public ClientEngine(long memoryBudget) {
+    this.memoryBudget = new MemoryBudget(memoryBudget);
+    //writes are short, a few buffers per core keep the disk busy
+    this.writeBuffers = new BufferPool(WRITE_BUFFER_SIZE, 4 * Runtime.getRuntime().availableProcessors());
+    AtomicInteger threadNumber = new AtomicInteger();
+    //servants block on their calls, so every one of them needs a thread of its own
+    executor = Executors.newCachedThreadPool((r) -> {
+      Thread t = new Thread(r, "alastor-servant-" + threadNumber.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    ticker = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "alastor-progress");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Set up a new download running on this engine
+   *
+   * @return builder of the download
+   */
+  public FlameWeaver.Builder download() {
+    return new FlameWeaver.Builder(this);
+  }
+
+  /**
+   * Set up a new upload running on this engine
+   *
+   * @return builder of the upload
+   */
+  public UploadWeaver.Builder upload() {
+    return new UploadWeaver.Builder(this);
+  }
+
+  ExecutorService getExecutor() {
+    return executor;
+  }
+
+  ScheduledExecutorService getTicker() {
+    return ticker;
+  }
+
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  BufferPool getWriteBuffers() {
+    return writeBuffers;
+  }
+
+  /**
+   * Get channels to a server from the pool, opening as many as needed.
+   * Channels connect lazily: on their first call, or when warmed up.
+   *
+   * @param address server address
+   * @param notls whether to connect in plaintext
+   * @param count number of channels wanted
+   * @return the channels, not to be shut down by the caller
+   * @throws SSLException if the TLS context cannot be set up
+   */
+  synchronized List<ManagedChannel> channels(String address, boolean notls, int count) throws SSLException {
+    if (closed) {
+      throw new IllegalStateException("Engine is closed");
+    }
+    List<ManagedChannel> pool = channels.computeIfAbsent((notls ? "plain:" : "tls:") + address, (k) -> new ArrayList());
+    while (pool.size() < count) {
+      NettyChannelBuilder builder = NettyChannelBuilder.forTarget(address);
+      if (notls) {
+        builder.usePlaintext();
+      } else {
+        if (sslContext == null) {
+          sslContext = GrpcSslContexts.forClient().build();
+        }
+        builder.sslContext(sslContext);
+      }
+      pool.add(builder.build());
+    }
+    return new ArrayList(pool.subList(0, count));
+  }
+
+  /**
+   * Connect channels in waves, handing each one over as soon as it is ready to carry calls.
+   *
+   * The first wave is a single channel, so the full handshake is done once and every channel after it resumes the TLS
+   * session. Later waves connect up to WARMUP_WAVE channels at once, which spreads the handshakes over a few round trips
+   * instead of landing them all on the server in the same instant. A channel that is still not ready after
+   * WARMUP_WAIT_MILLIS is handed over anyway: its first call waits for it, or fails and is retried.
+   *
+   * @param channels channels to connect, in order
+   * @param ready called once for each channel, from any thread
+   * @throws InterruptedException
+   */
+  void warmUp(List<ManagedChannel> channels, Consumer<ManagedChannel> ready) throws InterruptedException {
+    int next = 0;
+    int wave = 1;
+    while (next < channels.size()) {
+      List<ManagedChannel> batch = channels.subList(next, Math.min(channels.size(), next + wave));
+      CountDownLatch connected = new CountDownLatch(batch.size());
+      List<Runnable> handOvers = new ArrayList();
+      for (ManagedChannel channel : batch) {
+        AtomicBoolean handed = new AtomicBoolean(false);
+        Runnable handOver = () -> {
+          if (handed.compareAndSet(false, true)) {
+            ready.accept(channel);
+            connected.countDown();
+          }
+        };
+        handOvers.add(handOver);
+        whenConnected(channel, handOver);
+      }
+      if (!connected.await(WARMUP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        handOvers.forEach(Runnable::run);
+      }
+      next += batch.size();
+      wave = WARMUP_WAVE;
+    }
+  }
+
+  /**
+   * Start connecting a channel if it is idle, and run a task once it is either connected or has failed to
+   */
+  private static void whenConnected(ManagedChannel channel, Runnable task) {
+    ConnectivityState state = channel.getState(true);
+    if (state == ConnectivityState.READY || state == ConnectivityState.TRANSIENT_FAILURE || state == ConnectivityState.SHUTDOWN) {
+      task.run();
+    } else {
+      channel.notifyWhenStateChanged(state, () -> whenConnected(channel, task));
+    }
+  }
+
+  /**
+   * Stop every download still running and close all connections
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    ticker.shutdownNow();
+    executor.shutdownNow();
+    for (List<ManagedChannel> pool : channels.values()) {
+      for (ManagedChannel channel : pool) {
+        channel.shutdownNow();
+      }
+    }
+    try {
+      for (List<ManagedChannel> pool : channels.values()) {
+        for (ManagedChannel channel : pool) {
+          channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -17,6 +17,9 @@
  */
 package net.dalva.alastor.client;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.Callable;
 import net.dalva.alastor.Main;
 import picocli.CommandLine;
@@ -41,6 +44,41 @@ public class EntryClient implements Callable<Integer> {
   @Option(names = {"-k", "--chunksize"}, description = "Chunk Size in kB (default 100kB)")
   private int chunkSizeInKB = 100;
 
+  @Option(names = {"--report"}, description = "Write a JSON performance report to this file when done")
+  private String reportFile;
+
+  @Option(names = {"--samples"}, description = "Stream per-second throughput samples to this file as JSON lines")
+  private String samplesFile;
+
+  @Option(names = {"--sync"}, description = "Keep the chunks of an existing local copy that match the server's, and only download the others")
+  private boolean sync = false;
+
+  @Option(names = {"--verify"}, description = "Verify every chunk against the server's SHA-256 Merkle tree, which catches tampering and not only line noise")
+  private boolean verify = false;
+
+  @Option(names = {"--output"}, description = "How to write the file: ${COMPLETION-CANDIDATES}. prealloc and mmap allocate the whole file up front so it stays contiguous (default write)")
+  private ChunkSink.Mode outputMode = ChunkSink.Mode.write;
+
+  @Option(names = {"--stdout"}, description = "Write the file to standard output, in order, as it downloads; everything else goes to standard error")
+  private boolean stdout = false;
+
+  @Option(names = {"--reorder-buffer"}, description = "With --stdout, most data held in memory waiting for earlier chunks, in MB (default 64MB)")
+  private long reorderBufferMB = 64;
+
+  @Option(names = {"--memory"}, description = "Most chunk data held in memory by all connections together, in MB; connections wait for room beyond it (default 256MB)")
+  private long memoryMB = ClientEngine.DEFAULT_MEMORY_BUDGET / (1024 * 1024);
+
+  /**
+   * How progress is shown
+   */
+  public static enum ProgressMode {tui, json, none};
+
+  @Option(names = {"--progress"}, description = "Progress display: ${COMPLETION-CANDIDATES}. json prints one JSON object per line for scripts (default tui)")
+  private ProgressMode progressMode = ProgressMode.tui;
+
+  @Option(names = {"--progress-interval"}, description = "Milliseconds between progress updates (default 1000)")
+  private long progressIntervalMillis = 1000;
+
   @Parameters(index = "0", description = {"example.com, 10.8.0.1:5555, 127.0.0.1:41457, ...", "Port 443 by default, or 80 when -n is set"})
   private String address;
 
@@ -52,6 +90,9 @@ public class EntryClient implements Callable<Integer> {
 
   @Override
   public Integer call() throws Exception {
+    if (stdout) {
+      System.setOut(System.err); //keep the file alone on the real stdout
+    }
     System.out.println(Main.VERSION_FULL);
     System.out.println("Connecting to : " + address);
     System.out.println("Connections   : " + conns);
@@ -63,9 +104,7 @@ public class EntryClient implements Callable<Integer> {
       System.out.println("TLS           : Enabled");
     }
     
-    FlameWeaver.weave(this);
-
-    return 0;
+    return FlameWeaver.weave(this) ? 0 : 1;
   }
   
   public int getChunkSizeInBytes() {
@@ -92,6 +131,49 @@ public class EntryClient implements Callable<Integer> {
     return clientKey;
   }
 
+  String getReportFile() {
+    return reportFile;
+  }
+
+  String getSamplesFile() {
+    return samplesFile;
+  }
+
+  boolean isSync() {
+    return sync;
+  }
+
+  boolean isVerify() {
+    return verify;
+  }
+
+  ChunkSink.Mode getOutputMode() {
+    return outputMode;
+  }
+
+  ProgressMode getProgressMode() {
+    return progressMode;
+  }
+
+  long getProgressIntervalMillis() {
+    return progressIntervalMillis;
+  }
+
+  /**
+   * @return the real standard output, or null when not writing there
+   */
+  WritableByteChannel getStdoutChannel() {
+    return stdout ? new FileOutputStream(FileDescriptor.out).getChannel() : null;
+  }
+
+  long getMemoryBudgetBytes() {
+    return memoryMB * 1024 * 1024;
+  }
+
+  long getReorderBufferBytes() {
+    return reorderBufferMB * 1024 * 1024;
+  }
+
   
 
 }
@@ -0,0 +1,104 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import net.dalva.alastor.grpc.AlastorGrpc;
+import net.dalva.alastor.grpc.FileEntry;
+import net.dalva.alastor.grpc.FileList;
+import net.dalva.alastor.grpc.ListQuery;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+/**
+ * Landing for CLI "ls" command
+ * @author Dalva
+ */
+@CommandLine.Command(name = "ls",
+        description = "List files available on an Alastor server")
+public class EntryList implements Callable<Integer> {
+
+  @Option(names = {"-n", "--notls"}, description = "Don't use TLS (TLS used by default)")
+  private boolean notls = false;
+
+  @Option(names = {"-s", "--sha256"}, description = "Also show whole-file SHA-256 digests, when the server has them")
+  private boolean digests = false;
+
+  @Parameters(index = "0", description = {"example.com, 10.8.0.1:5555, 127.0.0.1:41457, ...", "Port 443 by default, or 80 when -n is set"})
+  private String address;
+
+  @Parameters(index = "1", description = {"arbitrary length string", "Must be in the server's trusted keylist"})
+  private String clientKey;
+
+  @Parameters(index = "2", defaultValue = "", description = "Only list files starting with this path prefix (default all)")
+  private String prefix;
+
+  @Override
+  public Integer call() throws Exception {
+    ManagedChannel channel;
+    if (notls) {
+      channel = ManagedChannelBuilder.forTarget(address)
+              .usePlaintext()
+              .build();
+    } else {
+      channel = ManagedChannelBuilder.forTarget(address)
+              .build();
+    }
+
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    try {
+      AlastorGrpc.AlastorBlockingStub stub = AlastorGrpc.newBlockingStub(channel);
+      long files = 0;
+      long bytes = 0;
+      String pageToken = "";
+      do {
+        FileList page = stub.withDeadlineAfter(30, TimeUnit.SECONDS).listFiles(ListQuery.newBuilder()
+                .setApiKey(clientKey)
+                .setPrefix(prefix)
+                .setPageToken(pageToken)
+                .setIncludeDigests(digests)
+                .build());
+        if (page.getError().getCode() != 0) {
+          System.err.println("Error Code : " + page.getError().getCode());
+          System.err.println("Error Msg  : " + page.getError().getMsg());
+          return 1;
+        }
+        for (FileEntry entry : page.getFilesList()) {
+          if (digests) {
+            System.out.printf("%15d  %s  %-64s  %s%n", entry.getFileSize(), format.format(entry.getFileTimestamp()), entry.getSha256(), entry.getFileName());
+          } else {
+            System.out.printf("%15d  %s  %s%n", entry.getFileSize(), format.format(entry.getFileTimestamp()), entry.getFileName());
+          }
+          files++;
+          bytes += entry.getFileSize();
+        }
+        pageToken = page.getNextPageToken();
+      } while (!pageToken.isEmpty());
+      System.out.println(files + " files, " + bytes + " bytes total");
+    } finally {
+      channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    return 0;
+  }
+
+}
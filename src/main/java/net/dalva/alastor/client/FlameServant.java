@@ -17,25 +17,34 @@
  */
 package net.dalva.alastor.client;
 
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import net.dalva.alastor.Tools;
 import net.dalva.alastor.grpc.AlastorGrpc;
 import net.dalva.alastor.grpc.FileData;
 import picocli.CommandLine;
 
 /**
- * This class is responsible for individual connection. To be used in a thread pool.
+ * This class is responsible for individual connection of a download. To be used in a thread pool.
+ * The channel may be shared with other downloads, so it is left open once done.
  *
  * @author Dalva
  */
 public class FlameServant extends Thread {
 
-  private final ManagedChannel channel;
+  private final FlameWeaver weaver;
   private final AlastorGrpc.AlastorBlockingStub blockingStub;
+  private final TransferStats.Servant stats;
+  private final MessageDigest sha256;
   
   private long monitorProcessedChunk = 0;
   private long monitorLastCheckedChunk = 0;
@@ -67,97 +76,303 @@ public class FlameServant extends Thread {
   public void run() {
 
     //System.out.println("Servant " + Thread.currentThread().getName() + " running");
-    FlameWeaver.notifyServantActive();
+    weaver.notifyServantActive();
 
     // The main loop
     while (true) {
-      ChunkTracker nextChunk = getNextReadyChunk();
+      ChunkTracker nextChunk;
+      try {
+        nextChunk = weaver.claimNextChunk(this);
+      } catch (InterruptedException ex) {
+        break;
+      }
       if (nextChunk == null) { // no more chunks to download, kill servant.
         break;
       }
 
-      FileData data;
-      while (true) { // download loop until success
-        try {
-          data = FlameWeaver.dataQuery(blockingStub, nextChunk.getOffset());
-          if (data.getError().getCode() == 0) {
-            if (FlameWeaver.validateData(data)) {
-              break;
-            } else {
-              InfoPrinter.printErrThreadSafe("CRC32 Error: chunk " + nextChunk.getOffset() + " retrying...");
-              monitorThereWasAnError = true;
-            }
-          } else {
-            InfoPrinter.printErrThreadSafe("Error: chunk " + nextChunk.getOffset() + " error " + data.getError().getCode() + " ; retrying...");
+      long chunkStart = System.nanoTime();
+      long memory;
+      try {
+        memory = weaver.acquireMemory(nextChunk, stats);
+      } catch (InterruptedException ex) {
+        break;
+      }
+      int size;
+      try {
+        if (weaver.isStreamed()) {
+          size = streamChunk(nextChunk);
+        } else {
+          size = fetchChunk(nextChunk);
+        }
+      } finally {
+        weaver.releaseMemory(memory);
+      }
+      if (size < 0) { // download cancelled
+        break;
+      }
+      stats.chunkDone(size, System.nanoTime() - chunkStart);
+      if (nextChunk.setWritten()) {
+        weaver.chunkWritten(size);
+      }
+
+    }
+
+    //System.out.println("Servant " + Thread.currentThread().getName() + " has completed their services");
+    weaver.notifyServantDead();
+    finished = true;
+  }
+
+  /**
+   * Download a chunk in a single message, then write it
+   *
+   * @return size of the chunk, -1 if the download has been cancelled
+   */
+  private int fetchChunk(ChunkTracker nextChunk) {
+    FileData data;
+    while (true) { // download loop until success
+      if (weaver.isCancelled()) {
+        return -1;
+      }
+      long rpcStart = System.nanoTime();
+      String handle = weaver.getFileHandle();
+      try {
+        data = weaver.dataQuery(blockingStub, nextChunk.getOffset());
+        long rpcNanos = System.nanoTime() - rpcStart;
+        stats.network(rpcNanos);
+        if (data.getError().getCode() == 0) {
+          stats.rpc(rpcNanos);
+          stats.dataArrived();
+          long verifyStart = System.nanoTime();
+          boolean valid = FlameWeaver.validateData(data);
+          boolean proven = valid && proveChunk(nextChunk, data);
+          stats.verify(System.nanoTime() - verifyStart);
+          if (proven) {
+            break;
+          } else if (!valid) {
+            InfoPrinter.printErrThreadSafe("CRC32 Error: chunk " + nextChunk.getOffset() + " retrying...");
+            stats.retry(TransferStats.RetryCause.crc);
             monitorThereWasAnError = true;
-          }
-        } catch (StatusRuntimeException x) {
-          if (x.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
-            //no need to print out timeout errors.
+          } else {
+            InfoPrinter.printErrThreadSafe("Merkle proof Error: chunk " + nextChunk.getOffset() + " retrying...");
+            stats.retry(TransferStats.RetryCause.proof);
             monitorThereWasAnError = true;
           }
-        } catch (Exception ex) {
-          InfoPrinter.printErrThreadSafe("Download error: chunk " + nextChunk.getOffset() + " retrying...");
-          monitorThereWasAnError = true;
+        } else {
+          serverError(nextChunk, data, handle);
         }
+      } catch (StatusRuntimeException x) {
+        stats.network(System.nanoTime() - rpcStart);
+        rpcFailed(x);
+      } catch (Exception ex) {
+        InfoPrinter.printErrThreadSafe("Download error: chunk " + nextChunk.getOffset() + " retrying...");
+        stats.retry(TransferStats.RetryCause.network);
+        monitorThereWasAnError = true;
       }
-      nextChunk.setDownloaded();
+    }
+    nextChunk.setDownloaded();
 
-      while (true) { // write loop until success
+    while (true) { // write loop until success
+      if (weaver.isCancelled()) {
+        return -1;
+      }
+      long writeStart = System.nanoTime();
+      try {
+        weaver.submitChunk(data, nextChunk.getOffset());
+        stats.disk(System.nanoTime() - writeStart);
+        monitorProcessedChunk++;
+        break;
+      } catch (IOException ex) {
+        if (weaver.isCancelled()) {
+          return -1;
+        }
+        System.err.println("Write error: chunk " + nextChunk.getOffset() + " retrying in 5 seconds...");
+        stats.retry(TransferStats.RetryCause.write);
+        monitorThereWasAnError = true;
         try {
-          FlameWeaver.submitChunk(data, nextChunk.getOffset());
-          monitorProcessedChunk++;
-          break;
-        } catch (IOException ex) {
-          System.err.println("Write error: chunk " + nextChunk.getOffset() + " retrying in 5 seconds...");
-          monitorThereWasAnError = true;
+          Thread.sleep(5000);
+        } catch (InterruptedException ex1) {}
+      }
+    }
+
+    return data.getChunkData().size();
+  }
+
+  /**
+   * Download a chunk as a stream of fragments, writing each one as soon as it arrives.
+   * The whole chunk is requested again if its CRC does not match, overwriting what has been written.
+   *
+   * @return size of the chunk, -1 if the download has been cancelled
+   */
+  private int streamChunk(ChunkTracker nextChunk) {
+    while (true) {
+      if (weaver.isCancelled()) {
+        return -1;
+      }
+      long rpcStart = System.nanoTime();
+      long localNanos = 0;
+      CRC32 crc = new CRC32();
+      sha256.reset();
+      long received = 0;
+      FileData last = null;
+      String handle = weaver.getFileHandle();
+      Context.CancellableContext call = Context.current().withCancellation();
+      try {
+        Iterator<FileData> fragments = call.call(() -> weaver.dataStreamQuery(blockingStub, nextChunk.getOffset()));
+        while (fragments.hasNext()) {
+          FileData fragment = fragments.next();
+          if (fragment.getError().getCode() != 0) {
+            last = fragment;
+            break;
+          }
+          if (fragment.getFragmentOffset() != received) {
+            throw new IOException("Fragment out of order");
+          }
+          stats.dataArrived();
+          long verifyStart = System.nanoTime();
+          for (ByteBuffer buffer : fragment.getChunkData().asReadOnlyByteBufferList()) {
+            crc.update(buffer.duplicate());
+            if (weaver.isVerifying()) {
+              sha256.update(buffer);
+            }
+          }
+          long writeStart = System.nanoTime();
+          stats.verify(writeStart - verifyStart);
           try {
+            weaver.submitFragment(nextChunk.getOffset(), received, fragment.getChunkData());
+          } catch (IOException ex) {
+            System.err.println("Write error: chunk " + nextChunk.getOffset() + " retrying in 5 seconds...");
+            stats.retry(TransferStats.RetryCause.write);
+            monitorThereWasAnError = true;
             Thread.sleep(5000);
-          } catch (InterruptedException ex1) {}
+            break;
+          }
+          long writeEnd = System.nanoTime();
+          stats.disk(writeEnd - writeStart);
+          localNanos += writeEnd - verifyStart;
+          received += fragment.getChunkData().size();
+          last = fragment;
+          if (fragment.getFinalFragment()) {
+            break;
+          }
+        }
+        long rpcNanos = System.nanoTime() - rpcStart;
+        stats.network(rpcNanos - localNanos);
+        if (last != null && last.getError().getCode() != 0) {
+          serverError(nextChunk, last, handle);
+        } else if (last != null && last.getFinalFragment()) {
+          if (last.getChunkCrc32() != crc.getValue()) {
+            InfoPrinter.printErrThreadSafe("CRC32 Error: chunk " + nextChunk.getOffset() + " retrying...");
+            stats.retry(TransferStats.RetryCause.crc);
+            monitorThereWasAnError = true;
+          } else if (!weaver.verifyChunk(nextChunk.getOffset(), sha256.digest(), last.getChunkProof())) {
+            InfoPrinter.printErrThreadSafe("Merkle proof Error: chunk " + nextChunk.getOffset() + " retrying...");
+            stats.retry(TransferStats.RetryCause.proof);
+            monitorThereWasAnError = true;
+          } else {
+            stats.rpc(rpcNanos);
+            nextChunk.setDownloaded();
+            monitorProcessedChunk++;
+            return (int) received;
+          }
         }
+      } catch (StatusRuntimeException x) {
+        stats.network(System.nanoTime() - rpcStart - localNanos);
+        rpcFailed(x);
+      } catch (Exception ex) {
+        InfoPrinter.printErrThreadSafe("Download error: chunk " + nextChunk.getOffset() + " retrying...");
+        stats.retry(TransferStats.RetryCause.network);
+        monitorThereWasAnError = true;
+      } finally {
+        call.cancel(null); //stop the stream if we bailed out early
       }
+    }
+  }
 
-      nextChunk.setWritten();
-
+  /**
+   * Check a whole chunk against the Merkle root, when verifying
+   */
+  private boolean proveChunk(ChunkTracker chunk, FileData data) {
+    if (!weaver.isVerifying()) {
+      return true;
+    }
+    sha256.reset();
+    for (ByteBuffer buffer : data.getChunkData().asReadOnlyByteBufferList()) {
+      sha256.update(buffer);
     }
+    return weaver.verifyChunk(chunk.getOffset(), sha256.digest(), data.getChunkProof());
+  }
 
-    //System.out.println("Servant " + Thread.currentThread().getName() + " has completed their services");
-    FlameWeaver.notifyServantDead();
-    finished = true;
+  /**
+   * Account an error reply. A stale file handle is renewed, a changed file ends the download, anything else is retried.
+   */
+  private void serverError(ChunkTracker chunk, FileData reply, String handle) throws InterruptedException {
+    int code = reply.getError().getCode();
+    stats.retry(TransferStats.RetryCause.server_error);
+    monitorThereWasAnError = true;
+    if (code == 17) {
+      weaver.renewHandle(handle);
+    } else if (code == 18) {
+      weaver.fail("File changed on the server during the download");
+    } else if (code == 19) {
+      InfoPrinter.printErrThreadSafe("Error: chunk " + chunk.getOffset() + " not available upstream of the relay yet ; retrying...");
+      Thread.sleep(1000);
+    } else {
+      InfoPrinter.printErrThreadSafe("Error: chunk " + chunk.getOffset() + " error " + code + " ; retrying...");
+    }
+  }
 
-    try {
-      channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
-    } catch (InterruptedException ex) {
-      InfoPrinter.printErrThreadSafe(ex.getLocalizedMessage());
+  /**
+   * Account a failed request, and back off if the server asked us to
+   */
+  private void rpcFailed(StatusRuntimeException x) {
+    if (x.getStatus().getCode() == Status.Code.DEADLINE_EXCEEDED) {
+      //no need to print out timeout errors.
+      stats.retry(TransferStats.RetryCause.timeout);
+      monitorThereWasAnError = true;
+    } else if (x.getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+      //server is shedding load, back off for as long as it told us to
+      stats.retry(TransferStats.RetryCause.overload);
+      monitorThereWasAnError = true;
+      backOff(x);
+    } else {
+      stats.retry(TransferStats.RetryCause.network);
     }
   }
 
-  private synchronized ChunkTracker getNextReadyChunk() {
-    ChunkTracker nextChunk = FlameWeaver.getNextReadyChunk();
-    if (nextChunk == null) {
-      return null;
+  /**
+   * Sleep for the retry hint of a RESOURCE_EXHAUSTED reply, with some jitter so servants don't come back all at once
+   */
+  private void backOff(StatusRuntimeException x) {
+    long millis = 1000;
+    if (x.getTrailers() != null && x.getTrailers().containsKey(Tools.RETRY_AFTER_MS)) {
+      try {
+        millis = Long.parseLong(x.getTrailers().get(Tools.RETRY_AFTER_MS));
+      } catch (NumberFormatException ex) {}
+    }
+    millis = Math.min(millis, 10000);
+    try {
+      Thread.sleep(millis + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
     }
-    nextChunk.assign(this);
-    return nextChunk;
   }
 
   /**
-   * Construct the worker, initialize its own channel and stub.
+   * Construct the worker on a channel of the engine's pool
    *
-   * @param isNotTls
-   * @param address
+   * @param weaver the download this worker is part of
+   * @param channel channel to the server, possibly shared with other downloads
+   * @param stats telemetry of this connection
    */
-  public FlameServant(boolean isNotTls, String address) {
-
-    if (isNotTls) {
-      channel = ManagedChannelBuilder.forTarget(address)
-              .usePlaintext()
-              .build();
-    } else {
-      channel = ManagedChannelBuilder.forTarget(address)
-              .build();
-
+  public FlameServant(FlameWeaver weaver, ManagedChannel channel, TransferStats.Servant stats) {
+    this.weaver = weaver;
+    this.stats = stats;
+    try {
+      this.sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
     }
-    blockingStub = AlastorGrpc.newBlockingStub(channel);
+    //the channel may be shared with downloads using another chunk size, so the message limit goes on the calls
+    blockingStub = AlastorGrpc.newBlockingStub(channel).withMaxInboundMessageSize(weaver.getMaxInboundMessageSize());
   }
 }
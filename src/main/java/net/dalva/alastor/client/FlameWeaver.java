@@ -17,185 +17,761 @@
  */
 package net.dalva.alastor.client;
 
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import net.dalva.alastor.FileHandler;
+import net.dalva.alastor.MerkleTree;
 import net.dalva.alastor.Tools;
 import net.dalva.alastor.grpc.AlastorGrpc;
 import net.dalva.alastor.grpc.AlastorGrpc.AlastorBlockingStub;
+import net.dalva.alastor.grpc.ChunkManifest;
 import net.dalva.alastor.grpc.DataQuery;
 import net.dalva.alastor.grpc.FileData;
 import net.dalva.alastor.grpc.FileInfo;
 import net.dalva.alastor.grpc.FileQuery;
+import net.dalva.alastor.grpc.ManifestQuery;
 import picocli.CommandLine;
 
 /**
- * The main multi-connection controller and file assembler
+ * The main multi-connection controller and file assembler of a single download.
+ * Downloads are set up with a Builder from a ClientEngine, which runs any number of them side by side.
  *
  * @author Dalva
  */
 public class FlameWeaver {
 
-  private static EntryClient params;
-  private static ExecutorService executor;
-  private static ArrayList<FlameServant> servants = new ArrayList();
-  private static FileInfo fileInfo;
-  
-  private static final ArrayList<ChunkTracker> chunks = new ArrayList();
-  private static int activeServants = 0;
-  private static int chunkSize = 0; // in BYTES
-  private static long chunksLength = 0;
-  private static FileHandler fh;
-  private static int lastSecondChunks = 0;
+  //room left in a message for everything but the chunk data, as the server counts it
+  private static final int MESSAGE_OVERHEAD = 64 * 1024;
+
+  private final ClientEngine engine;
+  private final String address;
+  private final String clientKey;
+  private final String filename;
+  private final String outputPath;
+  private final int conns;
+  private final int chunkSize; // in BYTES
+  private final boolean notls;
+  private final boolean sync;
+  private final boolean verify;
+  private final boolean verbose;
+  private final ChunkSink.Mode outputMode;
+  private final String reportFile;
+  private final String samplesFile;
+  private final long progressIntervalMillis;
+  private final WritableByteChannel streamOut;
+  private final long reorderBytes;
+
+  private final ArrayList<FlameServant> servants = new ArrayList();
+  private final ArrayList<ChunkTracker> chunks = new ArrayList();
+  private final AtomicInteger activeServants = new AtomicInteger();
+  private final AtomicLong chunksDone = new AtomicLong();
+  private final AtomicLong bytesDone = new AtomicLong();
+  private final List<ProgressListener> listeners = new CopyOnWriteArrayList();
+  private final ArrayDeque<long[]> speedWindow = new ArrayDeque(); // {nanos, bytes}, only touched by the progress ticks
+  private final TransferStats stats = new TransferStats();
+  private final CompletableFuture<ProgressSnapshot> result = new CompletableFuture();
+  private final Object handleLock = new Object();
+
+  private FileInfo fileInfo;
+  private long chunksLength = 0;
+  private FileHandler fh;
+  private ChunkSink sink;
+  private boolean streamed = false;
+  private int maxInboundMessageSize = 4 * 1024 * 1024;
+  private byte[] merkleRoot = null; //only set when verifying
+  private long startNanos;
+  private volatile String fileHandle = ""; //empty if the server gives none, chunks are then asked for by name
+  private volatile boolean cancelled = false;
+  private volatile String failure = null;
 
   /**
-   * Proceed to download files
+   * Settings of a download
+   */
+  public static class Builder {
+
+    private final ClientEngine engine;
+    private String address;
+    private String clientKey;
+    private String filename;
+    private String outputPath;
+    private int conns = 50;
+    private int chunkSize = 100 * 1024;
+    private boolean notls = false;
+    private boolean sync = false;
+    private boolean verify = false;
+    private boolean verbose = false;
+    private ChunkSink.Mode outputMode = ChunkSink.Mode.write;
+    private ChunkSink sink;
+    private String reportFile;
+    private String samplesFile;
+    private long progressIntervalMillis = 1000;
+    private WritableByteChannel streamOut;
+    private long reorderBytes = 64 * 1024 * 1024;
+    private final List<ProgressListener> listeners = new ArrayList();
+
+    Builder(ClientEngine engine) {
+      this.engine = engine;
+    }
+
+    /**
+     * @param address example.com, 10.8.0.1:5555, 127.0.0.1:41457, ...
+     */
+    public Builder address(String address) {
+      this.address = address;
+      return this;
+    }
+
+    public Builder key(String clientKey) {
+      this.clientKey = clientKey;
+      return this;
+    }
+
+    /**
+     * @param filename file to download, relative to the server's serve dir
+     */
+    public Builder file(String filename) {
+      this.filename = filename;
+      return this;
+    }
+
+    /**
+     * @param outputPath where to write the file (default the server's name for it, in the working directory)
+     */
+    public Builder output(String outputPath) {
+      this.outputPath = outputPath;
+      return this;
+    }
+
+    public Builder connections(int conns) {
+      this.conns = conns;
+      return this;
+    }
+
+    public Builder chunkSize(int bytes) {
+      this.chunkSize = bytes;
+      return this;
+    }
+
+    public Builder notls(boolean notls) {
+      this.notls = notls;
+      return this;
+    }
+
+    public Builder sync(boolean sync) {
+      this.sync = sync;
+      return this;
+    }
+
+    public Builder verify(boolean verify) {
+      this.verify = verify;
+      return this;
+    }
+
+    /**
+     * @param verbose whether to print what is going on, as the CLI does
+     */
+    public Builder verbose(boolean verbose) {
+      this.verbose = verbose;
+      return this;
+    }
+
+    public Builder outputMode(ChunkSink.Mode outputMode) {
+      this.outputMode = outputMode;
+      return this;
+    }
+
+    /**
+     * @param sink where chunks go instead of an output file; sync is not possible then
+     */
+    public Builder sink(ChunkSink sink) {
+      this.sink = sink;
+      return this;
+    }
+
+    /**
+     * @param out stream to write the file to in order as it downloads, such as stdout, instead of an output file
+     */
+    public Builder stream(WritableByteChannel out) {
+      this.streamOut = out;
+      return this;
+    }
+
+    /**
+     * @param bytes most data held out of order when streaming, before servants wait for the stream to catch up
+     */
+    public Builder reorderBuffer(long bytes) {
+      this.reorderBytes = bytes;
+      return this;
+    }
+
+    public Builder report(String reportFile) {
+      this.reportFile = reportFile;
+      return this;
+    }
+
+    public Builder samples(String samplesFile) {
+      this.samplesFile = samplesFile;
+      return this;
+    }
+
+    public Builder progressInterval(long millis) {
+      this.progressIntervalMillis = millis;
+      return this;
+    }
+
+    public Builder listener(ProgressListener listener) {
+      listeners.add(listener);
+      return this;
+    }
+
+    /**
+     * @return the download, not started yet
+     */
+    public FlameWeaver build() {
+      if (address == null || clientKey == null || filename == null) {
+        throw new IllegalStateException("Address, key and file are required");
+      }
+      if (conns <= 0 || chunkSize <= 0) {
+        throw new IllegalStateException("Connections and chunk size must be positive");
+      }
+      if (sync && (sink != null || streamOut != null)) {
+        throw new IllegalStateException("Cannot sync into a custom sink or a stream");
+      }
+      if (sink != null && streamOut != null) {
+        throw new IllegalStateException("Cannot use a custom sink and a stream at once");
+      }
+      return new FlameWeaver(this);
+    }
+
+    /**
+     * @return the download, started
+     */
+    public FlameWeaver start() {
+      return build().start();
+    }
+  }
+
+  private FlameWeaver(Builder b) {
+    engine = b.engine;
+    address = b.address;
+    clientKey = b.clientKey;
+    filename = b.filename;
+    outputPath = b.outputPath;
+    conns = b.conns;
+    chunkSize = b.chunkSize;
+    notls = b.notls;
+    sync = b.sync;
+    verify = b.verify;
+    verbose = b.verbose;
+    outputMode = b.outputMode;
+    sink = b.sink;
+    reportFile = b.reportFile;
+    samplesFile = b.samplesFile;
+    progressIntervalMillis = b.progressIntervalMillis;
+    streamOut = b.streamOut;
+    reorderBytes = b.reorderBytes;
+    listeners.addAll(b.listeners);
+  }
+
+  /**
+   * Download a file as told by the "get" command, on an engine of its own
    *
    * @param clientParams
+   * @return whether the file has been downloaded
    * @throws InterruptedException
    */
-  public static void weave(EntryClient clientParams) throws InterruptedException {
+  public static boolean weave(EntryClient clientParams) throws InterruptedException {
+    try (ClientEngine engine = new ClientEngine(clientParams.getMemoryBudgetBytes())) {
+      FlameWeaver weaver = engine.download()
+              .address(clientParams.getAddress())
+              .key(clientParams.getClientKey())
+              .file(clientParams.getFilename())
+              .connections(clientParams.getConns())
+              .chunkSize(clientParams.getChunkSizeInBytes())
+              .notls(clientParams.isNotls())
+              .sync(clientParams.isSync())
+              .verify(clientParams.isVerify())
+              .outputMode(clientParams.getOutputMode())
+              .report(clientParams.getReportFile())
+              .samples(clientParams.getSamplesFile())
+              .progressInterval(clientParams.getProgressIntervalMillis())
+              .stream(clientParams.getStdoutChannel())
+              .reorderBuffer(clientParams.getReorderBufferBytes())
+              .verbose(true)
+              .build();
+      switch (clientParams.getProgressMode()) {
+        case tui:
+          weaver.addProgressListener(new TerminalProgress(weaver, clientParams.isNotls(), clientParams.getAddress()));
+          break;
+        case json:
+          weaver.addProgressListener(new JsonProgress(System.out));
+          break;
+        default:
+          break;
+      }
+      try {
+        weaver.start().getResult().get();
+        return true;
+      } catch (ExecutionException ex) {
+        System.err.println(ex.getCause().getLocalizedMessage());
+        return false;
+      } catch (InterruptedException ex) {
+        weaver.cancel();
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Start downloading, on the engine's threads
+   *
+   * @return this
+   */
+  public FlameWeaver start() {
+    startNanos = System.nanoTime();
+    engine.getExecutor().submit(() -> {
+      try {
+        run();
+      } catch (Throwable ex) {
+        result.completeExceptionally(ex);
+      }
+    });
+    return this;
+  }
+
+  /**
+   * @return completes with the final progress once the file is downloaded, or exceptionally if it cannot be
+   */
+  public CompletableFuture<ProgressSnapshot> getResult() {
+    return result;
+  }
+
+  /**
+   * Stop downloading. Chunks being downloaded are given up, and the result completes exceptionally.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
 
-    params = clientParams;
-    chunkSize = clientParams.getChunkSizeInBytes();
+  /**
+   * @return information about the file, null until the server has been asked
+   */
+  public FileInfo getFileInfo() {
+    return fileInfo;
+  }
+
+  private void log(String line) {
+    if (verbose) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Proceed to download the file
+   */
+  private void run() throws IOException, InterruptedException {
 
     //Get file information so we know how much chunks there is
-    System.out.println("Getting file information of: " + params.getFilename());
+    log("Getting file information of: " + filename);
     fileInfo = fileQuery();
     if (fileInfo.getError().getCode() != 0) { //error.
-      System.out.println("Failure.");
-      System.out.println("Error Code : " + fileInfo.getError().getCode());
-      System.out.println("Error Msg  : " + fileInfo.getError().getMsg());
-      return;
+      log("Failure.");
+      log("Error Code : " + fileInfo.getError().getCode());
+      log("Error Msg  : " + fileInfo.getError().getMsg());
+      throw new IOException("Cannot get " + filename + ": error " + fileInfo.getError().getCode() + ": " + fileInfo.getError().getMsg());
     }
-    System.out.println("Success.");
-    
-    //Initialize chunks progress tracker
-    chunksLength = fileInfo.getFileSize() / chunkSize;
-    if (fileInfo.getFileSize()%chunkSize != 0) {
-      chunksLength += 1; // if the last chunk will not fill the entire chunkSize allocation
+    log("Success.");
+    fileHandle = fileInfo.getFileHandle();
+
+    if (verify) {
+      if (fileInfo.getMerkleRoot().size() != MerkleTree.HASH_LENGTH) {
+        throw new IOException("This server cannot provide a Merkle tree, so chunks cannot be verified");
+      }
+      merkleRoot = fileInfo.getMerkleRoot().toByteArray();
     }
-    for (int i=0; i<chunksLength; i++) {
-      chunks.add(new ChunkTracker(i));
+
+    //Chunks bigger than a fragment are streamed so that they are never held in memory whole,
+    //unless they go somewhere that only takes whole verified chunks
+    boolean partialChunks = streamOut == null && (sink == null || sink.acceptsPartialChunks());
+    if (partialChunks && fileInfo.getFragmentSize() > 0 && chunkSize > fileInfo.getFragmentSize()) {
+      streamed = true;
+      maxInboundMessageSize = Math.max(maxInboundMessageSize, fileInfo.getFragmentSize() + MESSAGE_OVERHEAD);
+    } else {
+      int serverMax = fileInfo.getMaxMessageSize() > 0 ? fileInfo.getMaxMessageSize() : maxInboundMessageSize;
+      if (chunkSize > serverMax - MESSAGE_OVERHEAD) {
+        throw new IOException("Chunk size too large, this server allows up to " + (serverMax - MESSAGE_OVERHEAD) / 1024 + " kB per chunk");
+      }
+      maxInboundMessageSize = Math.max(maxInboundMessageSize, chunkSize + MESSAGE_OVERHEAD);
     }
     
+    //Initialize chunks progress tracker
+    initChunks(fileInfo.getFileSize());
+    
     SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS Z");
-    System.out.println("Filename      : " + fileInfo.getFileName());
-    System.out.println("Size (bytes)  : " + fileInfo.getFileSize());
-    System.out.println("Last Modified : " + format.format(new Date(fileInfo.getFileTimestamp())));
-    System.out.println("Total Chunks  : " + chunksLength);
-    System.out.println("Last Imperfect chunk length is " + fileInfo.getFileSize()%chunkSize + " bytes");
+    log("Filename      : " + fileInfo.getFileName());
+    log("Size (bytes)  : " + fileInfo.getFileSize());
+    log("Last Modified : " + format.format(new Date(fileInfo.getFileTimestamp())));
+    log("Total Chunks  : " + chunksLength);
+    log("Last Imperfect chunk length is " + fileInfo.getFileSize()%chunkSize + " bytes");
+    if (streamed) {
+      log("Chunks are streamed in " + fileInfo.getFragmentSize() / 1024 + " kB fragments");
+    }
+    if (merkleRoot != null) {
+      log("Merkle root   : " + MerkleTree.toHex(merkleRoot));
+    }
     
-    //Open the file for writing
+    String output = outputPath != null ? outputPath : fileInfo.getFileName();
+    if (streamOut != null) {
+      sink = new StreamSink(streamOut, engine.getWriteBuffers(), fileInfo.getFileSize(), Math.max(reorderBytes, chunkSize), this::frontierAdvanced);
+    }
+    if (sink == null) {
+      //Open the file for writing
+      try {
+        fh = new FileHandler(output, false);
+      } catch (IOException ex) {
+        throw new IOException("IO error on file " + output + " - " + ex.getLocalizedMessage(), ex);
+      }
+    }
+
     try {
-      fh = new FileHandler(fileInfo.getFileName(), false);
-    } catch (IOException ex) {
-      System.err.println("IO error on file " + fileInfo.getFileName() + " - " + ex.getLocalizedMessage());
-      return; //abort
+      if (sync) {
+        sync(output);
+      }
+
+      if (sink == null) {
+        try {
+          if (outputMode != ChunkSink.Mode.write) {
+            log("Allocating " + fileInfo.getFileSize() / 1024 + " kB for " + output + "...");
+          }
+          sink = ChunkSink.open(outputMode, fh, fileInfo.getFileSize(), engine.getWriteBuffers());
+        } catch (IOException ex) {
+          throw new IOException("IO error on file " + output + " - " + ex.getLocalizedMessage(), ex);
+        }
+      }
+
+      download();
+    } finally {
+      if (fh != null) {
+        fh.close();
+      }
     }
+  }
 
+  /**
+   * Run the servants until every chunk is written, then flush the output
+   */
+  private void download() throws IOException, InterruptedException {
     //Print some inspirational quote just because.
-    System.out.println("");
-    System.out.println(CommandLine.Help.Ansi.AUTO.string(
+    log("");
+    log(CommandLine.Help.Ansi.AUTO.string(
             "@|fg(208) I, as the God of Destruction, will condemn them for their sins based on the rules I've set...|@"
             + "@|fg(243)  - Alastor (3E18-09:45)|@"));
-    System.out.println("");
+    log("");
 
-    //And may the deluge begins.
-    int threads = params.getConns();
-    executor = Executors.newFixedThreadPool(threads);
-    for (int i = 0; i < threads; i++) {
-      FlameServant servant = new FlameServant(params.isNotls(), params.getAddress());
-      servants.add(servant);
-      executor.submit(servant);
+    if (samplesFile != null) {
+      try {
+        stats.streamSamplesTo(samplesFile);
+      } catch (IOException ex) {
+        System.err.println("Cannot write samples to " + samplesFile + " - " + ex.getLocalizedMessage());
+      }
     }
 
-    //Dont forget to shut down
-    executor.shutdown();
+    long interval = Math.max(50, progressIntervalMillis);
+    ScheduledFuture<?> progressTicks = engine.getTicker().scheduleAtFixedRate(this::publishProgress, interval, interval, TimeUnit.MILLISECONDS);
+    ScheduledFuture<?> sampleTicks = engine.getTicker().scheduleAtFixedRate(stats::sample, 1, 1, TimeUnit.SECONDS);
+
+    //And may the deluge begins, each servant as soon as its connection is up.
+    List<ManagedChannel> channels = engine.channels(address, notls, conns);
+    Map<ManagedChannel, FlameServant> byChannel = new HashMap();
+    synchronized (servants) {
+      for (ManagedChannel channel : channels) {
+        FlameServant servant = new FlameServant(this, channel, stats.newServant());
+        servants.add(servant);
+        byChannel.put(channel, servant);
+      }
+    }
+    List<Future<?>> running = Collections.synchronizedList(new ArrayList());
+    engine.warmUp(channels, (channel) -> running.add(engine.getExecutor().submit(byChannel.get(channel))));
+    stats.connected();
+    log("Connections ready after " + stats.getConnectMillis() + " ms");
+
     try {
-      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
-        printProgressInfo();
+      for (Future<?> servant : running) {
+        try {
+          servant.get();
+        } catch (ExecutionException ex) {
+          System.err.println("Servant failed: " + ex.getCause());
+        }
       }
-      Thread.sleep(2000);
     } catch (InterruptedException ex) {
-      executor.shutdownNow();
-      Thread.currentThread().interrupt();
+      cancelled = true;
+      throw ex;
+    } finally {
+      progressTicks.cancel(false);
+      sampleTicks.cancel(false);
     }
-    
-    printProgressInfo();
-    System.out.println(CommandLine.Help.Ansi.AUTO.string("@|cyan Download successful. |@"));
-    System.out.println("");
 
+    //the speed window belongs to the ticker thread, so the last publish runs there too
+    ProgressSnapshot last;
+    try {
+      last = engine.getTicker().submit(() -> {
+        stats.finish();
+        return publishProgress();
+      }).get();
+    } catch (ExecutionException ex) {
+      throw new IOException("Cannot publish progress", ex.getCause());
+    }
+    if (cancelled || chunksDone.get() < chunksLength) {
+      notifyFinished(last, false);
+      throw new IOException(failure != null ? failure : "Download of " + filename + " cancelled");
+    }
+    try {
+      sink.finish();
+    } catch (IOException ex) {
+      notifyFinished(last, false);
+      throw new IOException("Cannot flush " + fileInfo.getFileName() + " - " + ex.getLocalizedMessage(), ex);
+    }
+    notifyFinished(last, true);
+    log(CommandLine.Help.Ansi.AUTO.string("@|cyan Download successful. |@"));
+    if (sink instanceof StreamSink) {
+      log("Reorder buffer peaked at " + ((StreamSink) sink).getPeakBuffered() / 1024 + " kB");
+    }
+    MemoryBudget budget = engine.getMemoryBudget();
+    log("Memory in flight peaked at " + budget.getPeak() / 1024 + " of " + budget.getLimit() / 1024 + " kB"
+            + (stats.getBudgetStalls() > 0 ? ", requests waited for memory " + stats.getBudgetStalls() + " times" : ""));
+    log("First data after " + stats.getFirstByteMillis() + " ms, full throughput after " + stats.getFullThroughputSeconds() + " s");
+    if (merkleRoot != null) {
+      log("Every chunk has been verified against the Merkle root.");
+    }
+    log("");
+
+    if (reportFile != null) {
+      try {
+        stats.writeReport(reportFile, fileInfo.getFileName(), fileInfo.getFileSize(), chunkSize);
+        log("Transfer report written to " + reportFile);
+      } catch (IOException ex) {
+        System.err.println("Cannot write report to " + reportFile + " - " + ex.getLocalizedMessage());
+      }
+    }
+    result.complete(last);
   }
   
-  private static synchronized void printProgressInfo() {
-    
-    InfoPrinter.updateLastSecond(lastSecondChunks);
-    lastSecondChunks = 0;
-    
-    long chunksGot = 0;
-    for (ChunkTracker chunk : chunks) {
-      if (chunk.getStatus() == ChunkTracker.STATUS.written) {
-        chunksGot++;
+  /**
+   * Register a listener for the progress of the download, before it starts
+   *
+   * @param listener the listener
+   */
+  public void addProgressListener(ProgressListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Build a snapshot from the counters and hand it to every listener
+   *
+   * @return the snapshot
+   */
+  private ProgressSnapshot publishProgress() {
+    long now = System.nanoTime();
+    long bytes = bytesDone.get();
+    speedWindow.addLast(new long[]{now, bytes});
+    while (speedWindow.size() > 2 && now - speedWindow.peekFirst()[0] > 5_000_000_000L) {
+      speedWindow.removeFirst();
+    }
+    long[] oldest = speedWindow.peekFirst();
+    long speed = now > oldest[0] ? (bytes - oldest[1]) * 1_000_000_000L / (now - oldest[0]) : 0;
+    ProgressSnapshot snapshot = new ProgressSnapshot((now - startNanos) / 1_000_000, fileInfo.getFileName(), fileInfo.getFileTimestamp(),
+            fileInfo.getFileSize(), chunkSize, chunksDone.get(), chunksLength, bytes, speed,
+            activeServants.get(), conns, stats.totalRetries());
+    for (ProgressListener listener : listeners) {
+      try {
+        listener.onProgress(snapshot);
+      } catch (RuntimeException ex) {
+        InfoPrinter.printErrThreadSafe("Progress listener failed: " + ex);
+      }
+    }
+    return snapshot;
+  }
+
+  private void notifyFinished(ProgressSnapshot snapshot, boolean success) {
+    for (ProgressListener listener : listeners) {
+      try {
+        listener.onFinished(snapshot, success);
+      } catch (RuntimeException ex) {
+        InfoPrinter.printErrThreadSafe("Progress listener failed: " + ex);
       }
     }
-    
-    InfoPrinter.printDlInfo(
-            params.isNotls(), 
-            params.getAddress(), 
-            fileInfo.getFileName(), 
-            fileInfo.getFileTimestamp(), 
-            fileInfo.getFileSize(), 
-            chunksGot, 
-            chunksLength, 
-            chunkSize, 
-            activeServants, 
-            params.getConns());
-    
-    //return String.format("%d s | %d kB/s | %d/%d chunks | %d active connections", secondsWaited, speed, chunksGot, chunksLength, activeServants);
   }
   
-  public static String getServantInfo() {
+  public String getServantInfo() {
     StringBuilder sb = new StringBuilder();
     int servantNumber = 0;
-    for (FlameServant servant : servants) {
-      if (servantNumber %50 == 0) {
-        sb.append("\n  ");
+    synchronized (servants) {
+      for (FlameServant servant : servants) {
+        if (servantNumber %50 == 0) {
+          sb.append("\n  ");
+        }
+        servantNumber++;
+        sb.append(servant.getLoadingIndicator());
       }
-      servantNumber++;
-      sb.append(servant.getLoadingIndicator());
     }
     sb.append("\n");
     return sb.toString();
   }
 
+  private void initChunks(long fileSize) {
+    chunks.clear();
+    chunksLength = fileSize / chunkSize;
+    if (fileSize%chunkSize != 0) {
+      chunksLength += 1; // if the last chunk will not fill the entire chunkSize allocation
+    }
+    for (int i=0; i<chunksLength; i++) {
+      chunks.add(new ChunkTracker(i));
+    }
+  }
+
+  /**
+   * Set up chunk tracking and the output file without talking to a server, for the benchmarks
+   *
+   * @param chunkBytes chunk size in bytes
+   * @param fileSize size of the file to track
+   * @param output file chunks are written to
+   * @return a download that is never started
+   */
+  static FlameWeaver prepare(int chunkBytes, long fileSize, FileHandler output) {
+    FlameWeaver weaver = new Builder(null).address("").key("").file("").chunkSize(chunkBytes).build();
+    weaver.initChunks(fileSize);
+    weaver.fh = output;
+    weaver.sink = output == null ? null : new ChannelSink(output, new BufferPool(256 * 1024, 4 * Runtime.getRuntime().availableProcessors()));
+    return weaver;
+  }
+
+  List<ChunkTracker> getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Mark the chunks an existing local copy already has as written, so that only the others are downloaded
+   *
+   * @param output the local copy
+   */
+  private void sync(String output) throws IOException, InterruptedException {
+    log("Fetching chunk manifest...");
+    byte[] manifest = manifestQuery();
+    if (manifest == null) {
+      log("Cannot sync, downloading the whole file");
+      return;
+    }
+    if (merkleRoot != null && !MessageDigest.isEqual(new MerkleTree(manifest).getRoot(), merkleRoot)) {
+      log("Chunk manifest does not match the Merkle root, downloading the whole file");
+      return;
+    }
+    try {
+      long start = System.nanoTime();
+      BitSet matching = LocalSync.matchingChunks(output, fileInfo.getFileSize(), chunkSize, manifest);
+      if (fh.getChannel().size() > fileInfo.getFileSize()) {
+        fh.setLength(fileInfo.getFileSize());
+      }
+      for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+        if (chunks.get(i).setWritten()) {
+          chunkWritten(chunkLength(i));
+        }
+      }
+      log("Local copy has " + matching.cardinality() + " of " + chunksLength + " chunks up to date (checked in "
+              + (System.nanoTime() - start) / 1_000_000 + " ms), downloading " + (chunksLength - matching.cardinality()) + " chunks");
+    } catch (IOException ex) {
+      System.err.println("Cannot read local copy, downloading the whole file - " + ex.getLocalizedMessage());
+      for (ChunkTracker chunk : chunks) {
+        chunk.reset();
+      }
+      chunksDone.set(0);
+      bytesDone.set(0);
+    }
+  }
+
   /* ==============================================================================================================
    * Stuff that are going to be accessed by the servants are here
    */
   
-  public static synchronized void notifyServantActive() {
-    activeServants++;
+  public void notifyServantActive() {
+    activeServants.incrementAndGet();
   }
   
-  public static synchronized void notifyServantDead() {
-    activeServants--;
+  public void notifyServantDead() {
+    activeServants.decrementAndGet();
   }
 
   /**
-   * See if there's still work to do To be used by the servants
+   * To be used by servants once a chunk is written, for the progress
+   *
+   * @param size chunk size in bytes
+   */
+  public void chunkWritten(long size) {
+    chunksDone.incrementAndGet();
+    bytesDone.addAndGet(size);
+  }
+
+  /**
+   * To be used by servants before requesting a chunk: wait until the memory budget allows what the request may
+   * receive, the whole chunk or, when streamed, a fragment at a time
+   *
+   * @param chunk the chunk about to be requested
+   * @param servantStats telemetry of the servant asking
+   * @return bytes taken, to be given back with releaseMemory() once the chunk is written
+   * @throws InterruptedException
+   */
+  long acquireMemory(ChunkTracker chunk, TransferStats.Servant servantStats) throws InterruptedException {
+    long bytes = chunkLength(chunk.getOffset());
+    if (streamed) {
+      bytes = Math.min(bytes, fileInfo.getFragmentSize());
+    }
+    long waited = engine.getMemoryBudget().acquire(bytes);
+    if (waited > 0) {
+      servantStats.budgetStall(waited);
+    }
+    return bytes;
+  }
+
+  void releaseMemory(long bytes) {
+    engine.getMemoryBudget().release(bytes);
+  }
+
+  private long chunkLength(long chunkOffset) {
+    return Math.min(chunkSize, fileInfo.getFileSize() - chunkOffset * chunkSize);
+  }
+
+  /**
+   * See if there's still work to do
    *
    * @return
    */
-  public static synchronized ChunkTracker getNextReadyChunk() {
+  public synchronized ChunkTracker getNextReadyChunk() {
     for (ChunkTracker chunk : chunks) {
       if (chunk.getStatus() == ChunkTracker.STATUS.ready) {
         return chunk;
@@ -204,6 +780,36 @@ public class FlameWeaver {
     return null;
   }
 
+  /**
+   * Find the next chunk to download and assign it, in one step so that no two servants get the same chunk.
+   * To be used by the servants
+   *
+   * @param servant the servant asking
+   * @return the chunk, null if there is nothing left to do or the download is cancelled
+   */
+  public synchronized ChunkTracker claimNextChunk(FlameServant servant) throws InterruptedException {
+    while (!cancelled) {
+      ChunkTracker nextChunk = getNextReadyChunk();
+      if (nextChunk == null) {
+        return null;
+      }
+      //the lowest chunk goes first, and none past what the sink can buffer: wait for it to drain instead
+      if ((nextChunk.getOffset() + 1) * chunkSize <= sink.writableUntil()) {
+        nextChunk.assign(servant);
+        return nextChunk;
+      }
+      wait(100);
+    }
+    return null;
+  }
+
+  /**
+   * Wake servants waiting for room in the sink
+   */
+  private synchronized void frontierAdvanced() {
+    notifyAll();
+  }
+
   /**
    * To be used by servants to submit completed chunks
    *
@@ -211,9 +817,91 @@ public class FlameWeaver {
    * @param chunkOffset
    * @throws java.io.IOException
    */
-  public synchronized static void submitChunk(FileData chunkData, long chunkOffset) throws IOException {
-    fh.writeOffset(chunkOffset*chunkSize, chunkData.getChunkData().toByteArray());
-    lastSecondChunks++;
+  public void submitChunk(FileData chunkData, long chunkOffset) throws IOException {
+    try {
+      sink.write(chunkOffset*chunkSize, chunkData.getChunkData());
+    } catch (IOException ex) {
+      if (streamOut != null) {
+        fail("Output closed: " + ex.getLocalizedMessage()); //a stream cannot be written again, retrying is pointless
+      }
+      throw ex;
+    }
+  }
+  
+  /**
+   * To be used by servants to write a fragment of a streamed chunk as soon as it arrives
+   *
+   * @param chunkOffset chunk index
+   * @param fragmentOffset offset of the fragment within the chunk
+   * @param data the fragment
+   * @throws java.io.IOException
+   */
+  public void submitFragment(long chunkOffset, long fragmentOffset, ByteString data) throws IOException {
+    sink.write(chunkOffset*chunkSize + fragmentOffset, data);
+  }
+
+  public String getFileHandle() {
+    return fileHandle;
+  }
+
+  /**
+   * To be used by servants when the server no longer knows our file handle, such as after it restarted.
+   * A new one is asked for, and the download fails if the file is not the same version anymore.
+   *
+   * @param stale the handle the server refused
+   * @throws InterruptedException
+   */
+  public void renewHandle(String stale) throws InterruptedException {
+    //not on the weaver's own lock, servants keep claiming chunks meanwhile
+    synchronized (handleLock) {
+      if (!stale.equals(fileHandle) || cancelled) {
+        return; //another servant got there first
+      }
+      FileInfo info;
+      try {
+        info = fileQuery();
+      } catch (StatusRuntimeException | IOException ex) {
+        return; //try again on the next refusal
+      }
+      if (info.getError().getCode() != 0
+              || info.getFileSize() != fileInfo.getFileSize() || info.getFileTimestamp() != fileInfo.getFileTimestamp()) {
+        fail("File changed on the server during the download");
+        return;
+      }
+      fileHandle = info.getFileHandle();
+    }
+  }
+
+  /**
+   * Give up on the download for a reason the servants cannot recover from
+   *
+   * @param reason what went wrong
+   */
+  public void fail(String reason) {
+    if (failure == null) {
+      failure = reason;
+    }
+    cancelled = true;
+  }
+
+  public boolean isStreamed() {
+    return streamed;
+  }
+
+  public boolean isVerifying() {
+    return merkleRoot != null;
+  }
+
+  /**
+   * Check a chunk against the Merkle root of the file
+   *
+   * @param chunkOffset chunk index
+   * @param chunkDigest SHA-256 of the chunk data
+   * @param proof the chunk's proof as sent by the server
+   * @return whether the chunk belongs in the file, always true when not verifying
+   */
+  public boolean verifyChunk(long chunkOffset, byte[] chunkDigest, ByteString proof) {
+    return merkleRoot == null || MerkleTree.verify(chunkDigest, chunkOffset, chunksLength, proof.toByteArray(), merkleRoot);
   }
   
   /**
@@ -223,7 +911,7 @@ public class FlameWeaver {
    * @return 
    */
   public static boolean validateData(FileData fd) {
-    long fileSum = Tools.makeCRC32(fd.getChunkData().toByteArray());
+    long fileSum = Tools.makeCRC32(fd.getChunkData());
     return fd.getChunkCrc32() == fileSum;
   }
 
@@ -234,41 +922,111 @@ public class FlameWeaver {
    * Query a file information from the server
    *
    */
-  private static FileInfo fileQuery() throws InterruptedException {
-    ManagedChannel queryChannel;
+  private FileInfo fileQuery() throws IOException {
+    //the first channel of the pool, which then carries chunks like the others
+    AlastorBlockingStub blockingStub = AlastorGrpc.newBlockingStub(queryChannel());
 
-    //Check if we're operating on TLS
-    if (params.isNotls()) {
-      queryChannel = ManagedChannelBuilder.forTarget(params.getAddress())
-              .usePlaintext()
-              .build();
-    } else {
-      queryChannel = ManagedChannelBuilder.forTarget(params.getAddress())
-              .build();
+    FileQuery request = FileQuery.newBuilder()
+            .setApiKey(clientKey)
+            .setRequestedFilename(filename)
+            .setChunkSize(verify ? chunkSize : 0)
+            .build();
+    FileInfo response;
 
-      //Then send the gRPC
-    }
     try {
-      AlastorBlockingStub blockingStub = AlastorGrpc.newBlockingStub(queryChannel);
+      response = blockingStub.getFileInfo(request);
+    } catch (StatusRuntimeException e) {
+      if (verbose) {
+        System.err.printf("RPC failed: %s%n", e.getStatus());
+      }
+      throw e;
+    }
 
-      FileQuery request = FileQuery.newBuilder()
-              .setApiKey(params.getClientKey())
-              .setRequestedFilename(params.getFilename())
-              .build();
-      FileInfo response;
+    return response;
+  }
 
-      try {
-        response = blockingStub.getFileInfo(request);
-      } catch (StatusRuntimeException e) {
-        System.err.printf("RPC failed: %s", e.getStatus());
-        throw e;
-      }
+  /**
+   * Query the SHA-256 of every chunk of the file from the server
+   *
+   * @return the concatenated digests, null if the server could not provide them for the file we are getting
+   */
+  private byte[] manifestQuery() throws IOException {
+    AlastorBlockingStub blockingStub = AlastorGrpc.newBlockingStub(queryChannel());
 
-      return response;
-    } finally {
-      queryChannel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    ManifestQuery request = ManifestQuery.newBuilder()
+            .setApiKey(clientKey)
+            .setRequestedFilename(filename)
+            .setChunkSize(chunkSize)
+            .build();
+    if (chunksLength * 32 > Integer.MAX_VALUE - 8) {
+      System.err.println("File has " + chunksLength + " chunks, too many for a manifest; use bigger chunks to sync");
+      return null;
+    }
+    byte[] digests = new byte[(int) (chunksLength * 32)];
+    long received = 0;
+
+    try {
+      //the server may have to hash the whole file first
+      Iterator<ChunkManifest> parts = blockingStub.withDeadlineAfter(1, TimeUnit.HOURS).getChunkManifest(request);
+      while (parts.hasNext()) {
+        ChunkManifest part = parts.next();
+        if (part.getError().getCode() != 0) {
+          System.err.println("Manifest error " + part.getError().getCode() + ": " + part.getError().getMsg());
+          return null;
+        }
+        if (part.getFileSize() != fileInfo.getFileSize() || part.getFileTimestamp() != fileInfo.getFileTimestamp()) {
+          System.err.println("File changed on the server while syncing");
+          return null;
+        }
+        byte[] data = part.getChunkSha256().toByteArray();
+        if (part.getFirstChunk() < 0 || part.getFirstChunk() * 32 + data.length > digests.length) {
+          System.err.println("Manifest does not fit the file");
+          return null;
+        }
+        System.arraycopy(data, 0, digests, (int) part.getFirstChunk() * 32, data.length);
+        received += data.length;
+      }
+    } catch (StatusRuntimeException e) {
+      System.err.printf("RPC failed: %s%n", e.getStatus());
+      return null;
     }
 
+    return received == digests.length ? digests : null;
+  }
+
+  /**
+   * @return largest message the servants accept, as negotiated with the server
+   */
+  int getMaxInboundMessageSize() {
+    return maxInboundMessageSize;
+  }
+
+  /**
+   * Channel for one-off queries: the first one of the pool, which the servants use too
+   */
+  private ManagedChannel queryChannel() throws IOException {
+    return engine.channels(address, notls, 1).get(0);
+  }
+
+  /**
+   * Query a streamed chunk, using worker's own stubs.
+   * The deadline grows with the chunk size, as a big chunk takes a while even on a healthy link.
+   *
+   * @param stub
+   * @param chunkOffset
+   * @return the fragments, in order
+   */
+  public Iterator<FileData> dataStreamQuery(AlastorBlockingStub stub, long chunkOffset) {
+    DataQuery request = DataQuery.newBuilder()
+            .setApiKey(clientKey)
+            .setRequestedFilename(filename)
+            .setChunkSize(chunkSize)
+            .setChunkOffset(chunkOffset)
+            .setWithProof(merkleRoot != null)
+            .setFileHandle(fileHandle)
+            .build();
+    long deadlineSeconds = 15 + chunkSize / (256 * 1024);
+    return stub.withDeadlineAfter(deadlineSeconds, TimeUnit.SECONDS).getFileDataStream(request);
   }
 
   /**
@@ -278,19 +1036,21 @@ public class FlameWeaver {
    * @param chunkOffset
    * @return
    */
-  public static FileData dataQuery(AlastorBlockingStub stub, long chunkOffset) {
+  public FileData dataQuery(AlastorBlockingStub stub, long chunkOffset) {
     DataQuery request = DataQuery.newBuilder()
-            .setApiKey(params.getClientKey())
-            .setRequestedFilename(params.getFilename())
-            .setChunkSize(params.getChunkSizeInBytes())
+            .setApiKey(clientKey)
+            .setRequestedFilename(filename)
+            .setChunkSize(chunkSize)
             .setChunkOffset(chunkOffset)
+            .setWithProof(merkleRoot != null)
+            .setFileHandle(fileHandle)
             .build();
     FileData response;
     try {
       response = stub.withDeadlineAfter(15, TimeUnit.SECONDS).getFileData(request);
       return response;
     } catch (StatusRuntimeException e) {
-      if (e.getStatus().getCode() != Code.DEADLINE_EXCEEDED) {
+      if (verbose && e.getStatus().getCode() != Code.DEADLINE_EXCEEDED && e.getStatus().getCode() != Code.RESOURCE_EXHAUSTED) {
         System.err.printf("RPC failed: %s", e.getStatus());
       }
       throw e;
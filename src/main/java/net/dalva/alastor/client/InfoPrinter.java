@@ -18,7 +18,6 @@
 package net.dalva.alastor.client;
 
 import java.text.SimpleDateFormat;
-import java.util.Date;
 import net.dalva.alastor.Main;
 import picocli.CommandLine;
 import picocli.CommandLine.Help.Ansi;
@@ -29,61 +28,17 @@ import picocli.CommandLine.Help.Ansi;
  */
 public class InfoPrinter {
 
-  private static long startTimestamp = new Date().getTime();
-  
   private static final Object PRINT_MUTEX = new Object();
 
-  private static int[] lastChnkDl = {0, 0, 0, 0, 0};
-  private static int lastIdx = 0;
-
-  /**
-   * Update last second chunk download amount
-   *
-   * @param chunksDownloaded
-   */
-  public static void updateLastSecond(int chunksDownloaded) {
-    lastChnkDl[lastIdx] = chunksDownloaded;
-    lastIdx = (lastIdx+1)%5;
-  }
-
-  /**
-   * averages last 5 seconds of downloaded chunks count
-   *
-   * @return
-   */
-  public static int getAverageChunks() {
-    int avgSpeed = 0;
-    for (int last : lastChnkDl) {
-      avgSpeed += last;
-    }
-    return avgSpeed / 5;
-  }
-
   /**
    * Print Download Information
    *
+   * @param snapshot progress to print
    * @param notTLS
    * @param addressPort
-   * @param fname
-   * @param ModDate
-   * @param totSizeBytes
-   * @param dlChunk
-   * @param totChunk
-   * @param chunkSizeBytes
-   * @param activeConn
-   * @param maxConn
+   * @param connectionGrid per-connection indicators, or null to leave them out
    */
-  public static void printDlInfo(
-          boolean notTLS,
-          String addressPort,
-          String fname,
-          long ModDate,
-          long totSizeBytes,
-          long dlChunk,
-          long totChunk,
-          int chunkSizeBytes,
-          int activeConn,
-          int maxConn) {
+  public static void printDlInfo(ProgressSnapshot snapshot, boolean notTLS, String addressPort, String connectionGrid) {
     
     SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS Z");
     StringBuilder sb = new StringBuilder();
@@ -94,27 +49,19 @@ public class InfoPrinter {
     } else {
       sb.append(String.format("Connection      : %s %s\n", Ansi.AUTO.string("@|cyan TLS|@"), addressPort));
     }
-    sb.append(String.format("Downloading     : %s\n", fname));
-    sb.append(String.format("Last Modified   : %s\n", format.format(ModDate)));
-    double percentComplete = ((double)dlChunk/(double)totChunk * 100);
-    long dlSizeMB = (dlChunk-1)*chunkSizeBytes/1024/1024;
-    long totSizeMB = totSizeBytes/1024/1024;
+    sb.append(String.format("Downloading     : %s\n", snapshot.getFileName()));
+    sb.append(String.format("Last Modified   : %s\n", format.format(snapshot.getFileTimestamp())));
     sb.append(String.format("Size (DL/Tot)   : %d/%d MB (%s)\n", 
-            dlSizeMB, 
-            totSizeMB, 
-            CommandLine.Help.Ansi.AUTO.string("@|cyan " + String.format("%.2f%%", percentComplete) + "|@")));
-    sb.append(String.format("Chunks (DL/Tot) : %d/%d @ %d kB each\n", dlChunk, totChunk, chunkSizeBytes/1024));
-    int dlSpeedKBps = getAverageChunks() * chunkSizeBytes / 1024;
-    sb.append(String.format("Speed (5s avg)  : %d kB/s\n", dlSpeedKBps));
-    if (dlSpeedKBps == 0) {
-      sb.append(String.format("Elapsed / ETA   : %s / inf\n", getElapsedTime()));
-    } else {
-      long etaSeconds = (totSizeMB - dlSizeMB) * 1024 / dlSpeedKBps;
-      sb.append(String.format("Elapsed / ETA   : %s / %s\n", getElapsedTime(), convertToHHMMSS(etaSeconds)));
-    }
+            snapshot.getBytesDone() / 1024 / 1024, 
+            snapshot.getFileSize() / 1024 / 1024, 
+            CommandLine.Help.Ansi.AUTO.string("@|cyan " + String.format("%.2f%%", snapshot.getPercent()) + "|@")));
+    sb.append(String.format("Chunks (DL/Tot) : %d/%d @ %d kB each\n", snapshot.getChunksDone(), snapshot.getTotalChunks(), snapshot.getChunkSize() / 1024));
+    sb.append(String.format("Speed (5s avg)  : %d kB/s\n", snapshot.getBytesPerSecond() / 1024));
+    long eta = snapshot.getEtaSeconds();
+    sb.append(String.format("Elapsed / ETA   : %s / %s\n", convertToHHMMSS(snapshot.getElapsedMillis() / 1000), eta < 0 ? "inf" : convertToHHMMSS(eta)));
     sb.append(String.format("------------------------------------------------------\n"));
-    sb.append(String.format("Connections : %d/%d (active/total)", activeConn, maxConn));
-    sb.append(String.format(FlameWeaver.getServantInfo()));
+    sb.append(String.format("Connections : %d/%d (active/total), %d retries", snapshot.getActiveConnections(), snapshot.getConnections(), snapshot.getRetries()));
+    sb.append(connectionGrid != null ? connectionGrid : "\n");
     sb.append(String.format("======================================================\n"));
     synchronized (PRINT_MUTEX) {
       System.out.println(sb.toString());
@@ -128,15 +75,6 @@ public class InfoPrinter {
     }
   }
 
-  public static void resetTimer() {
-    startTimestamp = new Date().getTime();
-  }
-
-  private static String getElapsedTime() {
-    int seconds = (int) (new Date().getTime() - startTimestamp) / 1000;
-    return convertToHHMMSS(seconds);
-  }
-
   private static String convertToHHMMSS(long seconds) {
     return String.format("%02d:%02d:%02d",
             seconds / 3600,
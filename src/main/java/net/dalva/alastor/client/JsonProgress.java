@@ -0,0 +1,50 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import java.io.PrintStream;
+
+/**
+ * Headless progress, as one compact JSON object per line, for scripts
+ *
+ * @author Dalva
+ */
+public class JsonProgress implements ProgressListener {
+
+  private final PrintStream out;
+
+  /**
+   * @param out where to write the lines
+   */
+  public JsonProgress(PrintStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public void onProgress(ProgressSnapshot snapshot) {
+    out.println(snapshot.toJson("progress"));
+    out.flush();
+  }
+
+  @Override
+  public void onFinished(ProgressSnapshot snapshot, boolean success) {
+    out.println(snapshot.toJson(success ? "finished" : "failed"));
+    out.flush();
+  }
+
+}
@@ -0,0 +1,122 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds which chunks of an existing local copy already match the server's, by hashing it in parallel
+ *
+ * @author Dalva
+ */
+public class LocalSync {
+
+  private static final int DIGEST_LENGTH = 32;
+  private static final int READ_SIZE = 1024 * 1024;
+
+  /**
+   * Hash the local file chunk by chunk and compare with the server's manifest
+   *
+   * @param fname local file
+   * @param fileSize size of the server's file
+   * @param chunkSize chunk size in bytes
+   * @param manifest the server's concatenated chunk SHA-256 digests
+   * @return the chunks that are identical locally
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static BitSet matchingChunks(String fname, long fileSize, int chunkSize, byte[] manifest) throws IOException, InterruptedException {
+    int chunks = manifest.length / DIGEST_LENGTH;
+    BitSet matching = new BitSet(chunks);
+    File file = new File(fname);
+    long localSize = file.length();
+    if (localSize == 0 || chunks == 0) {
+      return matching;
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      int slices = Math.min(chunks, threads * 4);
+      List<Future<BitSet>> parts = new ArrayList();
+      for (int s = 0; s < slices; s++) {
+        int from = (int) ((long) chunks * s / slices);
+        int to = (int) ((long) chunks * (s + 1) / slices);
+        parts.add(pool.submit(() -> compareRange(channel, Math.min(fileSize, localSize), fileSize, chunkSize, from, to, manifest)));
+      }
+      for (Future<BitSet> part : parts) {
+        matching.or(part.get());
+      }
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) ex.getCause()).getCause() : new IOException(ex.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return matching;
+  }
+
+  private static BitSet compareRange(FileChannel channel, long readable, long fileSize, int chunkSize, int from, int to, byte[] manifest) {
+    BitSet matching = new BitSet();
+    byte[] digest = new byte[DIGEST_LENGTH];
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      ByteBuffer buf = ByteBuffer.allocate(Math.min(chunkSize, READ_SIZE));
+      for (int i = from; i < to; i++) {
+        long position = (long) i * chunkSize;
+        long end = Math.min(fileSize, position + chunkSize);
+        if (end > readable) {
+          break; //the local copy is too short for this chunk and every one after
+        }
+        while (position < end) {
+          buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+          int n = channel.read(buf, position);
+          if (n < 0) {
+            throw new IOException("Local file shrank while hashing");
+          }
+          md.update(buf.array(), 0, n);
+          position += n;
+        }
+        md.digest(digest, 0, DIGEST_LENGTH);
+        if (Arrays.equals(digest, 0, DIGEST_LENGTH, manifest, i * DIGEST_LENGTH, (i + 1) * DIGEST_LENGTH)) {
+          matching.set(i);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } catch (NoSuchAlgorithmException | DigestException ex) {
+      throw new IllegalStateException(ex);
+    }
+    return matching;
+  }
+
+}
@@ -0,0 +1,93 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.dalva.alastor.FileHandler;
+
+/**
+ * Copies chunks into memory-mapped windows of a preallocated file.
+ *
+ * Windows are mapped on first use and never unmapped before the end, so servants only ever race to map one and
+ * otherwise write without any lock, each through its own view of the window.
+ *
+ * @author Dalva
+ */
+public class MappedSink implements ChunkSink {
+
+  private static final long WINDOW = 256L * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long fileSize;
+  private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+  public MappedSink(FileHandler fh, long fileSize) {
+    this.channel = fh.getChannel();
+    this.fileSize = fileSize;
+    this.windows = new AtomicReferenceArray((int) ((fileSize + WINDOW - 1) / WINDOW));
+  }
+
+  @Override
+  public void write(long position, ByteString data) throws IOException {
+    if (position < 0 || position + data.size() > fileSize) {
+      throw new IOException("Attempting to write outside file range");
+    }
+    for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+      while (buffer.hasRemaining()) {
+        int index = (int) (position / WINDOW);
+        int offset = (int) (position % WINDOW);
+        ByteBuffer view = window(index).duplicate();
+        view.position(offset);
+        int n = Math.min(buffer.remaining(), view.remaining());
+        ByteBuffer part = buffer.duplicate();
+        part.limit(part.position() + n);
+        view.put(part);
+        buffer.position(buffer.position() + n);
+        position += n;
+      }
+    }
+  }
+
+  private MappedByteBuffer window(int index) throws IOException {
+    MappedByteBuffer window = windows.get(index);
+    if (window == null) {
+      long start = index * WINDOW;
+      window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW, fileSize - start));
+      if (!windows.compareAndSet(index, null, window)) {
+        window = windows.get(index); //someone else mapped it first, ours goes away with the garbage
+      }
+    }
+    return window;
+  }
+
+  @Override
+  public void finish() throws IOException {
+    for (int i = 0; i < windows.length(); i++) {
+      MappedByteBuffer window = windows.get(i);
+      if (window != null) {
+        window.force();
+      }
+    }
+  }
+
+}
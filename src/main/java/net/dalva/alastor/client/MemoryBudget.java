@@ -0,0 +1,86 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+/**
+ * Bounds the chunk data held in memory by every connection of an engine together.
+ *
+ * A servant takes what its next request may receive before sending it, and gives it back once the data is written,
+ * so memory follows the budget rather than connections times chunk size. A request bigger than the whole budget is
+ * let through alone, so nothing waits forever.
+ *
+ * @author Dalva
+ */
+public class MemoryBudget {
+
+  private final long limit;
+
+  private long used = 0;
+  private long peak = 0;
+
+  /**
+   * @param limit most bytes in flight at once
+   */
+  public MemoryBudget(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Take bytes from the budget, waiting until they are available
+   *
+   * @param bytes bytes about to be received
+   * @return nanoseconds spent waiting for them
+   * @throws InterruptedException
+   */
+  public synchronized long acquire(long bytes) throws InterruptedException {
+    long waited = 0;
+    if (used > 0 && used + bytes > limit) {
+      long start = System.nanoTime();
+      while (used > 0 && used + bytes > limit) {
+        wait();
+      }
+      waited = System.nanoTime() - start;
+    }
+    used += bytes;
+    peak = Math.max(peak, used);
+    return waited;
+  }
+
+  /**
+   * Give bytes back to the budget
+   *
+   * @param bytes what was acquired
+   */
+  public synchronized void release(long bytes) {
+    used -= bytes;
+    notifyAll();
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+}
@@ -0,0 +1,44 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+/**
+ * Receives the progress of a download, from a single thread at a fixed rate.
+ * Snapshots are built from counters that servants update without locking, so listening costs them nothing.
+ *
+ * @author Dalva
+ */
+public interface ProgressListener {
+
+  /**
+   * Called at every progress tick
+   *
+   * @param snapshot progress at the tick
+   */
+  void onProgress(ProgressSnapshot snapshot);
+
+  /**
+   * Called once when the download is over
+   *
+   * @param snapshot final progress
+   * @param success whether the whole file has been written
+   */
+  default void onFinished(ProgressSnapshot snapshot, boolean success) {
+  }
+
+}
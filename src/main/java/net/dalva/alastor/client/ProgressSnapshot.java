@@ -0,0 +1,146 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import java.util.Locale;
+
+/**
+ * Progress of a download at one point in time. Immutable, so listeners may keep it or hand it to other threads.
+ *
+ * @author Dalva
+ */
+public class ProgressSnapshot {
+
+  private final long elapsedMillis;
+  private final String fileName;
+  private final long fileTimestamp;
+  private final long fileSize;
+  private final int chunkSize;
+  private final long chunksDone;
+  private final long totalChunks;
+  private final long bytesDone;
+  private final long bytesPerSecond;
+  private final int activeConnections;
+  private final int connections;
+  private final long retries;
+
+  /**
+   * @param elapsedMillis time since the download started
+   * @param fileName name of the file
+   * @param fileTimestamp last modified time of the file on the server
+   * @param fileSize size of the file in bytes
+   * @param chunkSize chunk size in bytes
+   * @param chunksDone chunks written so far, including those a sync found up to date
+   * @param totalChunks chunks in the file
+   * @param bytesDone bytes of the chunks written so far
+   * @param bytesPerSecond recent download speed
+   * @param activeConnections connections still working
+   * @param connections connections started
+   * @param retries chunk requests that had to be made again
+   */
+  public ProgressSnapshot(long elapsedMillis, String fileName, long fileTimestamp, long fileSize, int chunkSize,
+          long chunksDone, long totalChunks, long bytesDone, long bytesPerSecond, int activeConnections, int connections, long retries) {
+    this.elapsedMillis = elapsedMillis;
+    this.fileName = fileName;
+    this.fileTimestamp = fileTimestamp;
+    this.fileSize = fileSize;
+    this.chunkSize = chunkSize;
+    this.chunksDone = chunksDone;
+    this.totalChunks = totalChunks;
+    this.bytesDone = bytesDone;
+    this.bytesPerSecond = bytesPerSecond;
+    this.activeConnections = activeConnections;
+    this.connections = connections;
+    this.retries = retries;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public long getFileTimestamp() {
+    return fileTimestamp;
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public long getChunksDone() {
+    return chunksDone;
+  }
+
+  public long getTotalChunks() {
+    return totalChunks;
+  }
+
+  public long getBytesDone() {
+    return bytesDone;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  public int getActiveConnections() {
+    return activeConnections;
+  }
+
+  public int getConnections() {
+    return connections;
+  }
+
+  public long getRetries() {
+    return retries;
+  }
+
+  /**
+   * @return completion from 0 to 100
+   */
+  public double getPercent() {
+    return totalChunks == 0 ? 100 : chunksDone * 100.0 / totalChunks;
+  }
+
+  /**
+   * @return estimated seconds left at the recent speed, -1 if unknown
+   */
+  public long getEtaSeconds() {
+    return bytesPerSecond <= 0 ? -1 : Math.max(0, fileSize - bytesDone) / bytesPerSecond;
+  }
+
+  /**
+   * @param event what the snapshot is for, such as "progress" or "finished"
+   * @return the snapshot as a single line of JSON
+   */
+  public String toJson(String event) {
+    return String.format(Locale.ROOT,
+            "{\"event\":\"%s\",\"t_ms\":%d,\"file\":\"%s\",\"file_size\":%d,\"bytes\":%d,\"chunks\":%d,\"total_chunks\":%d,"
+            + "\"percent\":%.2f,\"bytes_per_second\":%d,\"eta_seconds\":%d,\"active\":%d,\"connections\":%d,\"retries\":%d}",
+            event, elapsedMillis, fileName.replace("\\", "\\\\").replace("\"", "\\\""), fileSize, bytesDone, chunksDone, totalChunks,
+            getPercent(), bytesPerSecond, getEtaSeconds(), activeConnections, connections, retries);
+  }
+
+}
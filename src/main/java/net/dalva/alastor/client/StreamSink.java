@@ -0,0 +1,163 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the file strictly in order to a stream, such as stdout into a pipe, as soon as it is contiguous.
+ *
+ * Chunks that land ahead of the frontier wait in a reorder buffer. The buffer is bounded by only letting chunks be
+ * downloaded up to writableUntil(), so servants wait for the frontier instead of running ahead of it. Whoever lands
+ * the chunk at the frontier writes it out along with every buffered chunk that follows, other servants never block on
+ * the stream.
+ *
+ * Data that has been written cannot be taken back, so only whole, verified chunks may be written here.
+ *
+ * @author Dalva
+ */
+public class StreamSink implements ChunkSink {
+
+  private final WritableByteChannel out;
+  private final BufferPool pool;
+  private final long fileSize;
+  private final long bufferBytes;
+  private final Runnable onAdvance;
+  private final TreeMap<Long, ByteString> pending = new TreeMap();
+
+  private long frontier = 0;
+  private long buffered = 0;
+  private long peakBuffered = 0;
+  private boolean draining = false;
+  private IOException broken = null;
+
+  /**
+   * @param out the stream
+   * @param pool direct buffers to write through
+   * @param fileSize size of the whole file
+   * @param bufferBytes most bytes held out of order, at least a chunk
+   * @param onAdvance called every time the frontier moves on, from the thread that moved it
+   */
+  public StreamSink(WritableByteChannel out, BufferPool pool, long fileSize, long bufferBytes, Runnable onAdvance) {
+    this.out = out;
+    this.pool = pool;
+    this.fileSize = fileSize;
+    this.bufferBytes = bufferBytes;
+    this.onAdvance = onAdvance;
+  }
+
+  @Override
+  public void write(long position, ByteString data) throws IOException {
+    synchronized (this) {
+      if (broken != null) {
+        throw broken;
+      }
+      if (position < frontier || pending.containsKey(position)) {
+        return; //a chunk that was downloaded twice
+      }
+      pending.put(position, data);
+      buffered += data.size();
+      peakBuffered = Math.max(peakBuffered, buffered);
+      if (draining || position != frontier) {
+        return;
+      }
+      draining = true;
+    }
+    drain();
+  }
+
+  /**
+   * Write out every chunk at the frontier, until there is a gap
+   */
+  private void drain() throws IOException {
+    while (true) {
+      ByteString next;
+      synchronized (this) {
+        Map.Entry<Long, ByteString> first = pending.firstEntry();
+        if (first == null || first.getKey() != frontier) {
+          draining = false;
+          return;
+        }
+        pending.remove(first.getKey());
+        next = first.getValue();
+      }
+      ByteBuffer buffer = null;
+      try {
+        buffer = pool.take();
+        for (int from = 0; from < next.size(); from += buffer.capacity()) {
+          buffer.clear();
+          next.substring(from, Math.min(next.size(), from + buffer.capacity())).copyTo(buffer);
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            out.write(buffer);
+          }
+        }
+      } catch (IOException ex) {
+        synchronized (this) {
+          broken = ex;
+          draining = false;
+          pending.clear();
+          buffered = 0;
+        }
+        throw ex;
+      } finally {
+        if (buffer != null) {
+          pool.give(buffer);
+        }
+      }
+      synchronized (this) {
+        frontier += next.size();
+        buffered -= next.size();
+      }
+      onAdvance.run();
+    }
+  }
+
+  @Override
+  public synchronized long writableUntil() {
+    return frontier + bufferBytes;
+  }
+
+  @Override
+  public boolean acceptsPartialChunks() {
+    return false;
+  }
+
+  /**
+   * @return most bytes that were held out of order at once
+   */
+  public synchronized long getPeakBuffered() {
+    return peakBuffered;
+  }
+
+  @Override
+  public synchronized void finish() throws IOException {
+    if (broken != null) {
+      throw broken;
+    }
+    if (frontier != fileSize) {
+      throw new IOException("Stream stopped at " + frontier + " of " + fileSize + " bytes");
+    }
+  }
+
+}
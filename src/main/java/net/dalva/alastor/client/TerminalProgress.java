@@ -0,0 +1,46 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+/**
+ * The full-screen progress display
+ *
+ * @author Dalva
+ */
+public class TerminalProgress implements ProgressListener {
+
+  //beyond this many connections the per-connection indicators would only scroll by, so they are left out
+  private static final int GRID_LIMIT = 500;
+
+  private final FlameWeaver weaver;
+  private final boolean notls;
+  private final String address;
+
+  public TerminalProgress(FlameWeaver weaver, boolean notls, String address) {
+    this.weaver = weaver;
+    this.notls = notls;
+    this.address = address;
+  }
+
+  @Override
+  public void onProgress(ProgressSnapshot snapshot) {
+    String grid = snapshot.getConnections() <= GRID_LIMIT ? weaver.getServantInfo() : null;
+    InfoPrinter.printDlInfo(snapshot, notls, address, grid);
+  }
+
+}
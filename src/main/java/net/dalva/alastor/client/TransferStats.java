@@ -0,0 +1,366 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import net.dalva.alastor.LatencyHistogram;
+
+/**
+ * Per-connection and aggregate transfer telemetry, reported as JSON
+ *
+ * @author Dalva
+ */
+public class TransferStats {
+
+  /**
+   * Why a chunk had to be requested again
+   */
+  public static enum RetryCause {crc, proof, timeout, server_error, overload, network, write};
+
+  private final long startMillis = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+  private final List<Servant> servants = new CopyOnWriteArrayList();
+  private final ArrayList<long[]> samples = new ArrayList(); // {second, bytes, chunks}
+  private final LatencyHistogram rpcLatency = new LatencyHistogram();
+  private final LatencyHistogram chunkLatency = new LatencyHistogram();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder chunks = new LongAdder();
+  private final AtomicLongArray retries = new AtomicLongArray(RetryCause.values().length);
+  private final LongAdder budgetStalls = new LongAdder();
+
+  private Writer sampleWriter;
+  private long lastSampleBytes = 0;
+  private long lastSampleChunks = 0;
+  private long finishNanos = 0;
+  private volatile long firstByteNanos = 0;
+  private volatile long connectedNanos = 0;
+
+  /**
+   * Telemetry of a single connection
+   */
+  public class Servant {
+
+    private final int id;
+    private final LatencyHistogram rpcLatency = new LatencyHistogram();
+    private final LongAdder networkNanos = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+    private final LongAdder diskNanos = new LongAdder();
+    private final LongAdder budgetNanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final AtomicLongArray retries = new AtomicLongArray(RetryCause.values().length);
+
+    private Servant(int id) {
+      this.id = id;
+    }
+
+    /**
+     * Account a request round trip, successful or not
+     *
+     * @param nanos time spent waiting on the network
+     */
+    public void network(long nanos) {
+      networkNanos.add(nanos);
+    }
+
+    /**
+     * Account a successful request round trip
+     *
+     * @param nanos round trip time
+     */
+    public void rpc(long nanos) {
+      rpcLatency.record(nanos);
+      TransferStats.this.rpcLatency.record(nanos);
+    }
+
+    public void verify(long nanos) {
+      verifyNanos.add(nanos);
+    }
+
+    public void disk(long nanos) {
+      diskNanos.add(nanos);
+    }
+
+    /**
+     * Account a request that had to wait for the memory budget
+     *
+     * @param nanos time spent waiting
+     */
+    public void budgetStall(long nanos) {
+      budgetNanos.add(nanos);
+      budgetStalls.increment();
+    }
+
+    /**
+     * Account chunk data coming in, only the very first time matters
+     */
+    public void dataArrived() {
+      if (firstByteNanos == 0) {
+        synchronized (TransferStats.this) {
+          if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+          }
+        }
+      }
+    }
+
+    public void retry(RetryCause cause) {
+      retries.incrementAndGet(cause.ordinal());
+      TransferStats.this.retries.incrementAndGet(cause.ordinal());
+    }
+
+    /**
+     * Account a chunk that has been written
+     *
+     * @param size chunk size in bytes
+     * @param nanos time from assignment until written, retries included
+     */
+    public void chunkDone(int size, long nanos) {
+      bytes.add(size);
+      chunks.increment();
+      chunkLatency.record(nanos);
+      TransferStats.this.bytes.add(size);
+      TransferStats.this.chunks.increment();
+    }
+  }
+
+  /**
+   * Register a new connection
+   *
+   * @return its telemetry
+   */
+  public Servant newServant() {
+    Servant s = new Servant(servants.size());
+    servants.add(s);
+    return s;
+  }
+
+  /**
+   * Stream every sample into a file as JSON lines, as they are taken
+   *
+   * @param fname file to write
+   * @throws IOException
+   */
+  public void streamSamplesTo(String fname) throws IOException {
+    sampleWriter = new FileWriter(fname);
+  }
+
+  /**
+   * Take a throughput sample. Meant to be called about once a second.
+   */
+  public synchronized void sample() {
+    long second = (System.nanoTime() - startNanos) / 1_000_000_000L;
+    long b = bytes.sum();
+    long c = chunks.sum();
+    long[] sample = {second, b - lastSampleBytes, c - lastSampleChunks};
+    lastSampleBytes = b;
+    lastSampleChunks = c;
+    samples.add(sample);
+    if (sampleWriter != null) {
+      try {
+        sampleWriter.write(String.format(Locale.ROOT, "{\"t\":%d,\"bytes\":%d,\"chunks\":%d,\"total_bytes\":%d,\"retries\":%d}%n",
+                sample[0], sample[1], sample[2], b, totalRetries()));
+        sampleWriter.flush();
+      } catch (IOException ex) {
+        InfoPrinter.printErrThreadSafe("Cannot write samples: " + ex.getLocalizedMessage());
+        sampleWriter = null;
+      }
+    }
+  }
+
+  /**
+   * Mark the transfer as done and stop sampling
+   */
+  public synchronized void finish() {
+    finishNanos = System.nanoTime();
+    sample();
+    if (sampleWriter != null) {
+      try {
+        sampleWriter.close();
+      } catch (IOException ex) {
+        InfoPrinter.printErrThreadSafe("Cannot close samples: " + ex.getLocalizedMessage());
+      }
+      sampleWriter = null;
+    }
+  }
+
+  /**
+   * Mark every connection as established
+   */
+  public void connected() {
+    connectedNanos = System.nanoTime();
+  }
+
+  /**
+   * @return time from the start until every connection was established, -1 if they are not yet
+   */
+  public long getConnectMillis() {
+    long c = connectedNanos;
+    return c == 0 ? -1 : (c - startNanos) / 1_000_000;
+  }
+
+  /**
+   * @return time from the start until the first chunk data came in, -1 if none did yet
+   */
+  public long getFirstByteMillis() {
+    long f = firstByteNanos;
+    return f == 0 ? -1 : (f - startNanos) / 1_000_000;
+  }
+
+  /**
+   * Time from the start until the first one-second sample reaching 90% of the best one. Handshakes and slow start are
+   * paid within it, so on a short transfer it tells how much of the time went to ramping up.
+   *
+   * @return the time in seconds, -1 if nothing has been downloaded
+   */
+  public synchronized long getFullThroughputSeconds() {
+    long peak = 0;
+    for (long[] sample : samples) {
+      peak = Math.max(peak, sample[1]);
+    }
+    if (peak == 0) {
+      return -1;
+    }
+    for (long[] sample : samples) {
+      if (sample[1] >= peak * 9 / 10) {
+        return sample[0];
+      }
+    }
+    return -1;
+  }
+
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  public long getBudgetStalls() {
+    return budgetStalls.sum();
+  }
+
+  public long totalRetries() {
+    long total = 0;
+    for (int i = 0; i < retries.length(); i++) {
+      total += retries.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Write the end-of-run report
+   *
+   * @param fname file to write
+   * @param fileName name of the transferred file
+   * @param fileSize its size in bytes
+   * @param chunkSize chunk size in bytes
+   * @throws IOException
+   */
+  public synchronized void writeReport(String fname, String fileName, long fileSize, int chunkSize) throws IOException {
+    long end = finishNanos == 0 ? System.nanoTime() : finishNanos;
+    double seconds = (end - startNanos) / 1e9;
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n");
+    sb.append("  \"file\": \"").append(escape(fileName)).append("\",\n");
+    sb.append("  \"file_size\": ").append(fileSize).append(",\n");
+    sb.append("  \"chunk_size\": ").append(chunkSize).append(",\n");
+    sb.append("  \"connections\": ").append(servants.size()).append(",\n");
+    sb.append("  \"started_at\": ").append(startMillis).append(",\n");
+    sb.append("  \"elapsed_seconds\": ").append(String.format(Locale.ROOT, "%.3f", seconds)).append(",\n");
+    sb.append("  \"bytes\": ").append(bytes.sum()).append(",\n");
+    sb.append("  \"chunks\": ").append(chunks.sum()).append(",\n");
+    sb.append("  \"bytes_per_second\": ").append(seconds > 0 ? (long) (bytes.sum() / seconds) : 0).append(",\n");
+    sb.append("  \"connect_ms\": ").append(getConnectMillis()).append(",\n");
+    sb.append("  \"first_byte_ms\": ").append(getFirstByteMillis()).append(",\n");
+    sb.append("  \"full_throughput_seconds\": ").append(getFullThroughputSeconds()).append(",\n");
+    sb.append("  \"retries\": ").append(retriesJson(retries)).append(",\n");
+    sb.append("  \"rpc_latency_ms\": ").append(percentilesJson(rpcLatency)).append(",\n");
+    sb.append("  \"chunk_latency_ms\": ").append(percentilesJson(chunkLatency)).append(",\n");
+    long network = 0, verify = 0, disk = 0, budget = 0;
+    for (Servant s : servants) {
+      network += s.networkNanos.sum();
+      verify += s.verifyNanos.sum();
+      disk += s.diskNanos.sum();
+      budget += s.budgetNanos.sum();
+    }
+    sb.append("  \"time_seconds\": {\"network\": ").append(String.format(Locale.ROOT, "%.3f", network / 1e9))
+            .append(", \"verify\": ").append(String.format(Locale.ROOT, "%.3f", verify / 1e9))
+            .append(", \"disk\": ").append(String.format(Locale.ROOT, "%.3f", disk / 1e9))
+            .append(", \"memory_wait\": ").append(String.format(Locale.ROOT, "%.3f", budget / 1e9)).append("},\n");
+    sb.append("  \"memory_stalls\": ").append(budgetStalls.sum()).append(",\n");
+    sb.append("  \"throughput\": [");
+    for (int i = 0; i < samples.size(); i++) {
+      long[] sample = samples.get(i);
+      sb.append(i == 0 ? "\n" : ",\n");
+      sb.append("    {\"t\": ").append(sample[0]).append(", \"bytes\": ").append(sample[1]).append(", \"chunks\": ").append(sample[2]).append("}");
+    }
+    sb.append("\n  ],\n");
+    sb.append("  \"servants\": [");
+    for (int i = 0; i < servants.size(); i++) {
+      Servant s = servants.get(i);
+      sb.append(i == 0 ? "\n" : ",\n");
+      sb.append("    {\"id\": ").append(s.id)
+              .append(", \"bytes\": ").append(s.bytes.sum())
+              .append(", \"chunks\": ").append(s.chunks.sum())
+              .append(", \"retries\": ").append(retriesJson(s.retries))
+              .append(", \"rpc_latency_ms\": ").append(percentilesJson(s.rpcLatency))
+              .append(", \"network_seconds\": ").append(String.format(Locale.ROOT, "%.3f", s.networkNanos.sum() / 1e9))
+              .append(", \"verify_seconds\": ").append(String.format(Locale.ROOT, "%.3f", s.verifyNanos.sum() / 1e9))
+              .append(", \"disk_seconds\": ").append(String.format(Locale.ROOT, "%.3f", s.diskNanos.sum() / 1e9))
+              .append(", \"memory_wait_seconds\": ").append(String.format(Locale.ROOT, "%.3f", s.budgetNanos.sum() / 1e9))
+              .append("}");
+    }
+    sb.append("\n  ]\n");
+    sb.append("}\n");
+    try (Writer out = new FileWriter(fname)) {
+      out.write(sb.toString());
+    }
+  }
+
+  private static String retriesJson(AtomicLongArray r) {
+    StringBuilder sb = new StringBuilder("{");
+    for (RetryCause cause : RetryCause.values()) {
+      if (cause.ordinal() > 0) {
+        sb.append(", ");
+      }
+      sb.append('"').append(cause.name()).append("\": ").append(r.get(cause.ordinal()));
+    }
+    return sb.append('}').toString();
+  }
+
+  private static String percentilesJson(LatencyHistogram h) {
+    return String.format(Locale.ROOT, "{\"count\": %d, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+            h.getCount(),
+            h.getPercentile(50) / 1e6,
+            h.getPercentile(90) / 1e6,
+            h.getPercentile(99) / 1e6,
+            h.getPercentile(99.9) / 1e6,
+            h.getPercentile(100) / 1e6);
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+}
@@ -0,0 +1,530 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import net.dalva.alastor.FileHandler;
+import net.dalva.alastor.Tools;
+import net.dalva.alastor.grpc.AlastorGrpc;
+import net.dalva.alastor.grpc.AlastorGrpc.AlastorBlockingStub;
+import net.dalva.alastor.grpc.UploadAck;
+import net.dalva.alastor.grpc.UploadData;
+import net.dalva.alastor.grpc.UploadInfo;
+import net.dalva.alastor.grpc.UploadQuery;
+import picocli.CommandLine;
+
+/**
+ * Uploads a file over many connections at once, the other way around from FlameWeaver.
+ *
+ * The server tells which chunks it already has, every connection then claims missing chunks one at a time, reads them
+ * with positional reads and sends them with their CRC32, retrying until the server has them. Uploads are set up with a
+ * Builder from a ClientEngine, and share its connections, threads and memory budget with the downloads running on it.
+ *
+ * @author Dalva
+ */
+public class UploadWeaver {
+
+  //room left in a message for everything but the chunk data, as the server counts it
+  private static final int MESSAGE_OVERHEAD = 64 * 1024;
+
+  //rounds of sending whatever the server still misses before giving up
+  private static final int MAX_ROUNDS = 5;
+  //failed attempts at a chunk before it is left to the next round
+  private static final int MAX_CHUNK_ATTEMPTS = 8;
+
+  private final ClientEngine engine;
+  private final String address;
+  private final String clientKey;
+  private final String localFile;
+  private final String remoteName;
+  private final int conns;
+  private final int chunkSize; // in BYTES
+  private final boolean notls;
+  private final boolean verbose;
+
+  private final AtomicInteger nextPending = new AtomicInteger();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final LongAdder sentChunks = new LongAdder();
+  private final LongAdder sentBytes = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final CompletableFuture<Long> result = new CompletableFuture();
+
+  private FileHandler fh;
+  private long fileSize;
+  private long timestamp;
+  private int chunkCount;
+  private String uploadId;
+  private volatile int[] pending;
+  private volatile boolean cancelled = false;
+  private volatile String failure = null;
+
+  /**
+   * Settings of an upload
+   */
+  public static class Builder {
+
+    private final ClientEngine engine;
+    private String address;
+    private String clientKey;
+    private String localFile;
+    private String remoteName;
+    private int conns = 50;
+    private int chunkSize = 100 * 1024;
+    private boolean notls = false;
+    private boolean verbose = false;
+
+    Builder(ClientEngine engine) {
+      this.engine = engine;
+    }
+
+    /**
+     * @param address example.com, 10.8.0.1:5555, 127.0.0.1:41457, ...
+     */
+    public Builder address(String address) {
+      this.address = address;
+      return this;
+    }
+
+    public Builder key(String clientKey) {
+      this.clientKey = clientKey;
+      return this;
+    }
+
+    /**
+     * @param localFile file to upload
+     */
+    public Builder file(String localFile) {
+      this.localFile = localFile;
+      return this;
+    }
+
+    /**
+     * @param remoteName path to upload to, relative to the server's serve dir (default the local file's name)
+     */
+    public Builder remoteName(String remoteName) {
+      this.remoteName = remoteName;
+      return this;
+    }
+
+    public Builder connections(int conns) {
+      this.conns = conns;
+      return this;
+    }
+
+    public Builder chunkSize(int bytes) {
+      this.chunkSize = bytes;
+      return this;
+    }
+
+    public Builder notls(boolean notls) {
+      this.notls = notls;
+      return this;
+    }
+
+    /**
+     * @param verbose whether to print what is going on, as the CLI does
+     */
+    public Builder verbose(boolean verbose) {
+      this.verbose = verbose;
+      return this;
+    }
+
+    /**
+     * @return the upload, not started yet
+     */
+    public UploadWeaver build() {
+      if (address == null || clientKey == null || localFile == null) {
+        throw new IllegalStateException("Address, key and file are required");
+      }
+      if (conns <= 0 || chunkSize <= 0) {
+        throw new IllegalStateException("Connections and chunk size must be positive");
+      }
+      return new UploadWeaver(this);
+    }
+
+    /**
+     * @return the upload, started
+     */
+    public UploadWeaver start() {
+      return build().start();
+    }
+  }
+
+  private UploadWeaver(Builder b) {
+    engine = b.engine;
+    address = b.address;
+    clientKey = b.clientKey;
+    localFile = b.localFile;
+    remoteName = b.remoteName != null ? b.remoteName : new File(b.localFile).getName();
+    conns = b.conns;
+    chunkSize = b.chunkSize;
+    notls = b.notls;
+    verbose = b.verbose;
+  }
+
+  /**
+   * Upload a file as told by the "put" command, on an engine of its own
+   *
+   * @param putParams
+   * @return whether the file is now on the server
+   * @throws InterruptedException
+   */
+  public static boolean upload(EntryPut putParams) throws InterruptedException {
+    try (ClientEngine engine = new ClientEngine()) {
+      UploadWeaver weaver = engine.upload()
+              .address(putParams.getAddress())
+              .key(putParams.getClientKey())
+              .file(putParams.getLocalFile())
+              .remoteName(putParams.getRemoteName())
+              .connections(putParams.getConns())
+              .chunkSize(putParams.getChunkSizeInBytes())
+              .notls(putParams.isNotls())
+              .verbose(true)
+              .build();
+      try {
+        weaver.start().getResult().get();
+        return true;
+      } catch (ExecutionException ex) {
+        System.err.println("Upload failed: " + ex.getCause().getLocalizedMessage());
+        return false;
+      } catch (InterruptedException ex) {
+        weaver.cancel();
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Start uploading, on the engine's threads
+   *
+   * @return this
+   */
+  public UploadWeaver start() {
+    engine.getExecutor().submit(() -> {
+      try {
+        run();
+      } catch (Throwable ex) {
+        result.completeExceptionally(ex);
+      }
+    });
+    return this;
+  }
+
+  /**
+   * @return completes with the bytes sent once the file is on the server, or exceptionally if it cannot be
+   */
+  public CompletableFuture<Long> getResult() {
+    return result;
+  }
+
+  /**
+   * Stop uploading. What the server has so far is kept, so the upload can be resumed later.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  private void log(String line) {
+    if (verbose) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Give up on the upload for a reason the connections cannot recover from
+   */
+  private void fail(String reason) {
+    if (failure == null) {
+      failure = reason;
+    }
+    cancelled = true;
+  }
+
+  /**
+   * Proceed to upload the file
+   */
+  private void run() throws IOException, InterruptedException {
+    File local = new File(localFile);
+    if (!local.isFile()) {
+      throw new IOException("No such file: " + localFile);
+    }
+    fh = new FileHandler(local.getPath(), true);
+    try {
+      fileSize = fh.getChannel().size();
+      timestamp = local.lastModified();
+      chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+      log("Starting upload of " + local.getName() + " as " + remoteName + "...");
+      UploadInfo info = uploadQuery(false);
+      if (info.getError().getCode() != 0) {
+        log("Failure.");
+        log("Error Code : " + info.getError().getCode());
+        log("Error Msg  : " + info.getError().getMsg());
+        throw new IOException("Cannot upload " + remoteName + ": error " + info.getError().getCode() + ": " + info.getError().getMsg());
+      }
+      int serverMax = info.getMaxMessageSize() > 0 ? info.getMaxMessageSize() : 4 * 1024 * 1024;
+      if (chunkSize > serverMax - MESSAGE_OVERHEAD) {
+        throw new IOException("Chunk size too large, this server allows up to " + (serverMax - MESSAGE_OVERHEAD) / 1024 + " kB per chunk");
+      }
+      uploadId = info.getUploadId();
+      setPending(info);
+
+      log("Size (bytes)  : " + fileSize);
+      log("Total Chunks  : " + chunkCount);
+      if (pending.length < chunkCount) {
+        log("Resuming, the server already has " + (chunkCount - pending.length) + " of " + chunkCount + " chunks");
+      }
+      log("");
+      log(CommandLine.Help.Ansi.AUTO.string(
+              "@|fg(208) The flame of the Crimson Lord shall scorch the heavens...|@"
+              + "@|fg(243)  - Alastor (2E11-17:03)|@"));
+      log("");
+
+      long start = System.nanoTime();
+      for (int round = 1; round <= MAX_ROUNDS; round++) {
+        sendPending();
+        if (cancelled) {
+          throw new IOException(failure != null ? failure : "Upload of " + remoteName + " cancelled");
+        }
+        info = uploadQuery(true);
+        if (info.getError().getCode() == 0) {
+          double seconds = (System.nanoTime() - start) / 1e9;
+          log(CommandLine.Help.Ansi.AUTO.string("@|cyan Upload successful. |@")
+                  + String.format("%d kB in %.1f s, %d kB/s, %d retries", sentBytes.sum() / 1024, seconds,
+                          seconds > 0 ? (long) (sentBytes.sum() / 1024 / seconds) : 0, retries.sum()));
+          result.complete(sentBytes.sum());
+          return;
+        }
+        if (info.getError().getCode() != 15 || info.getUploadId().isEmpty()) {
+          throw new IOException("Cannot finish upload: error " + info.getError().getCode() + ": " + info.getError().getMsg());
+        }
+        //the server lost some chunks, such as when it restarted before saving them, send those again
+        setPending(info);
+        log("The server still misses " + pending.length + " chunks, sending them again");
+      }
+      throw new IOException("The server keeps missing chunks");
+    } finally {
+      try {
+        fh.close();
+      } catch (IOException ex) {
+        System.err.println("Cannot close " + local + " - " + ex.getLocalizedMessage());
+      }
+    }
+  }
+
+  /**
+   * Work out which chunks the server does not have yet
+   */
+  private void setPending(UploadInfo info) {
+    BitSet received = BitSet.valueOf(info.getReceivedChunks().asReadOnlyByteBuffer());
+    int[] missing = new int[chunkCount - received.cardinality()];
+    int n = 0;
+    for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+      missing[n++] = i;
+    }
+    nextPending.set(0);
+    pending = missing;
+  }
+
+  /**
+   * Send every pending chunk over the engine's connections to the server, printing progress every second
+   */
+  private void sendPending() throws IOException, InterruptedException {
+    int threads = Math.max(1, Math.min(conns, pending.length));
+    List<ManagedChannel> channels = engine.channels(address, notls, threads);
+    CountDownLatch done = new CountDownLatch(threads);
+    for (ManagedChannel channel : channels) {
+      engine.getExecutor().submit(() -> {
+        try {
+          connectionLoop(channel);
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+    long lastBytes = sentBytes.sum();
+    try {
+      while (!done.await(1, TimeUnit.SECONDS)) {
+        long bytes = sentBytes.sum();
+        log(String.format("Uploaded %d/%d chunks | %d kB/s | %d/%d active connections | %d retries",
+                chunkCount - pending.length + sentChunks.sum(), chunkCount, (bytes - lastBytes) / 1024,
+                activeConnections.get(), threads, retries.sum()));
+        lastBytes = bytes;
+      }
+    } catch (InterruptedException ex) {
+      cancelled = true;
+      throw ex;
+    }
+    sentChunks.reset();
+  }
+
+  /**
+   * A single connection, claiming and sending chunks until there are none left.
+   * Its chunk buffer is taken from the engine's memory budget, so connections beyond it wait for room.
+   */
+  private void connectionLoop(ManagedChannel channel) {
+    MemoryBudget budget = engine.getMemoryBudget();
+    try {
+      budget.acquire(chunkSize);
+    } catch (InterruptedException ex) {
+      fail("interrupted");
+      return;
+    }
+    AlastorBlockingStub stub = AlastorGrpc.newBlockingStub(channel);
+    activeConnections.incrementAndGet();
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+      int[] chunks = pending;
+      int next;
+      while (!cancelled && (next = nextPending.getAndIncrement()) < chunks.length) {
+        putChunk(stub, chunks[next], buffer);
+      }
+    } catch (IOException ex) {
+      fail("Cannot read " + localFile + " - " + ex.getLocalizedMessage());
+    } finally {
+      activeConnections.decrementAndGet();
+      budget.release(chunkSize);
+    }
+  }
+
+  /**
+   * Read a chunk and send it until the server has it, or until it failed too many times in a row.
+   * A chunk given up on is still missing on the server, so the next round sends it again.
+   */
+  private void putChunk(AlastorBlockingStub stub, int chunkOffset, ByteBuffer buffer) throws IOException {
+    long position = (long) chunkOffset * chunkSize;
+    buffer.clear().limit((int) Math.min(chunkSize, fileSize - position));
+    while (buffer.hasRemaining()) {
+      if (fh.getChannel().read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("File shrank while uploading");
+      }
+    }
+    buffer.flip();
+    //the buffer is only reused once the call is over, so the message can wrap it instead of copying it
+    ByteString data = UnsafeByteOperations.unsafeWrap(buffer);
+    UploadData request = UploadData.newBuilder()
+            .setApiKey(clientKey)
+            .setUploadId(uploadId)
+            .setChunkOffset(chunkOffset)
+            .setChunkData(data)
+            .setChunkCrc32(Tools.makeCRC32(buffer))
+            .build();
+    long deadlineSeconds = 15 + chunkSize / (256 * 1024);
+
+    int attempts = 0;
+    while (!cancelled) {
+      try {
+        UploadAck ack = stub.withDeadlineAfter(deadlineSeconds, TimeUnit.SECONDS).putFileData(request);
+        int code = ack.getError().getCode();
+        if (code == 0) {
+          sentChunks.increment();
+          sentBytes.add(data.size());
+          return;
+        }
+        retries.increment();
+        if (code == 2 || code == 15 || code == 16) {
+          fail("error " + code + ": " + ack.getError().getMsg());
+          return;
+        }
+        InfoPrinter.printErrThreadSafe("Error: chunk " + chunkOffset + " error " + code + " ; retrying...");
+      } catch (StatusRuntimeException x) {
+        retries.increment();
+        if (x.getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+          backOff(x); //the server is busy, which says nothing about this chunk
+          continue;
+        }
+      }
+      if (++attempts >= MAX_CHUNK_ATTEMPTS) {
+        InfoPrinter.printErrThreadSafe("Error: chunk " + chunkOffset + " failed " + attempts + " times, leaving it for the next round");
+        return;
+      }
+      //exponential, from a quarter second up to 8 seconds, with jitter so connections don't come back all at once
+      long millis = 250L << Math.min(attempts - 1, 5);
+      sleep(millis + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+    }
+  }
+
+  /**
+   * Sleep for the retry hint of a RESOURCE_EXHAUSTED reply, with some jitter so connections don't come back all at once
+   */
+  private void backOff(StatusRuntimeException x) {
+    long millis = 1000;
+    if (x.getTrailers() != null && x.getTrailers().containsKey(Tools.RETRY_AFTER_MS)) {
+      try {
+        millis = Long.parseLong(x.getTrailers().get(Tools.RETRY_AFTER_MS));
+      } catch (NumberFormatException ex) {}
+    }
+    millis = Math.min(millis, 10000);
+    sleep(millis + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+  }
+
+  private void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      fail("interrupted");
+    }
+  }
+
+  /**
+   * Begin or finish the upload, on the first channel of the pool, which the connections use too
+   *
+   * @param finish whether to finish it
+   * @return the reply
+   * @throws IOException if the call failed
+   */
+  private UploadInfo uploadQuery(boolean finish) throws IOException {
+    AlastorBlockingStub blockingStub = AlastorGrpc.newBlockingStub(engine.channels(address, notls, 1).get(0));
+    UploadQuery request = UploadQuery.newBuilder()
+            .setApiKey(clientKey)
+            .setFileName(remoteName)
+            .setFileSize(fileSize)
+            .setChunkSize(chunkSize)
+            .setFileTimestamp(timestamp)
+            .build();
+    try {
+      //the server may have to allocate or flush the whole file first
+      blockingStub = blockingStub.withDeadlineAfter(1, TimeUnit.HOURS);
+      return finish ? blockingStub.finishUpload(request) : blockingStub.beginUpload(request);
+    } catch (StatusRuntimeException e) {
+      throw new IOException("RPC failed: " + e.getStatus(), e);
+    }
+  }
+
+}
@@ -18,14 +18,26 @@
 package net.dalva.alastor.server;
 
 import com.google.protobuf.ByteString;
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import net.dalva.alastor.Tools;
 import net.dalva.alastor.grpc.AlastorGrpc;
+import net.dalva.alastor.grpc.ChunkManifest;
 import net.dalva.alastor.grpc.DataQuery;
 import net.dalva.alastor.grpc.FileData;
 import net.dalva.alastor.grpc.FileInfo;
+import net.dalva.alastor.grpc.FileList;
 import net.dalva.alastor.grpc.FileQuery;
+import net.dalva.alastor.grpc.ListQuery;
+import net.dalva.alastor.grpc.ManifestQuery;
+import net.dalva.alastor.grpc.UploadAck;
+import net.dalva.alastor.grpc.UploadData;
+import net.dalva.alastor.grpc.UploadInfo;
+import net.dalva.alastor.grpc.UploadQuery;
 import net.dalva.alastor.grpc.ErrorMsg;
 
 /**
@@ -35,6 +47,33 @@ import net.dalva.alastor.grpc.ErrorMsg;
  */
 public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
 
+  private static final ServerMetrics.Call INFO_CALLS = ServerMetrics.call("GetFileInfo");
+  private static final ServerMetrics.Call DATA_CALLS = ServerMetrics.call("GetFileData");
+  private static final ServerMetrics.Call STREAM_CALLS = ServerMetrics.call("GetFileDataStream");
+  private static final ServerMetrics.Call LIST_CALLS = ServerMetrics.call("ListFiles");
+  private static final ServerMetrics.Call MANIFEST_CALLS = ServerMetrics.call("GetChunkManifest");
+  private static final ServerMetrics.Call BEGIN_UPLOAD_CALLS = ServerMetrics.call("BeginUpload");
+  private static final ServerMetrics.Call PUT_CALLS = ServerMetrics.call("PutFileData");
+  private static final ServerMetrics.Call FINISH_UPLOAD_CALLS = ServerMetrics.call("FinishUpload");
+
+  //chunk digests per ChunkManifest message
+  private static final int MANIFEST_PART = 16384;
+
+  //room left in a message for everything but the chunk data
+  public static final int MESSAGE_OVERHEAD = 64 * 1024;
+
+  private final int maxMessageSize;
+  private final int fragmentSize;
+
+  /**
+   * @param maxMessageSize largest message to send or accept, in bytes
+   * @param fragmentSize fragment size of streamed chunks, in bytes
+   */
+  public AlastorImpl(int maxMessageSize, int fragmentSize) {
+    this.maxMessageSize = maxMessageSize;
+    this.fragmentSize = fragmentSize;
+  }
+
   /**
    * Get file information
    * Implemented.
@@ -43,6 +82,7 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
    */
   @Override
   public void getFileInfo(FileQuery request, StreamObserver<FileInfo> responseObserver) {
+    long start = INFO_CALLS.begin();
 
     if (!Auth.checkTrusted(request.getApiKey())) {
       System.err.println("A GetFileInfo request has been denied: client key untrusted:" + request.getApiKey());
@@ -52,15 +92,60 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
               .build();
       responseObserver.onNext(FileInfo.newBuilder().setError(errVal).build());
       responseObserver.onCompleted();
+      INFO_CALLS.end(start, 2);
+      return;
+    }
+    
+    //Answer straight from the index when we can, no need to touch the disk
+    ServerIndex.Entry entry = ServerIndex.lookup(request.getRequestedFilename());
+    if (entry != null) {
+      String name = entry.getName();
+      replyFileInfo(request, FileInfo.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(name.substring(name.lastIndexOf('/') + 1))
+              .setFileSize(entry.getSize())
+              .setFileTimestamp(entry.getTimestamp())
+              .setMaxMessageSize(maxMessageSize)
+              .setFragmentSize(fragmentSize)
+              .setFileHandle(FileSession.open(request.getApiKey(), entry).getHandle()),
+              responseObserver, start);
       return;
     }
     
     try {
       ServerFileHandler fh = ServerFileHandler.get(request.getRequestedFilename(), true);
       
-      responseObserver.onNext(fh.getFileInfo());
+      replyFileInfo(request, fh.getFileInfo().toBuilder()
+              .setMaxMessageSize(maxMessageSize)
+              .setFragmentSize(fragmentSize),
+              responseObserver, start);
+      return;
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg("General IO Error: " + ex.getLocalizedMessage())
+              .build();
+      responseObserver.onNext(FileInfo.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      INFO_CALLS.end(start, 10);
+      return;
+    }
+  }
+
+  /**
+   * Send the file information, with the Merkle root when the client asked for one
+   */
+  private void replyFileInfo(FileQuery request, FileInfo.Builder reply, StreamObserver<FileInfo> responseObserver, long start) {
+    if (request.getChunkSize() <= 0 || reply.getError().getCode() != 0) {
+      responseObserver.onNext(reply.build());
       responseObserver.onCompleted();
+      INFO_CALLS.end(start, reply.getError().getCode());
       return;
+    }
+    String path;
+    try {
+      path = ServerFileHandler.get(request.getRequestedFilename(), true).getFileName();
     } catch (IOException ex) {
       System.out.println(ex.getLocalizedMessage());
       ErrorMsg errVal = ErrorMsg.newBuilder()
@@ -69,8 +154,34 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
               .build();
       responseObserver.onNext(FileInfo.newBuilder().setError(errVal).build());
       responseObserver.onCompleted();
+      INFO_CALLS.end(start, 10);
       return;
     }
+    //the tree may have to be built first, reply from the hashing pool once it is
+    ChunkHashes.get(path, request.getChunkSize()).whenComplete((manifest, ex) -> {
+      if (ex != null) {
+        System.out.println("Cannot hash " + path + ": " + ex.getLocalizedMessage());
+        ErrorMsg errVal = ErrorMsg.newBuilder()
+                .setCode(10)
+                .setMsg("General IO Error: " + ex.getLocalizedMessage())
+                .build();
+        responseObserver.onNext(FileInfo.newBuilder().setError(errVal).build());
+        responseObserver.onCompleted();
+        INFO_CALLS.end(start, 10);
+        return;
+      }
+      //describe the very version of the file the tree was built on, the handle is only good for that one
+      if (manifest.getFileSize() != reply.getFileSize() || manifest.getTimestamp() != reply.getFileTimestamp()) {
+        reply.clearFileHandle();
+      }
+      responseObserver.onNext(reply
+              .setFileSize(manifest.getFileSize())
+              .setFileTimestamp(manifest.getTimestamp())
+              .setMerkleRoot(ByteString.copyFrom(manifest.getTree().getRoot()))
+              .build());
+      responseObserver.onCompleted();
+      INFO_CALLS.end(start, 0);
+    });
   }
 
   /**
@@ -81,9 +192,17 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
    */
   @Override
   public void getFileData(DataQuery request, StreamObserver<FileData> responseObserver) {
-    
+    long start = DATA_CALLS.begin();
 
-    if (!Auth.checkTrusted(request.getApiKey())) {
+    //a handle stands for a checked key and a resolved file, so there's nothing else to check
+    FileSession session = null;
+    if (!request.getFileHandle().isEmpty()) {
+      session = FileSession.find(request.getFileHandle(), request.getApiKey());
+      if (session == null) {
+        replyDataError(responseObserver, DATA_CALLS, start, 17, "Unknown or expired file handle");
+        return;
+      }
+    } else if (!Auth.checkTrusted(request.getApiKey())) {
       System.err.println("A getFileData request has been denied: client key untrusted:" + request.getApiKey());
       ErrorMsg errVal = ErrorMsg.newBuilder()
               .setCode(2)
@@ -91,24 +210,116 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
               .build();
       responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
       responseObserver.onCompleted();
+      DATA_CALLS.end(start, 2);
+      return;
+    }
+
+    if (request.getChunkSize() <= 0) {
+      replyDataError(responseObserver, DATA_CALLS, start, 1, "Invalid chunk size");
       return;
     }
     
+    if (request.getChunkSize() > maxMessageSize - MESSAGE_OVERHEAD) {
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(13)
+              .setMsg("Chunk too large for a single message, max " + (maxMessageSize - MESSAGE_OVERHEAD) + " bytes")
+              .build();
+      responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      DATA_CALLS.end(start, 13);
+      return;
+    }
+
+    Context context = Context.current();
+    if (!request.getWithProof()) {
+      queueFileData(request, session, null, context, responseObserver, start);
+      return;
+    }
+    //the tree may have to be built first, which must not hold one of the device's io turns, so only queue the read once it is
+    String path;
+    try {
+      path = session != null ? session.handler().getFileName() : ServerFileHandler.get(request.getRequestedFilename(), true).getFileName();
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyDataError(responseObserver, DATA_CALLS, start, 10, ex.getLocalizedMessage());
+      return;
+    }
+    FileSession opened = session;
+    ChunkHashes.get(path, request.getChunkSize()).whenComplete((manifest, ex) -> {
+      if (ex != null) {
+        System.out.println("Cannot hash " + path + ": " + ex.getLocalizedMessage());
+        replyDataError(responseObserver, DATA_CALLS, start, 10, "Cannot hash file: " + ex.getLocalizedMessage());
+        return;
+      }
+      queueFileData(request, opened, manifest, context, responseObserver, start);
+    });
+  }
+
+  /**
+   * Queue a chunk read on the device the file is on, so a slow disk only holds up its own files
+   *
+   * @param manifest manifest to take the chunk's proof from, null if none was asked for
+   * @param context context of the call, to skip the read if the client gave up meanwhile
+   */
+  private void queueFileData(DataQuery request, FileSession session, ChunkHashes.Manifest manifest, Context context,
+          StreamObserver<FileData> responseObserver, long start) {
+    FairScheduler scheduler = session != null ? session.getScheduler() : Volumes.of(request.getRequestedFilename()).getScheduler();
+    boolean admitted = scheduler.submit(request.getApiKey(), Math.max(request.getChunkSize(), 0), () -> {
+      if (context.isCancelled()) {
+        //the client gave up while we were queued, don't bother reading
+        DATA_CALLS.end(start, 1);
+        return;
+      }
+      serveFileData(request, session, manifest, responseObserver, start);
+    });
+    if (!admitted) {
+      //shed load now, rather than letting the client wait out its deadline
+      Metadata trailers = new Metadata();
+      trailers.put(Tools.RETRY_AFTER_MS, Long.toString(scheduler.estimateWaitMillis()));
+      responseObserver.onError(Status.RESOURCE_EXHAUSTED
+              .withDescription("Server is busy, retry later")
+              .asRuntimeException(trailers));
+      DATA_CALLS.end(start, 3);
+    }
+  }
+
+  /**
+   * Read and send a chunk, once the scheduler gave us the turn
+   */
+  private void serveFileData(DataQuery request, FileSession session, ChunkHashes.Manifest manifest, StreamObserver<FileData> responseObserver, long start) {
     ErrorMsg errVal = ErrorMsg.newBuilder().setCode(0).build();
+    if (session != null && !session.isCurrent()) {
+      replyDataError(responseObserver, DATA_CALLS, start, 18, "File changed since it was opened");
+      return;
+    }
+    String fname = session != null ? session.getName() : request.getRequestedFilename();
+    HotFiles.Entry hot = HotFiles.lookup(fname);
+    if (hot != null) {
+      serveHotData(hot, request, manifest, responseObserver, start);
+      return;
+    }
     try {
       try {
-        ServerFileHandler fh = ServerFileHandler.get(request.getRequestedFilename(), true);
+        ServerFileHandler fh = session != null ? session.handler() : ServerFileHandler.get(fname, true);
+        HotFiles.touch(fname, request.getChunkSize()); //only once the file passed the serve dir checks
         //System.out.println("getting file " + request.getRequestedFilename() + " chunk offset " + request.getChunkOffset() + " length " + request.getChunkSize() + " bytes");
         byte[] data = fh.readOffsetChunk(request.getChunkOffset(), request.getChunkSize());
+        long stage = System.nanoTime();
         long crc32 = Tools.makeCRC32(data);
-        FileData reply = FileData.newBuilder()
+        stage = ServerMetrics.CRC.recordSince(stage);
+        FileData.Builder reply = FileData.newBuilder()
               .setError(errVal)
               .setFileName(fh.getFileName())
               .setChunkData(ByteString.copyFrom(data))
-              .setChunkCrc32(crc32)
-              .build();
-      responseObserver.onNext(reply);
+              .setChunkCrc32(crc32);
+        if (manifest != null) {
+          reply.setChunkProof(ByteString.copyFrom(ChunkHashes.proof(manifest, request.getChunkOffset())));
+        }
+      responseObserver.onNext(reply.build());
       responseObserver.onCompleted();
+      ServerMetrics.SERIALIZE.recordSince(stage);
+      ServerMetrics.served(request.getApiKey(), data.length);
+      DATA_CALLS.end(start, 0);
       return;
       } catch (IOException ex) {
       System.out.println(ex.getLocalizedMessage());
@@ -118,12 +329,422 @@ public class AlastorImpl extends AlastorGrpc.AlastorImplBase {
               .build();
         responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
         responseObserver.onCompleted();
+        DATA_CALLS.end(start, 10);
         return;
       }
     } catch (Exception ex) {
       System.out.println("Info: " + ex.getLocalizedMessage());
+      DATA_CALLS.end(start, 1);
     }
-    
+  }
+
+  /**
+   * Reply to a chunk request with an error
+   */
+  private static void replyDataError(StreamObserver<FileData> responseObserver, ServerMetrics.Call calls, long start, int code, String msg) {
+    responseObserver.onNext(FileData.newBuilder().setError(ErrorMsg.newBuilder()
+            .setCode(code)
+            .setMsg(msg)
+            .build()).build());
+    responseObserver.onCompleted();
+    calls.end(start, code);
+  }
+
+  /**
+   * Send a chunk of a file held in memory, with the CRC computed when it was loaded
+   */
+  private void serveHotData(HotFiles.Entry hot, DataQuery request, ChunkHashes.Manifest manifest, StreamObserver<FileData> responseObserver, long start) {
+    try {
+      ByteString data = hot.chunk(request.getChunkOffset(), request.getChunkSize());
+      FileData.Builder reply = FileData.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(hot.getPath())
+              .setChunkData(data)
+              .setChunkCrc32(hot.crc(request.getChunkOffset(), request.getChunkSize()));
+      if (manifest != null) {
+        reply.setChunkProof(ByteString.copyFrom(ChunkHashes.proof(manifest, request.getChunkOffset())));
+      }
+      long stage = System.nanoTime();
+      responseObserver.onNext(reply.build());
+      responseObserver.onCompleted();
+      ServerMetrics.SERIALIZE.recordSince(stage);
+      ServerMetrics.served(request.getApiKey(), data.size());
+      DATA_CALLS.end(start, 0);
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      responseObserver.onNext(FileData.newBuilder().setError(ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg(ex.getLocalizedMessage())
+              .build()).build());
+      responseObserver.onCompleted();
+      DATA_CALLS.end(start, 10);
+    } catch (Exception ex) {
+      System.out.println("Info: " + ex.getLocalizedMessage());
+      DATA_CALLS.end(start, 1);
+    }
+  }
+
+  /**
+   * Get a single chunk as a stream of fragments
+   * Implemented.
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void getFileDataStream(DataQuery request, StreamObserver<FileData> responseObserver) {
+    long start = STREAM_CALLS.begin();
+
+    FileSession session = null;
+    if (!request.getFileHandle().isEmpty()) {
+      session = FileSession.find(request.getFileHandle(), request.getApiKey());
+      if (session == null) {
+        replyDataError(responseObserver, STREAM_CALLS, start, 17, "Unknown or expired file handle");
+        return;
+      }
+      if (!session.isCurrent()) {
+        replyDataError(responseObserver, STREAM_CALLS, start, 18, "File changed since it was opened");
+        return;
+      }
+    } else if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A getFileDataStream request has been denied: client key untrusted:" + request.getApiKey());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(2)
+              .setMsg("Unauthenticated")
+              .build();
+      responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      STREAM_CALLS.end(start, 2);
+      return;
+    }
+
+    if (request.getChunkSize() <= 0) {
+      replyDataError(responseObserver, STREAM_CALLS, start, 1, "Invalid chunk size");
+      return;
+    }
+
+    if (fragmentSize <= 0) {
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(1)
+              .setMsg("Streaming is disabled on this server")
+              .build();
+      responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      STREAM_CALLS.end(start, 1);
+      return;
+    }
+
+    FairScheduler scheduler = session != null ? session.getScheduler() : Volumes.of(request.getRequestedFilename()).getScheduler();
+    ServerFileHandler fh;
+    FragmentSender sender;
+    try {
+      fh = session != null ? session.handler() : ServerFileHandler.get(request.getRequestedFilename(), true);
+      sender = new FragmentSender(scheduler, (ServerCallStreamObserver<FileData>) responseObserver, STREAM_CALLS, start,
+              request.getApiKey(), fh, request.getChunkOffset(), request.getChunkSize(), fragmentSize);
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg(ex.getLocalizedMessage())
+              .build();
+      responseObserver.onNext(FileData.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      STREAM_CALLS.end(start, 10);
+      return;
+    }
+    if (!request.getWithProof()) {
+      sender.start(null);
+      return;
+    }
+    //the tree may have to be built first, the sender only queues its first read once it is
+    ChunkHashes.get(fh.getFileName(), request.getChunkSize()).whenComplete((manifest, ex) -> {
+      if (ex != null) {
+        System.out.println("Cannot hash " + fh.getFileName() + ": " + ex.getLocalizedMessage());
+        sender.fail(10, "Cannot hash file: " + ex.getLocalizedMessage());
+        return;
+      }
+      try {
+        sender.start(ChunkHashes.proof(manifest, request.getChunkOffset()));
+      } catch (IOException proofEx) {
+        sender.fail(10, proofEx.getLocalizedMessage());
+      }
+    });
+  }
+
+  /**
+   * List files in the serve dir
+   * Implemented.
+   * @param request
+   * @param responseObserver 
+   */
+  @Override
+  public void listFiles(ListQuery request, StreamObserver<FileList> responseObserver) {
+    long start = LIST_CALLS.begin();
+
+    if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A ListFiles request has been denied: client key untrusted:" + request.getApiKey());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(2)
+              .setMsg("Unauthenticated")
+              .build();
+      responseObserver.onNext(FileList.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      LIST_CALLS.end(start, 2);
+      return;
+    }
+
+    responseObserver.onNext(ServerIndex.list(
+            request.getPrefix(),
+            request.getPageToken(),
+            request.getPageSize(),
+            request.getIncludeDigests()));
+    responseObserver.onCompleted();
+    LIST_CALLS.end(start, 0);
+  }
+
+  /**
+   * Get the SHA-256 of every chunk of a file
+   * Implemented.
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void getChunkManifest(ManifestQuery request, StreamObserver<ChunkManifest> responseObserver) {
+    long start = MANIFEST_CALLS.begin();
+
+    if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A GetChunkManifest request has been denied: client key untrusted:" + request.getApiKey());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(2)
+              .setMsg("Unauthenticated")
+              .build();
+      responseObserver.onNext(ChunkManifest.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      MANIFEST_CALLS.end(start, 2);
+      return;
+    }
+
+    if (request.getChunkSize() <= 0) {
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(1)
+              .setMsg("Invalid chunk size")
+              .build();
+      responseObserver.onNext(ChunkManifest.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      MANIFEST_CALLS.end(start, 1);
+      return;
+    }
+
+    String path;
+    try {
+      path = ServerFileHandler.get(request.getRequestedFilename(), true).getFileName();
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      ErrorMsg errVal = ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg(ex.getLocalizedMessage())
+              .build();
+      responseObserver.onNext(ChunkManifest.newBuilder().setError(errVal).build());
+      responseObserver.onCompleted();
+      MANIFEST_CALLS.end(start, 10);
+      return;
+    }
+
+    //hashing a big file takes a while, so reply from the hashing pool once it is done
+    ChunkHashes.get(path, request.getChunkSize()).whenComplete((manifest, ex) -> {
+      if (ex != null) {
+        System.out.println("Cannot hash " + path + ": " + ex.getLocalizedMessage());
+        ErrorMsg errVal = ErrorMsg.newBuilder()
+                .setCode(10)
+                .setMsg(ex.getLocalizedMessage())
+                .build();
+        responseObserver.onNext(ChunkManifest.newBuilder().setError(errVal).build());
+        responseObserver.onCompleted();
+        MANIFEST_CALLS.end(start, 10);
+        return;
+      }
+      try {
+        byte[] digests = manifest.getDigests();
+        int chunks = manifest.getChunkCount();
+        int first = 0;
+        do {
+          int count = Math.min(MANIFEST_PART, chunks - first);
+          responseObserver.onNext(ChunkManifest.newBuilder()
+                  .setError(ErrorMsg.newBuilder().setCode(0).build())
+                  .setFileSize(manifest.getFileSize())
+                  .setFileTimestamp(manifest.getTimestamp())
+                  .setFirstChunk(first)
+                  .setChunkSha256(ByteString.copyFrom(digests, first * ChunkHashes.DIGEST_LENGTH, count * ChunkHashes.DIGEST_LENGTH))
+                  .build());
+          first += count;
+        } while (first < chunks);
+        responseObserver.onCompleted();
+        MANIFEST_CALLS.end(start, 0);
+      } catch (Exception sendEx) {
+        System.out.println("Info: " + sendEx.getLocalizedMessage());
+        MANIFEST_CALLS.end(start, 1);
+      }
+    });
+  }
+
+  /**
+   * Start or resume an upload
+   * Implemented.
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void beginUpload(UploadQuery request, StreamObserver<UploadInfo> responseObserver) {
+    long start = BEGIN_UPLOAD_CALLS.begin();
+
+    int refused = refuseUpload(request.getApiKey(), "BeginUpload");
+    if (refused != 0) {
+      replyUploadInfo(responseObserver, BEGIN_UPLOAD_CALLS, start, refused, uploadError(refused), null);
+      return;
+    }
+
+    if (request.getChunkSize() > maxMessageSize - MESSAGE_OVERHEAD) {
+      replyUploadInfo(responseObserver, BEGIN_UPLOAD_CALLS, start, 13,
+              "Chunk too large for a single message, max " + (maxMessageSize - MESSAGE_OVERHEAD) + " bytes", null);
+      return;
+    }
+
+    try {
+      UploadSession session = UploadSession.begin(request.getApiKey(), request.getFileName(), request.getFileSize(),
+              request.getChunkSize(), request.getFileTimestamp());
+      replyUploadInfo(responseObserver, BEGIN_UPLOAD_CALLS, start, 0, "", session);
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyUploadInfo(responseObserver, BEGIN_UPLOAD_CALLS, start, 10, ex.getLocalizedMessage(), null);
+    }
+  }
+
+  /**
+   * Receive a single chunk of an upload
+   * Implemented.
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void putFileData(UploadData request, StreamObserver<UploadAck> responseObserver) {
+    long start = PUT_CALLS.begin();
+
+    int refused = refuseUpload(request.getApiKey(), "PutFileData");
+    if (refused != 0) {
+      replyUploadAck(responseObserver, start, refused, uploadError(refused));
+      return;
+    }
+
+    UploadSession session;
+    try {
+      session = UploadSession.find(request.getUploadId(), request.getApiKey());
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyUploadAck(responseObserver, start, 10, ex.getLocalizedMessage());
+      return;
+    }
+    if (session == null) {
+      replyUploadAck(responseObserver, start, 15, "Upload not found");
+      return;
+    }
+
+    //writes take disk turns like reads do, so uploads and downloads share the disk fairly between keys
+    FairScheduler scheduler = Volumes.primary().getScheduler();
+    Context context = Context.current();
+    boolean admitted = scheduler.submit(request.getApiKey(), request.getChunkData().size(), () -> {
+      if (context.isCancelled()) {
+        PUT_CALLS.end(start, 1);
+        return;
+      }
+      try {
+        if (session.write(request.getChunkOffset(), request.getChunkData(), request.getChunkCrc32())) {
+          replyUploadAck(responseObserver, start, 0, "");
+        } else {
+          replyUploadAck(responseObserver, start, 14, "Chunk does not match its CRC32");
+        }
+      } catch (IOException ex) {
+        System.out.println(ex.getLocalizedMessage());
+        replyUploadAck(responseObserver, start, 10, ex.getLocalizedMessage());
+      } catch (Exception ex) {
+        System.out.println("Info: " + ex.getLocalizedMessage());
+        PUT_CALLS.end(start, 1);
+      }
+    });
+    if (!admitted) {
+      Metadata trailers = new Metadata();
+      trailers.put(Tools.RETRY_AFTER_MS, Long.toString(scheduler.estimateWaitMillis()));
+      responseObserver.onError(Status.RESOURCE_EXHAUSTED
+              .withDescription("Server is busy, retry later")
+              .asRuntimeException(trailers));
+      PUT_CALLS.end(start, 3);
+    }
+  }
+
+  /**
+   * Move a fully uploaded file into place, or tell which chunks are still missing
+   * Implemented.
+   * @param request
+   * @param responseObserver
+   */
+  @Override
+  public void finishUpload(UploadQuery request, StreamObserver<UploadInfo> responseObserver) {
+    long start = FINISH_UPLOAD_CALLS.begin();
+
+    int refused = refuseUpload(request.getApiKey(), "FinishUpload");
+    if (refused != 0) {
+      replyUploadInfo(responseObserver, FINISH_UPLOAD_CALLS, start, refused, uploadError(refused), null);
+      return;
+    }
+
+    try {
+      UploadSession session = UploadSession.find(request.getApiKey(), request.getFileName(), request.getFileSize(),
+              request.getChunkSize(), request.getFileTimestamp());
+      if (session == null) {
+        replyUploadInfo(responseObserver, FINISH_UPLOAD_CALLS, start, 15, "Upload not found", null);
+      } else if (session.complete()) {
+        replyUploadInfo(responseObserver, FINISH_UPLOAD_CALLS, start, 0, "", null);
+      } else {
+        replyUploadInfo(responseObserver, FINISH_UPLOAD_CALLS, start, 15, "Upload is not complete yet", session);
+      }
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyUploadInfo(responseObserver, FINISH_UPLOAD_CALLS, start, 10, ex.getLocalizedMessage(), null);
+    }
+  }
+
+  /**
+   * @return the error code to refuse an upload call with, 0 if it may go on
+   */
+  private static int refuseUpload(String apiKey, String method) {
+    if (!Auth.checkTrusted(apiKey)) {
+      System.err.println("A " + method + " request has been denied: client key untrusted:" + apiKey);
+      return 2;
+    }
+    return UploadSession.isEnabled() ? 0 : 16;
+  }
+
+  private static String uploadError(int code) {
+    return code == 2 ? "Unauthenticated" : "Uploads are disabled on this server";
+  }
+
+  private void replyUploadInfo(StreamObserver<UploadInfo> responseObserver, ServerMetrics.Call calls, long start,
+          int code, String msg, UploadSession session) {
+    UploadInfo.Builder reply = UploadInfo.newBuilder()
+            .setError(ErrorMsg.newBuilder().setCode(code).setMsg(msg).build())
+            .setMaxMessageSize(maxMessageSize);
+    if (session != null) {
+      reply.setUploadId(session.getId()).setReceivedChunks(ByteString.copyFrom(session.getReceived()));
+    }
+    responseObserver.onNext(reply.build());
+    responseObserver.onCompleted();
+    calls.end(start, code);
+  }
+
+  private static void replyUploadAck(StreamObserver<UploadAck> responseObserver, long start, int code, String msg) {
+    responseObserver.onNext(UploadAck.newBuilder()
+            .setError(ErrorMsg.newBuilder().setCode(code).setMsg(msg).build())
+            .build());
+    responseObserver.onCompleted();
+    PUT_CALLS.end(start, code);
   }
 
 }
@@ -19,6 +19,10 @@ package net.dalva.alastor.server;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import net.dalva.alastor.FileHandler;
 
 /**
@@ -28,9 +32,55 @@ import net.dalva.alastor.FileHandler;
 public class Auth {
   
   private static ArrayList<String> KEY_LIST = new ArrayList();
+  private static HashMap<String, KeyPolicy> POLICIES = new HashMap();
+  private static final Pattern TRAILING_SETTING = Pattern.compile("\\s+((?:weight|rate|burst)=\\S*)\\s*$");
+  private static KeyPolicy defaultPolicy = new KeyPolicy(1, 0, 0);
   
   /**
-   * Reads a keyfile that contains newline-separated list of trusted client keys
+   * Fair-share settings of a client key
+   */
+  public static class KeyPolicy {
+    
+    private final double weight;
+    private final long rateBytes;
+    private final long burstBytes;
+    
+    /**
+     * @param weight relative share of the server when it is contended
+     * @param rateBytes hard cap in bytes per second, 0 for none
+     * @param burstBytes how much may be served at once above the cap, 0 for one second worth of rate
+     */
+    public KeyPolicy(double weight, long rateBytes, long burstBytes) {
+      this.weight = weight > 0 ? weight : 1;
+      this.rateBytes = Math.max(0, rateBytes);
+      this.burstBytes = burstBytes > 0 ? burstBytes : Math.max(this.rateBytes, 1024 * 1024);
+    }
+    
+    public double getWeight() {
+      return weight;
+    }
+    
+    public long getRateBytes() {
+      return rateBytes;
+    }
+    
+    public long getBurstBytes() {
+      return burstBytes;
+    }
+  }
+  
+  /**
+   * Set the policy of keys that do not specify their own
+   * @param policy the default policy
+   */
+  public static void setDefaultPolicy(KeyPolicy policy) {
+    defaultPolicy = policy;
+  }
+  
+  /**
+   * Reads a keyfile that contains newline-separated list of trusted client keys.
+   * A key may be followed by whitespace-separated weight=N, rate=kB/s and burst=kB settings. Only those are taken
+   * off the end of the line, the rest of it is the key, spaces included.
    * @param keyfile input keyfile
    * @throws IOException 
    */
@@ -44,7 +94,17 @@ public class Auth {
         break;
       }
       if (!line.startsWith("#")) {
-        KEY_LIST.add(line);
+        String key = line;
+        ArrayList<String> settings = new ArrayList();
+        Matcher m;
+        while ((m = TRAILING_SETTING.matcher(key)).find()) {
+          settings.add(0, m.group(1));
+          key = key.substring(0, m.start());
+        }
+        KEY_LIST.add(key);
+        if (!settings.isEmpty()) {
+          POLICIES.put(key, parsePolicy(settings));
+        }
       }
     }
     
@@ -59,4 +119,33 @@ public class Auth {
     return KEY_LIST.stream().anyMatch((key) -> (key.equals(clientKey)));
   }
   
+  /**
+   * Get the fair-share settings of a key
+   * @param clientKey the key
+   * @return its own policy, or the default one
+   */
+  public static KeyPolicy policyOf(String clientKey) {
+    return POLICIES.getOrDefault(clientKey, defaultPolicy);
+  }
+  
+  private static KeyPolicy parsePolicy(List<String> settings) throws IOException {
+    double weight = defaultPolicy.getWeight();
+    long rate = defaultPolicy.getRateBytes();
+    long burst = 0;
+    for (String setting : settings) {
+      String[] kv = setting.split("=", 2);
+      try {
+        switch (kv[0]) {
+          case "weight": weight = Double.parseDouble(kv[1]); break;
+          case "rate": rate = Long.parseLong(kv[1]) * 1024; break;
+          case "burst": burst = Long.parseLong(kv[1]) * 1024; break;
+          default: throw new IOException("Unknown key setting: " + setting);
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+        throw new IOException("Malformed key setting: " + setting);
+      }
+    }
+    return new KeyPolicy(weight, rate, burst);
+  }
+  
 }
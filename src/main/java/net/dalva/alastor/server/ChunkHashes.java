@@ -0,0 +1,297 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import net.dalva.alastor.MerkleTree;
+
+/**
+ * Per-chunk SHA-256 digests of served files, computed in parallel and cached by file and chunk size, along with the
+ * Merkle tree over them
+ *
+ * @author Dalva
+ */
+public class ChunkHashes {
+
+  public static final int DIGEST_LENGTH = 32;
+
+  //most digest bytes a manifest can hold, the largest array a JVM reliably allocates
+  private static final long MAX_DIGEST_BYTES = Integer.MAX_VALUE - 8;
+
+  //largest read done at once while hashing, so huge chunks don't need huge buffers
+  private static final int READ_SIZE = 1024 * 1024;
+
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, (r) -> {
+    Thread t = new Thread(r, "alastor-hash");
+    t.setDaemon(true);
+    return t;
+  });
+
+  //least recently used first
+  private static final LinkedHashMap<String, Manifest> CACHE = new LinkedHashMap(16, 0.75f, true);
+  private static final Map<String, CompletableFuture<Manifest>> PENDING = new HashMap();
+  private static final LongAdder HASHED_BYTES = new LongAdder();
+  private static long cacheBudget = 256L * 1024 * 1024;
+  private static long cachedBytes = 0;
+
+  static {
+    ServerMetrics.gauge("alastor_manifest_cache_bytes", () -> {
+      synchronized (CACHE) {
+        return cachedBytes;
+      }
+    });
+    ServerMetrics.counter("alastor_manifest_hashed_bytes_total", HASHED_BYTES::sum);
+  }
+
+  /**
+   * Chunk digests of one version of a file
+   */
+  public static class Manifest {
+
+    private final long fileSize;
+    private final long timestamp;
+    private final int chunkSize;
+    private final byte[] digests;
+    private MerkleTree tree;
+
+    private Manifest(long fileSize, long timestamp, int chunkSize, byte[] digests) {
+      this.fileSize = fileSize;
+      this.timestamp = timestamp;
+      this.chunkSize = chunkSize;
+      this.digests = digests;
+    }
+
+    public long getFileSize() {
+      return fileSize;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    public int getChunkCount() {
+      return digests.length / DIGEST_LENGTH;
+    }
+
+    /**
+     * @return every digest back to back, not to be modified
+     */
+    public byte[] getDigests() {
+      return digests;
+    }
+
+    /**
+     * @return the Merkle tree over the chunks, built on first use
+     */
+    public synchronized MerkleTree getTree() {
+      if (tree == null) {
+        tree = new MerkleTree(digests);
+      }
+      return tree;
+    }
+
+    //digests plus a tree of up to twice as many nodes
+    private long footprint() {
+      return 3L * digests.length;
+    }
+  }
+
+  /**
+   * Set how much memory cached manifests may take
+   *
+   * @param bytes the budget, least recently used manifests are dropped beyond it
+   */
+  public static void setCacheBudget(long bytes) {
+    synchronized (CACHE) {
+      cacheBudget = bytes;
+      evict();
+    }
+  }
+
+  /**
+   * Get the manifest of a file, from the cache when the file has not changed since
+   *
+   * Concurrent requests for the same manifest share a single computation.
+   *
+   * @param path full path of the file
+   * @param chunkSize chunk size in bytes
+   * @return the manifest, once computed
+   */
+  public static CompletableFuture<Manifest> get(String path, int chunkSize) {
+    if (chunkSize <= 0) {
+      return CompletableFuture.failedFuture(new IOException("Invalid chunk size"));
+    }
+    File file = new File(path);
+    ServerIndex.Entry indexed = ServerIndex.lookupPath(path); //so that proofs of indexed files cost no stat
+    long size = indexed != null ? indexed.getSize() : file.length();
+    long timestamp = indexed != null ? indexed.getTimestamp() : file.lastModified();
+    String key = chunkSize + ":" + path;
+    CompletableFuture<Manifest> future;
+    synchronized (CACHE) {
+      Manifest cached = CACHE.get(key);
+      if (cached != null && cached.fileSize == size && cached.timestamp == timestamp) {
+        return CompletableFuture.completedFuture(cached);
+      }
+      future = PENDING.get(key);
+      if (future != null) {
+        return future;
+      }
+      future = new CompletableFuture();
+      PENDING.put(key, future);
+    }
+    CompletableFuture<Manifest> result = future;
+    CompletableFuture<Manifest> computed;
+    try {
+      computed = compute(file, size, timestamp, chunkSize);
+    } catch (RuntimeException ex) {
+      //whoever joined the pending future meanwhile must not wait forever
+      computed = CompletableFuture.failedFuture(ex);
+    }
+    computed.whenComplete((m, ex) -> {
+      synchronized (CACHE) {
+        PENDING.remove(key);
+        if (m != null) {
+          Manifest old = CACHE.put(key, m);
+          if (old != null) {
+            cachedBytes -= old.footprint();
+          }
+          cachedBytes += m.footprint();
+          evict();
+        }
+      }
+      if (m != null) {
+        result.complete(m);
+      } else {
+        result.completeExceptionally(ex.getCause() != null ? ex.getCause() : ex);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Get the Merkle proof of a chunk from the manifest of its file
+   *
+   * @param manifest manifest of the file, as get() completed with
+   * @param chunkOffset chunk index
+   * @return the proof
+   * @throws IOException if the chunk is outside the file
+   */
+  public static byte[] proof(Manifest manifest, long chunkOffset) throws IOException {
+    if (chunkOffset < 0 || chunkOffset >= manifest.getChunkCount()) {
+      throw new IOException("Attempting to read chunks outside file range");
+    }
+    return manifest.getTree().proof((int) chunkOffset);
+  }
+
+  private static void evict() {
+    Iterator<Manifest> it = CACHE.values().iterator();
+    while (cachedBytes > cacheBudget && it.hasNext()) {
+      cachedBytes -= it.next().footprint();
+      it.remove();
+    }
+  }
+
+  /**
+   * Hash every chunk, slices of the file being hashed in parallel by the pool
+   */
+  private static CompletableFuture<Manifest> compute(File file, long size, long timestamp, int chunkSize) {
+    long start = System.nanoTime();
+    long chunkCount = (size + chunkSize - 1) / chunkSize;
+    if (chunkCount * DIGEST_LENGTH > MAX_DIGEST_BYTES) {
+      return CompletableFuture.failedFuture(new IOException(file.getName() + " has " + chunkCount
+              + " chunks of " + chunkSize + " bytes, more than a manifest can hold; use bigger chunks"));
+    }
+    int chunks = (int) chunkCount;
+    byte[] digests = new byte[chunks * DIGEST_LENGTH];
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    } catch (IOException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+    int slices = Math.max(1, Math.min(chunks, THREADS * 4));
+    List<CompletableFuture<Void>> parts = new ArrayList();
+    for (int s = 0; s < slices; s++) {
+      int from = (int) ((long) chunks * s / slices);
+      int to = (int) ((long) chunks * (s + 1) / slices);
+      parts.add(CompletableFuture.runAsync(() -> hashRange(channel, size, chunkSize, from, to, digests), POOL));
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).handle((v, ex) -> {
+      try {
+        channel.close();
+      } catch (IOException closeEx) {
+        System.err.println("Error closing file: " + closeEx.getLocalizedMessage());
+      }
+      if (ex != null) {
+        throw ex instanceof RuntimeException ? (RuntimeException) ex : new RuntimeException(ex);
+      }
+      System.out.println("Hashed " + chunks + " chunks of " + file.getName() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+      return new Manifest(size, timestamp, chunkSize, digests);
+    });
+  }
+
+  private static void hashRange(FileChannel channel, long size, int chunkSize, int from, int to, byte[] digests) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      ByteBuffer buf = ByteBuffer.allocate(Math.min(chunkSize, READ_SIZE));
+      for (int i = from; i < to; i++) {
+        long position = (long) i * chunkSize;
+        long end = Math.min(size, position + chunkSize);
+        while (position < end) {
+          buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+          int n = channel.read(buf, position);
+          if (n < 0) {
+            throw new IOException("File shrank while hashing");
+          }
+          md.update(buf.array(), 0, n);
+          position += n;
+        }
+        md.digest(digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+        HASHED_BYTES.add(end - (long) i * chunkSize);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } catch (NoSuchAlgorithmException | DigestException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+}
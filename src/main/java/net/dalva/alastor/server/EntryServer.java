@@ -17,10 +17,23 @@
  */
 package net.dalva.alastor.server;
 
+import io.grpc.BindableService;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import net.dalva.alastor.Main;
 import picocli.CommandLine;
@@ -31,30 +44,178 @@ import picocli.CommandLine.Option;
  * @author Dalva
  */
 @CommandLine.Command(name = "serve",
-        description = "Become server and serve files from working directory")
+        description = {"Become server and serve files from working directory", "or, with --upstream, relay another Alastor server through a local disk cache"})
 public class EntryServer implements Callable<Integer> {
 
   @Option(names = {"-p", "--port"}, description = "Port to listen to (default 41457)")
   private int port = 41457;
 
-  @Option(names = {"-d", "--dir"}, description = "Serve directory (default {workdir}/files/)")
-  private String serveDir = "./files/";
+  @Option(names = {"-d", "--dir"}, description = "Serve directory, repeat to serve from several disks as one; a name in several is served from the first (default {workdir}/files/)")
+  private List<String> serveDirs;
+
+  @Option(names = {"--digests"}, description = "Compute whole-file SHA-256 digests for file listings in the background")
+  private boolean digests = false;
+
+  @Option(names = {"--revalidate"}, description = "Seconds between rescans of the serve dirs, catching changes the file watcher misses such as on NFS; file sizes and dates are served from the index, so this bounds how stale they can be. 0 to rely on the watcher alone (default 30)")
+  private int revalidateSeconds = 30;
+
+  @Option(names = {"--io-slots"}, description = "Chunk reads served at once on each device, shared fairly between client keys (default 32)")
+  private int ioSlots = 32;
+
+  @Option(names = {"--io-queue"}, description = "Chunk reads allowed to wait for a slot on each device before the server starts refusing them (default 4096)")
+  private int ioQueue = 4096;
+
+  @Option(names = {"--grpc-threads"}, description = "Threads handling gRPC calls, disk reads are done elsewhere (default 2 per core)")
+  private int grpcThreads = 2 * Runtime.getRuntime().availableProcessors();
+
+  @Option(names = {"--key-rate"}, description = "Default bandwidth cap per client key in kB/s, 0 for none (default 0)")
+  private long keyRateKB = 0;
+
+  @Option(names = {"--key-burst"}, description = "Default burst allowance per client key in kB (default 1 second worth of --key-rate)")
+  private long keyBurstKB = 0;
+
+  @Option(names = {"--max-message"}, description = "Largest gRPC message to send or accept in kB, which caps the chunk size of plain requests (default 16384kB)")
+  private int maxMessageKB = 16384;
+
+  @Option(names = {"--fragment-size"}, description = "Chunks bigger than this are streamed in fragments of this size in kB, 0 to disable streaming (default 1024kB)")
+  private int fragmentKB = 1024;
+
+  @Option(names = {"--epoll"}, description = "Use the native Linux epoll transport instead of NIO, if available")
+  private boolean epoll = false;
+
+  @Option(names = {"--boss-threads"}, description = "Event loop threads accepting connections (default 1)")
+  private int bossThreads = 1;
+
+  @Option(names = {"--worker-threads"}, description = "Event loop threads doing connection I/O, 0 for netty's default of 2 per core (default 0)")
+  private int workerThreads = 0;
+
+  @Option(names = {"--listeners"}, description = "Listening sockets sharing the port with SO_REUSEPORT, so accepts are spread over the boss threads; needs --epoll (default 1)")
+  private int listeners = 1;
+
+  @Option(names = {"--flow-window"}, description = "HTTP/2 flow-control window per stream in kB, roughly what a connection may have in flight (default 1024kB)")
+  private int flowWindowKB = 1024;
+
+  @Option(names = {"--keepalive"}, description = "Seconds of inactivity before pinging a client, 0 to disable (default 60)")
+  private int keepaliveSeconds = 60;
+
+  @Option(names = {"--max-idle"}, description = "Seconds a connection may stay without calls before it is closed, 0 to keep it forever (default 300)")
+  private int maxIdleSeconds = 300;
+
+  @Option(names = {"--prefetch"}, description = "Most chunks to read ahead of ascending requests for a file, scaled by how many requests are in flight; 0 to disable (default 32)")
+  private int prefetchDepth = 32;
+
+  @Option(names = {"--prefetch-threads"}, description = "Threads reading ahead (default 4)")
+  private int prefetchThreads = 4;
+
+  @Option(names = {"--prefetch-memory"}, description = "Most memory held by chunks read ahead, all files together, in MB (default 256MB)")
+  private long prefetchMemoryMB = 256;
+
+  @Option(names = {"--hot-memory"}, description = "Memory for small and popular files served straight from memory, in MB, 0 to disable (default 128MB)")
+  private long hotMemoryMB = 128;
+
+  @Option(names = {"--hot-size"}, description = "Files up to this size in kB are held in memory from their first request (default 1024kB)")
+  private long hotSizeKB = 1024;
+
+  @Option(names = {"--hot-hits"}, description = "Bigger files are held in memory once requested this many times in a minute, 0 for never (default 1000)")
+  private int hotHits = 1000;
+
+  @Option(names = {"--manifest-memory"}, description = "Most memory held by cached chunk digests and Merkle trees, in MB (default 256MB)")
+  private long manifestMemoryMB = 256;
+
+  @Option(names = {"--allow-upload"}, description = "Accept files uploaded with \"put\" into the serve dir, replacing existing ones")
+  private boolean allowUpload = false;
+
+  @Option(names = {"--upstream"}, description = "Relay another Alastor server instead of serving a dir: its files are fetched on demand, cached on disk and served from there (e.g. origin.example.com:41457)")
+  private String upstreamAddress;
+
+  @Option(names = {"--upstream-key"}, description = "Client key this relay is trusted with upstream")
+  private String upstreamKey;
+
+  @Option(names = {"--upstream-notls"}, description = "Connect to the upstream server without TLS")
+  private boolean upstreamNotls = false;
+
+  @Option(names = {"--upstream-connections"}, description = "Connections to the upstream server, each fetching one chunk at a time (default 16)")
+  private int upstreamConnections = 16;
+
+  @Option(names = {"--upstream-verify"}, description = "Check every chunk fetched upstream against its Merkle tree, and not only its CRC32")
+  private boolean upstreamVerify = false;
+
+  @Option(names = {"--relay-chunk"}, description = "Size of the chunks a relay fetches and caches, in kB (default 1024kB)")
+  private int relayChunkKB = 1024;
+
+  @Option(names = {"--relay-prefetch"}, description = "Chunks a relay fetches ahead of every request, so the upstream link stays busy (default 16)")
+  private int relayPrefetch = 16;
+
+  @Option(names = {"--cache-dir"}, description = "Directory a relay caches upstream files in (default {workdir}/cache/)")
+  private String cacheDir = "./cache/";
+
+  @Option(names = {"--cache-size"}, description = "Most disk space for a relay's cached files in MB, the least recently used go first (default 10240MB)")
+  private long cacheSizeMB = 10240;
+
+  @Option(names = {"--metrics-port"}, description = "Serve Prometheus metrics at http://127.0.0.1:<port>/metrics (default disabled)")
+  private int metricsPort = 0;
 
   @CommandLine.Parameters(index = "0", defaultValue = "./clients.keylist", description = {"Trusted Keys (default {workdir}/clients.keylist)", "newline-separated list of trusted client keys"})
   private String trustedKeysFile;
 
   private Server server;
+  private Upstream upstream;
+  private ExecutorService grpcExecutor;
+  private EventLoopGroup bossGroup;
+  private EventLoopGroup workerGroup;
 
   @Override
   public Integer call() throws Exception {
     System.out.println(Main.VERSION_FULL);
-    System.out.println("Serving directory: " + serveDir);
+    if (serveDirs == null || serveDirs.isEmpty()) {
+      serveDirs = Collections.singletonList("./files/");
+    }
     System.out.println("Configuration looks good, igniting Alastor...");
     
+    Auth.setDefaultPolicy(new Auth.KeyPolicy(1, keyRateKB * 1024, keyBurstKB * 1024));
     Auth.setup(trustedKeysFile);
-    ServerFileHandler.setPrefix(serveDir);
+    ChunkHashes.setCacheBudget(manifestMemoryMB * 1024 * 1024);
+    if (upstreamAddress != null) {
+      return relay();
+    }
+    Volumes.setup(serveDirs, ioSlots, ioQueue);
+    for (Volumes.Volume volume : Volumes.all()) {
+      System.out.println("Serving directory: " + volume.getRoot() + " (I/O queue " + volume.getDevice().getName() + ")");
+    }
+    HotFiles.setup(hotMemoryMB * 1024 * 1024, hotSizeKB * 1024, hotHits);
+    ReadAhead.setup(prefetchDepth, prefetchThreads, prefetchMemoryMB * 1024 * 1024);
+    ServerIndex.setup(serveDirs, digests, revalidateSeconds);
+    if (allowUpload) {
+      UploadSession.setup(Volumes.primary().getPrefix());
+      System.out.println("Uploads are allowed, into " + Volumes.primary().getRoot());
+    }
     
-    start();
+    start(new AlastorImpl(maxMessageKB * 1024, fragmentKB * 1024));
+    return serveUntilShutdown();
+  }
+
+  /**
+   * Serve the files of the upstream server out of the cache dir
+   */
+  private Integer relay() throws Exception {
+    if (upstreamKey == null) {
+      System.err.println("--upstream needs --upstream-key");
+      return 1;
+    }
+    int relayChunk = relayChunkKB * 1024;
+    upstream = new Upstream(upstreamAddress, upstreamKey, upstreamNotls, upstreamConnections, relayChunk);
+    RelayCache.setup(cacheDir, cacheSizeMB * 1024 * 1024, relayChunk, upstream, relayPrefetch, upstreamVerify);
+    Volumes.setup(Collections.singletonList(cacheDir), ioSlots, ioQueue);
+    System.out.println("Relaying " + upstreamAddress + " over " + upstreamConnections + " connections, caching into "
+            + Volumes.primary().getRoot() + " (up to " + cacheSizeMB + " MB)");
+    start(new RelayImpl(maxMessageKB * 1024, upstream));
+    return serveUntilShutdown();
+  }
+
+  private Integer serveUntilShutdown() throws Exception {
+    if (metricsPort > 0) {
+      ServerMetrics.startEndpoint(metricsPort);
+    }
     
     System.out.println("");
     System.out.println(CommandLine.Help.Ansi.AUTO.string(
@@ -67,12 +228,27 @@ public class EntryServer implements Callable<Integer> {
     return 0;
   }
 
-  public void start() throws IOException {
-    server = ServerBuilder.forPort(port)
-            .addService(new net.dalva.alastor.server.AlastorImpl())
-            .build()
-            .start();
-    System.out.println("Server started. Listening at port: " + port);
+  public void start(BindableService service) throws IOException {
+    grpcExecutor = Executors.newFixedThreadPool(grpcThreads, (r) -> {
+      Thread t = new Thread(r, "alastor-grpc");
+      t.setDaemon(true);
+      return t;
+    });
+    NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+            .executor(grpcExecutor)
+            .maxInboundMessageSize(maxMessageKB * 1024)
+            .flowControlWindow(flowWindowKB * 1024)
+            .permitKeepAliveTime(10, TimeUnit.SECONDS)
+            .addService(service);
+    if (keepaliveSeconds > 0) {
+      builder.keepAliveTime(keepaliveSeconds, TimeUnit.SECONDS).keepAliveTimeout(20, TimeUnit.SECONDS);
+    }
+    if (maxIdleSeconds > 0) {
+      builder.maxConnectionIdle(maxIdleSeconds, TimeUnit.SECONDS);
+    }
+    String transport = setupTransport(builder);
+    server = builder.build().start();
+    System.out.println("Server started. Listening at port: " + port + " (" + transport + ")");
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
@@ -87,10 +263,64 @@ public class EntryServer implements Callable<Integer> {
     });
   }
 
+  /**
+   * Pick the transport and give it explicitly sized event loops
+   *
+   * @param builder server being built
+   * @return description of the transport, for the log
+   */
+  private String setupTransport(NettyServerBuilder builder) {
+    boolean useEpoll = epoll && Epoll.isAvailable();
+    if (epoll && !useEpoll) {
+      System.err.println("Warning: epoll transport not available (" + Epoll.unavailabilityCause().getLocalizedMessage() + "), using NIO");
+    }
+    if (!useEpoll && listeners > 1) {
+      System.err.println("Warning: --listeners needs the epoll transport, using a single listener");
+    }
+    int sockets = useEpoll ? Math.max(1, listeners) : 1;
+    if (useEpoll) {
+      bossGroup = new EpollEventLoopGroup(bossThreads, new DefaultThreadFactory("alastor-boss", true));
+      workerGroup = new EpollEventLoopGroup(workerThreads, new DefaultThreadFactory("alastor-io", true));
+      builder.channelFactory(() -> {
+        EpollServerSocketChannel channel = new EpollServerSocketChannel();
+        //every listener binds the same port, the kernel balances new connections between them
+        channel.config().setReusePort(sockets > 1);
+        return channel;
+      });
+      for (int i = 1; i < sockets; i++) {
+        builder.addListenAddress(new InetSocketAddress(port));
+      }
+    } else {
+      bossGroup = new NioEventLoopGroup(bossThreads, new DefaultThreadFactory("alastor-boss", true));
+      workerGroup = new NioEventLoopGroup(workerThreads, new DefaultThreadFactory("alastor-io", true));
+      builder.channelType(NioServerSocketChannel.class);
+    }
+    builder.bossEventLoopGroup(bossGroup).workerEventLoopGroup(workerGroup);
+    return (useEpoll ? "epoll" : "nio") + ", " + sockets + " listener(s)";
+  }
+
   public void stop() throws InterruptedException {
     if (server != null) {
       server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
     }
+    //the event loops were handed to the builder, so they are ours to release
+    if (bossGroup != null) {
+      bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+    if (workerGroup != null) {
+      workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+    if (grpcExecutor != null) {
+      grpcExecutor.shutdown();
+    }
+    if (UploadSession.isEnabled()) {
+      UploadSession.checkpointAll(); //so unfinished uploads resume from where they were
+    }
+    if (RelayCache.isEnabled()) {
+      RelayCache.checkpointAll(); //so what was fetched is not fetched again
+      upstream.shutdown();
+    }
+    ServerMetrics.stopEndpoint();
   }
 
   /**
@@ -0,0 +1,239 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Weighted fair-share dispatcher for chunk reads, grouped by client key.
+ *
+ * At most {@code slots} reads run at once. Whenever a slot frees up, the backlogged client with the least
+ * weighted service so far goes next (stride scheduling), so an idle client's share is handed to the busy ones
+ * and the server stays saturated. Clients may additionally be capped by a token bucket.
+ *
+ * The queue is bounded: once {@code maxQueued} reads are waiting, new ones are refused so the caller can
+ * shed load right away instead of letting clients wait out their deadlines.
+ *
+ * @author Dalva
+ */
+public class FairScheduler {
+
+  private final String name;
+  private final int slots;
+  private final int maxQueued;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService timer;
+  private final Map<String, Tenant> tenants = new HashMap();
+
+  private int running = 0;
+  private int queued = 0;
+  private double globalPass = 0;
+  private ScheduledFuture<?> wakeup;
+  private double serviceNanos = 1_000_000; //moving average of how long a read takes
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * A client's queue and accounting
+   */
+  private static class Tenant {
+
+    private final Auth.KeyPolicy policy;
+    private final ArrayDeque<Task> queue = new ArrayDeque();
+    private double pass = 0; //weighted bytes served so far
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private Tenant(Auth.KeyPolicy policy) {
+      this.policy = policy;
+      this.tokens = policy.getBurstBytes();
+    }
+
+    private void refill(long now) {
+      if (policy.getRateBytes() > 0) {
+        tokens = Math.min(policy.getBurstBytes(), tokens + (now - lastRefill) / 1e9 * policy.getRateBytes());
+      }
+      lastRefill = now;
+    }
+
+    /**
+     * @return nanoseconds until the head of the queue may run, 0 if it may run now
+     */
+    private long delayNanos() {
+      if (policy.getRateBytes() <= 0) {
+        return 0;
+      }
+      double needed = Math.min(queue.peek().cost, policy.getBurstBytes()) - tokens;
+      return needed <= 0 ? 0 : (long) (needed / policy.getRateBytes() * 1e9) + 1;
+    }
+  }
+
+  private static class Task {
+
+    private final long cost;
+    private final Runnable work;
+    private final long enqueuedAt = System.nanoTime();
+
+    private Task(long cost, Runnable work) {
+      this.cost = cost;
+      this.work = work;
+    }
+  }
+
+  /**
+   * Create a scheduler
+   *
+   * @param name name used for threads and metrics
+   * @param slots maximum reads running at once, which is also the worker thread count
+   * @param maxQueued maximum reads waiting for a slot
+   */
+  public FairScheduler(String name, int slots, int maxQueued) {
+    this.name = name;
+    this.slots = slots;
+    this.maxQueued = maxQueued;
+    this.workers = Executors.newFixedThreadPool(slots, (r) -> {
+      Thread t = new Thread(r, "alastor-" + name + "-worker");
+      t.setDaemon(true);
+      return t;
+    });
+    this.timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "alastor-" + name + "-timer");
+      t.setDaemon(true);
+      return t;
+    });
+    ServerMetrics.gauge("alastor_scheduler_running{scheduler=\"" + name + "\"}", this::getRunning);
+    ServerMetrics.gauge("alastor_scheduler_queued{scheduler=\"" + name + "\"}", this::getQueued);
+    ServerMetrics.gauge("alastor_scheduler_queue_limit{scheduler=\"" + name + "\"}", () -> maxQueued);
+    ServerMetrics.counter("alastor_scheduler_rejected_total{scheduler=\"" + name + "\"}", rejected::sum);
+  }
+
+  /**
+   * Queue a read on behalf of a client
+   *
+   * @param apiKey the client's key
+   * @param cost bytes the read is going to serve
+   * @param work the read itself, run on a worker thread
+   * @return false if the queue is full and the read has been refused
+   */
+  public synchronized boolean submit(String apiKey, long cost, Runnable work) {
+    if (queued >= maxQueued) {
+      rejected.increment();
+      return false;
+    }
+    Tenant tenant = tenants.computeIfAbsent(apiKey, (k) -> new Tenant(Auth.policyOf(k)));
+    if (tenant.queue.isEmpty()) {
+      //a client coming back from idle must not cash in the time it was away
+      tenant.pass = Math.max(tenant.pass, globalPass);
+    }
+    tenant.queue.add(new Task(cost, work));
+    queued++;
+    dispatch();
+    return true;
+  }
+
+  /**
+   * Estimate how long until a read submitted now would get a slot
+   *
+   * @return suggested wait in milliseconds
+   */
+  public synchronized long estimateWaitMillis() {
+    return Math.max(1, (long) ((queued + 1) * serviceNanos / slots / 1_000_000));
+  }
+
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  public synchronized int getQueued() {
+    return queued;
+  }
+
+  /**
+   * Start as many queued reads as there are free slots
+   */
+  private synchronized void dispatch() {
+    long now = System.nanoTime();
+    long soonest = Long.MAX_VALUE;
+    while (running < slots) {
+      Tenant next = null;
+      soonest = Long.MAX_VALUE;
+      for (Tenant t : tenants.values()) {
+        if (t.queue.isEmpty()) {
+          continue;
+        }
+        t.refill(now);
+        long delay = t.delayNanos();
+        if (delay > 0) {
+          soonest = Math.min(soonest, delay);
+        } else if (next == null || t.pass < next.pass) {
+          next = t;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      Task task = next.queue.poll();
+      queued--;
+      running++;
+      next.tokens -= task.cost;
+      next.pass += task.cost / next.policy.getWeight();
+      globalPass = next.pass;
+      ServerMetrics.QUEUE_WAIT.recordSince(task.enqueuedAt);
+      workers.execute(() -> {
+        long started = System.nanoTime();
+        try {
+          task.work.run();
+        } finally {
+          finished(System.nanoTime() - started);
+        }
+      });
+    }
+    //everyone left is throttled, come back when the first of them may go
+    if (running < slots && soonest != Long.MAX_VALUE && wakeup == null) {
+      wakeup = timer.schedule(() -> {
+        synchronized (FairScheduler.this) {
+          wakeup = null;
+          dispatch();
+        }
+      }, soonest, TimeUnit.NANOSECONDS);
+    }
+    //forget idle clients so the map does not grow forever
+    if (queued == 0 && tenants.size() > 1024) {
+      tenants.values().removeIf((t) -> t.queue.isEmpty());
+    }
+  }
+
+  private synchronized void finished(long nanos) {
+    serviceNanos = serviceNanos * 0.99 + nanos * 0.01;
+    running--;
+    dispatch();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+}
@@ -0,0 +1,183 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A version of a file opened by a client, referenced by chunk requests through an opaque handle.
+ *
+ * The handle is issued by GetFileInfo once the key has been checked and the name resolved, so a chunk request only
+ * costs a map lookup: no path sanitizing, canonical path checks or key list scan. It is bound to the key it was issued
+ * to and to the index entry of the file at the time, and the index replaces the entry whenever the file changes, so a
+ * file changing under a transfer shows as the entry no longer being current.
+ *
+ * @author Dalva
+ */
+public class FileSession {
+
+  //how long a handle stays valid without chunk requests
+  private static final long IDLE_MILLIS = 10 * 60 * 1000;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private static final Map<String, FileSession> SESSIONS = new ConcurrentHashMap();
+  private static final Map<String, FileSession> BY_CLIENT_FILE = new ConcurrentHashMap();
+  private static final LongAdder CHANGED = new LongAdder();
+  private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor((r) -> {
+    Thread t = new Thread(r, "alastor-sessions");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static {
+    SWEEPER.scheduleWithFixedDelay(FileSession::expire, 1, 1, TimeUnit.MINUTES);
+    ServerMetrics.gauge("alastor_file_sessions", () -> SESSIONS.size());
+    ServerMetrics.counter("alastor_file_sessions_changed_total", CHANGED::sum);
+  }
+
+  private final String handle;
+  private final String apiKey;
+  private final ServerIndex.Entry entry;
+  private ServerFileHandler fh;
+  private volatile long lastUsed = System.currentTimeMillis();
+
+  private FileSession(String handle, String apiKey, ServerIndex.Entry entry) {
+    this.handle = handle;
+    this.apiKey = apiKey;
+    this.entry = entry;
+  }
+
+  /**
+   * Get a handle on the current version of an indexed file, reusing the one the client already has for it
+   *
+   * @param apiKey the client's key, already checked
+   * @param entry index entry of the file
+   * @return the session
+   */
+  public static FileSession open(String apiKey, ServerIndex.Entry entry) {
+    return BY_CLIENT_FILE.compute(apiKey + '\n' + entry.getName(), (k, old) -> {
+      if (old != null && old.entry == entry) {
+        old.lastUsed = System.currentTimeMillis();
+        return old;
+      }
+      if (old != null) {
+        SESSIONS.remove(old.handle);
+      }
+      byte[] bytes = new byte[16];
+      RANDOM.nextBytes(bytes);
+      StringBuilder sb = new StringBuilder(32);
+      for (byte b : bytes) {
+        sb.append(String.format("%02x", b));
+      }
+      FileSession session = new FileSession(sb.toString(), apiKey, entry);
+      SESSIONS.put(session.handle, session);
+      return session;
+    });
+  }
+
+  /**
+   * Find the session of a handle
+   *
+   * @param handle handle as issued
+   * @param apiKey key of the client using it
+   * @return the session, null if there is none or it was issued to another key
+   */
+  public static FileSession find(String handle, String apiKey) {
+    FileSession session = SESSIONS.get(handle);
+    if (session == null || !session.apiKey.equals(apiKey)) {
+      return null;
+    }
+    session.lastUsed = System.currentTimeMillis();
+    return session;
+  }
+
+  /**
+   * Whether the file is still the version the handle was issued for. A changed file ends the session.
+   *
+   * @return false if the file has changed or is gone
+   */
+  public boolean isCurrent() {
+    if (ServerIndex.lookup(entry.getName()) == entry) {
+      return true;
+    }
+    if (SESSIONS.remove(handle, this)) {
+      BY_CLIENT_FILE.remove(apiKey + '\n' + entry.getName(), this);
+      CHANGED.increment();
+    }
+    return false;
+  }
+
+  public String getHandle() {
+    return handle;
+  }
+
+  /**
+   * @return name of the file, relative to the serve dir
+   */
+  public String getName() {
+    return entry.getName();
+  }
+
+  /**
+   * @return the I/O queue of the device the file is on
+   */
+  public FairScheduler getScheduler() {
+    return Volumes.get(entry.getRoot()).getScheduler();
+  }
+
+  public long getSize() {
+    return entry.getSize();
+  }
+
+  public long getTimestamp() {
+    return entry.getTimestamp();
+  }
+
+  /**
+   * Get the open file, opening it again if it has been closed since
+   *
+   * @return the file handler
+   * @throws IOException
+   */
+  public synchronized ServerFileHandler handler() throws IOException {
+    if (fh == null || !fh.getChannel().isOpen()) {
+      fh = ServerFileHandler.get(entry.getName(), true);
+    }
+    return fh;
+  }
+
+  private static void expire() {
+    long now = System.currentTimeMillis();
+    for (Iterator<FileSession> it = SESSIONS.values().iterator(); it.hasNext();) {
+      FileSession session = it.next();
+      if (now - session.lastUsed > IDLE_MILLIS) {
+        it.remove();
+        BY_CLIENT_FILE.remove(session.apiKey + '\n' + session.entry.getName(), session);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import net.dalva.alastor.Tools;
+import net.dalva.alastor.grpc.ErrorMsg;
+import net.dalva.alastor.grpc.FileData;
+
+/**
+ * Sends a single large chunk as a stream of fragments, one fragment per scheduler turn.
+ *
+ * A fragment is only read once the transport is ready to take it, so at most about one fragment per chunk is
+ * held in memory however big the chunk is. The CRC covers the whole chunk and goes out with the final fragment.
+ *
+ * @author Dalva
+ */
+public class FragmentSender implements Runnable {
+
+  private final FairScheduler scheduler;
+  private final ServerCallStreamObserver<FileData> observer;
+  private final ServerMetrics.Call calls;
+  private final long callStart;
+  private final String apiKey;
+  private final ServerFileHandler fh;
+  private final long chunkStart;
+  private final long length;
+  private final int fragmentSize;
+  private final CRC32 crc = new CRC32();
+  private final AtomicBoolean waitingForReady = new AtomicBoolean(false);
+
+  private byte[] proof;
+  private long sent = 0;
+  private boolean done = false;
+
+  /**
+   * @param scheduler scheduler to queue each fragment read on
+   * @param observer the call's response stream
+   * @param calls metrics of the call
+   * @param callStart System.nanoTime() at the start of the call
+   * @param apiKey the client's key
+   * @param fh file to read
+   * @param chunkOffset chunk index
+   * @param chunkSize size of each chunk
+   * @param fragmentSize size of each fragment
+   * @throws IOException if the chunk is outside the file
+   */
+  public FragmentSender(FairScheduler scheduler, ServerCallStreamObserver<FileData> observer, ServerMetrics.Call calls, long callStart,
+          String apiKey, ServerFileHandler fh, long chunkOffset, int chunkSize, int fragmentSize) throws IOException {
+    this.scheduler = scheduler;
+    this.observer = observer;
+    this.calls = calls;
+    this.callStart = callStart;
+    this.apiKey = apiKey;
+    this.fh = fh;
+    this.chunkStart = chunkOffset * chunkSize;
+    this.length = fh.chunkLength(chunkOffset, chunkSize);
+    this.fragmentSize = fragmentSize;
+    //handlers can only be set before the call returns, even if the sender starts later
+    observer.setOnReadyHandler(this::onReady);
+    observer.setOnCancelHandler(() -> {
+      synchronized (this) {
+        if (!done) {
+          finish(1);
+        }
+      }
+    });
+  }
+
+  /**
+   * Queue the first fragment, or refuse the call if the scheduler is full. Does nothing if the call was cancelled.
+   *
+   * @param proof Merkle proof of the chunk to send with the final fragment, null for none
+   */
+  public synchronized void start(byte[] proof) {
+    if (done) {
+      return;
+    }
+    this.proof = proof;
+    if (!scheduler.submit(apiKey, Math.min(fragmentSize, length), this)) {
+      refuse();
+    }
+  }
+
+  /**
+   * Reply with an error instead of the chunk, unless the call is already over
+   *
+   * @param code ErrorMsg code
+   * @param msg error message
+   */
+  public synchronized void fail(int code, String msg) {
+    if (done) {
+      return;
+    }
+    observer.onNext(FileData.newBuilder().setError(ErrorMsg.newBuilder()
+            .setCode(code)
+            .setMsg(msg)
+            .build()).build());
+    observer.onCompleted();
+    finish(code);
+  }
+
+  /**
+   * Send the next fragment, then either finish, queue the one after, or wait for the transport to drain
+   */
+  @Override
+  public synchronized void run() {
+    if (done) {
+      return;
+    }
+    if (observer.isCancelled()) {
+      finish(1);
+      return;
+    }
+    try {
+      int n = (int) Math.min(fragmentSize, length - sent);
+      byte[] fragment = fh.readRange(chunkStart + sent, n);
+      long stage = System.nanoTime();
+      crc.update(fragment);
+      stage = ServerMetrics.CRC.recordSince(stage);
+      boolean last = sent + n == length;
+      FileData.Builder reply = FileData.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(fh.getFileName())
+              .setChunkData(ByteString.copyFrom(fragment))
+              .setFragmentOffset(sent)
+              .setFinalFragment(last);
+      if (last) {
+        reply.setChunkCrc32(crc.getValue());
+        if (proof != null) {
+          reply.setChunkProof(ByteString.copyFrom(proof));
+        }
+      }
+      observer.onNext(reply.build());
+      ServerMetrics.SERIALIZE.recordSince(stage);
+      ServerMetrics.served(apiKey, n);
+      sent += n;
+      if (last) {
+        observer.onCompleted();
+        finish(0);
+        return;
+      }
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      observer.onNext(FileData.newBuilder().setError(ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg(ex.getLocalizedMessage())
+              .build()).build());
+      observer.onCompleted();
+      finish(10);
+      return;
+    }
+    waitingForReady.set(true);
+    if (observer.isReady()) {
+      onReady(); //it may have drained before we started waiting
+    }
+  }
+
+  private void onReady() {
+    if (waitingForReady.compareAndSet(true, false) && !scheduler.submit(apiKey, Math.min(fragmentSize, length - sent), this)) {
+      synchronized (this) {
+        refuse();
+      }
+    }
+  }
+
+  private void refuse() {
+    Metadata trailers = new Metadata();
+    trailers.put(Tools.RETRY_AFTER_MS, Long.toString(scheduler.estimateWaitMillis()));
+    observer.onError(Status.RESOURCE_EXHAUSTED
+            .withDescription("Server is busy, retry later")
+            .asRuntimeException(trailers));
+    finish(3);
+  }
+
+  private void finish(int code) {
+    done = true;
+    calls.end(callStart, code);
+  }
+
+}
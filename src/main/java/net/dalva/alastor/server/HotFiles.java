@@ -0,0 +1,331 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import net.dalva.alastor.Tools;
+
+/**
+ * Small and popular files held whole in off-heap memory, with the CRCs of their chunks computed once per chunk size.
+ *
+ * Chunks of a hot file are served without a file handle or any disk access. Whether a hot file is still current is
+ * checked against the index, which the watcher keeps fresh, so that does not touch the disk either. A file that changed
+ * is dropped and loaded again on its next request.
+ *
+ * @author Dalva
+ */
+public class HotFiles {
+
+  private static final Map<String, Entry> FILES = new ConcurrentHashMap();
+  //requests per file in the current minute, for files too big to be taken in on their size alone
+  private static final Map<String, AtomicInteger> RECENT = new ConcurrentHashMap();
+  private static final Map<String, Boolean> LOADING = new ConcurrentHashMap();
+  private static final LongAdder HITS = new LongAdder();
+  private static final LongAdder LOADS = new LongAdder();
+  private static final ScheduledExecutorService LOADER = Executors.newSingleThreadScheduledExecutor((r) -> {
+    Thread t = new Thread(r, "alastor-hot-loader");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static long memoryBudget = 0;
+  private static long maxSmallSize = 0;
+  private static int hitsPerMinute = 0;
+  private static long usedBytes = 0;
+
+  /**
+   * A file held in memory
+   */
+  public static class Entry {
+
+    private final String name;
+    private final String path;
+    private final long size;
+    private final long timestamp;
+    private final ByteBuffer data;
+    private final Map<Integer, long[]> crcs = new ConcurrentHashMap();
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private Entry(String name, String path, long size, long timestamp, ByteBuffer data) {
+      this.name = name;
+      this.path = path;
+      this.size = size;
+      this.timestamp = timestamp;
+      this.data = data;
+    }
+
+    /**
+     * @return path of the file, the same as ServerFileHandler.getFileName() gives for it
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Get a chunk, wrapping the memory it is held in rather than copying it
+     *
+     * @param chunkOffset chunk index
+     * @param chunkSize size of each chunk
+     * @return the chunk
+     * @throws IOException if the chunk is outside the file
+     */
+    public ByteString chunk(long chunkOffset, int chunkSize) throws IOException {
+      long start = chunkOffset * chunkSize;
+      if (chunkOffset < 0 || start > size || (start == size && size > 0)) {
+        throw new IOException("Attempting to read chunks outside file range");
+      }
+      ByteBuffer slice = data.duplicate();
+      slice.position((int) start).limit((int) Math.min(size, start + chunkSize));
+      return UnsafeByteOperations.unsafeWrap(slice.slice());
+    }
+
+    /**
+     * Get the CRC32 of a chunk, computing those of every chunk of that size the first time. They are kept for next
+     * time only if the memory budget has room for them.
+     *
+     * @param chunkOffset chunk index, within the file
+     * @param chunkSize size of each chunk
+     * @return the checksum
+     */
+    public long crc(long chunkOffset, int chunkSize) {
+      long[] result = crcs.get(chunkSize);
+      if (result == null) {
+        result = computeCrcs(chunkSize);
+        keepCrcs(chunkSize, result);
+      }
+      return result[(int) chunkOffset];
+    }
+
+    //under the class lock, so that forget() either sees them in the footprint or keeps us from adding them
+    private void keepCrcs(int chunkSize, long[] result) {
+      synchronized (HotFiles.class) {
+        if (FILES.get(name) == this && !crcs.containsKey(chunkSize) && makeRoom(8L * result.length, this)) {
+          crcs.put(chunkSize, result);
+        }
+      }
+    }
+
+    private long[] computeCrcs(int chunkSize) {
+      int count = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+      long[] result = new long[count];
+      CRC32 crc = new CRC32();
+      for (int i = 0; i < count; i++) {
+        ByteBuffer slice = data.duplicate();
+        slice.position((int) Math.min(size, (long) i * chunkSize)).limit((int) Math.min(size, (long) (i + 1) * chunkSize));
+        crc.reset();
+        crc.update(slice);
+        result[i] = crc.getValue();
+      }
+      return result;
+    }
+
+    private long footprint() {
+      long bytes = size;
+      for (long[] c : crcs.values()) {
+        bytes += 8L * c.length;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Enable the hot tier
+   *
+   * @param budgetBytes most memory held by hot files, 0 to disable
+   * @param smallSize files up to this size in bytes are taken in on their first request
+   * @param minHits bigger files are taken in once requested this many times in a minute, 0 for never
+   */
+  public static void setup(long budgetBytes, long smallSize, int minHits) {
+    memoryBudget = budgetBytes;
+    maxSmallSize = smallSize;
+    hitsPerMinute = minHits;
+    if (budgetBytes <= 0) {
+      return;
+    }
+    LOADER.scheduleAtFixedRate(RECENT::clear, 1, 1, TimeUnit.MINUTES);
+    ServerMetrics.gauge("alastor_hot_files", () -> FILES.size());
+    ServerMetrics.gauge("alastor_hot_bytes", () -> {
+      synchronized (HotFiles.class) {
+        return usedBytes;
+      }
+    });
+    ServerMetrics.counter("alastor_hot_hits_total", HITS::sum);
+    ServerMetrics.counter("alastor_hot_loads_total", LOADS::sum);
+  }
+
+  public static boolean isEnabled() {
+    return memoryBudget > 0;
+  }
+
+  /**
+   * Get a file from the hot tier, if it is there and still current
+   *
+   * @param fname requested file name
+   * @return the file, or null if it has to be read from the disk
+   */
+  public static Entry lookup(String fname) {
+    if (memoryBudget <= 0) {
+      return null;
+    }
+    Entry hot = FILES.get(fname);
+    if (hot == null) {
+      return null;
+    }
+    ServerIndex.Entry indexed = ServerIndex.lookup(fname);
+    if (indexed == null || indexed.getSize() != hot.size || indexed.getTimestamp() != hot.timestamp) {
+      forget(fname); //changed or gone, it is loaded again on a later request if it is still wanted
+      return null;
+    }
+    hot.lastUsed = System.currentTimeMillis();
+    HITS.increment();
+    return hot;
+  }
+
+  /**
+   * Account a request served from the disk, and take the file in if it is small or popular enough
+   *
+   * @param fname requested file name
+   * @param chunkSize chunk size of the request, whose CRCs are computed along with the load
+   */
+  public static void touch(String fname, int chunkSize) {
+    if (memoryBudget <= 0) {
+      return;
+    }
+    ServerIndex.Entry indexed = ServerIndex.lookup(fname);
+    if (indexed == null || indexed.getSize() > memoryBudget || indexed.getSize() > Integer.MAX_VALUE) {
+      return; //only indexed names, so every file has a single one
+    }
+    if (indexed.getSize() > maxSmallSize) {
+      int hits = RECENT.computeIfAbsent(fname, (n) -> new AtomicInteger()).incrementAndGet();
+      if (hitsPerMinute <= 0 || hits < hitsPerMinute) {
+        return;
+      }
+    }
+    if (LOADING.putIfAbsent(fname, Boolean.TRUE) == null) {
+      LOADER.execute(() -> {
+        try {
+          load(fname, indexed, chunkSize);
+        } catch (IOException ex) {
+          System.err.println("Cannot load hot file " + fname + ": " + ex.getLocalizedMessage());
+        } finally {
+          LOADING.remove(fname);
+        }
+      });
+    }
+  }
+
+  /**
+   * Drop a file from the hot tier
+   *
+   * @param fname requested file name
+   */
+  public static void forget(String fname) {
+    Entry hot = FILES.remove(fname);
+    if (hot != null) {
+      synchronized (HotFiles.class) {
+        usedBytes -= hot.footprint();
+      }
+    }
+  }
+
+  private static void load(String fname, ServerIndex.Entry indexed, int chunkSize) throws IOException {
+    if (FILES.containsKey(fname)) {
+      return;
+    }
+    //same containment rule as ServerFileHandler.get, a symlink must not bring in a file from outside the serve dir
+    String prefix = Volumes.of(fname).getPrefix();
+    File file = new File(prefix + Tools.sanitizePath(fname));
+    if (!file.getCanonicalPath().startsWith(new File(prefix).getCanonicalPath() + File.separator)) {
+      throw new IOException("Cannot open files outside serve dir");
+    }
+    String path = file.getPath();
+    long size = indexed.getSize();
+    if (!makeRoom(size, null)) {
+      return;
+    }
+    Entry hot;
+    boolean loaded = false;
+    try {
+      ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        while (data.hasRemaining()) {
+          if (channel.read(data, data.position()) < 0) {
+            break;
+          }
+        }
+      }
+      if (data.hasRemaining() || file.length() != size || file.lastModified() != indexed.getTimestamp()) {
+        return; //changed while we were reading it, maybe next time
+      }
+      data.flip();
+      hot = new Entry(fname, path, size, indexed.getTimestamp(), data.asReadOnlyBuffer());
+      FILES.put(fname, hot);
+      loaded = true;
+    } finally {
+      //failed to open or read, or out of direct memory: give the reservation back or it is lost for good
+      if (!loaded) {
+        synchronized (HotFiles.class) {
+          usedBytes -= size;
+        }
+      }
+    }
+    if (chunkSize > 0) {
+      hot.crc(0, chunkSize);
+    }
+    LOADS.increment();
+    System.out.println("Hot file loaded: " + fname + " (" + size / 1024 + " kB)");
+  }
+
+  /**
+   * Reserve memory for a file or its checksums, dropping the least recently used files as needed
+   *
+   * @param keep file the memory is for, never dropped to make room, or null
+   * @return false if it cannot fit
+   */
+  private static synchronized boolean makeRoom(long size, Entry keep) {
+    while (usedBytes + size > memoryBudget) {
+      Entry coldest = null;
+      for (Entry e : FILES.values()) {
+        if (e != keep && (coldest == null || e.lastUsed < coldest.lastUsed)) {
+          coldest = e;
+        }
+      }
+      if (coldest == null) {
+        return false;
+      }
+      forget(coldest.name);
+    }
+    usedBytes += size;
+    return true;
+  }
+
+}
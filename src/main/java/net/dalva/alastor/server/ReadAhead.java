@@ -0,0 +1,262 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sequential read-ahead of a single file's chunks of one size.
+ *
+ * Clients mostly ask for chunks in ascending order, spread over many connections. Once requests for a file keep landing
+ * near the front of what has been asked so far, the chunks right after it are read into memory on a separate pool, so
+ * that the requests for them don't wait on the disk. The more requesters there are for the file, judged by requests in
+ * flight and by how far behind the front requests land, the further ahead it reads, up to a maximum depth and a memory
+ * budget shared by all files. Transfers of the same file with different chunk sizes each get their own.
+ *
+ * @author Dalva
+ */
+public class ReadAhead {
+
+  //requests in a row that must follow the pattern before reading ahead
+  private static final int MIN_STREAK = 3;
+  private static final int MIN_DEPTH = 2;
+  //how far behind the front a prefetched chunk may fall before it is given up on, in maximum depths
+  private static final int STALE_DEPTHS = 4;
+  //how long without requests before a read-ahead is over and may be retired
+  private static final long IDLE_NANOS = 30_000_000_000L;
+
+  private static final AtomicLong BUFFERED_BYTES = new AtomicLong();
+  private static final LongAdder HITS = new LongAdder();
+  private static final LongAdder MISSES = new LongAdder();
+  private static final LongAdder WASTED_BYTES = new LongAdder();
+
+  private static int maxDepth = 0;
+  private static long memoryBudget = 0;
+  private static ExecutorService pool;
+
+  private final FileChannel channel;
+  private final int chunkSize;
+  private final Map<Long, Prefetch> chunks = new ConcurrentHashMap();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private volatile long lastRequest = System.nanoTime();
+  private boolean retired = false;
+  private long front = -1; //highest chunk of the current ascending run
+  private long prefetchedUpTo = -1;
+  private int streak = 0;
+  private double concurrency = 1; //moving average of concurrent requesters
+
+  /**
+   * A chunk being read, or read, ahead of its request
+   */
+  private static class Prefetch {
+
+    private final int length;
+    private final CompletableFuture<byte[]> data;
+
+    private Prefetch(int length, CompletableFuture<byte[]> data) {
+      this.length = length;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Enable read-ahead for every file opened from now on
+   *
+   * @param depth most chunks to read ahead of a file, 0 to disable
+   * @param threads threads doing the reads ahead
+   * @param budgetBytes most bytes held in memory by all files together
+   */
+  public static void setup(int depth, int threads, long budgetBytes) {
+    maxDepth = depth;
+    memoryBudget = budgetBytes;
+    if (depth <= 0) {
+      return;
+    }
+    pool = Executors.newFixedThreadPool(Math.max(1, threads), (r) -> {
+      Thread t = new Thread(r, "alastor-prefetch");
+      t.setDaemon(true);
+      return t;
+    });
+    ServerMetrics.gauge("alastor_prefetch_buffered_bytes", BUFFERED_BYTES::get);
+    ServerMetrics.counter("alastor_prefetch_hits_total", HITS::sum);
+    ServerMetrics.counter("alastor_prefetch_misses_total", MISSES::sum);
+    ServerMetrics.counter("alastor_prefetch_wasted_bytes_total", WASTED_BYTES::sum);
+    ServerMetrics.gauge("alastor_prefetch_hit_percent", () -> {
+      long hits = HITS.sum();
+      long total = hits + MISSES.sum();
+      return total == 0 ? 0 : hits * 100 / total;
+    });
+  }
+
+  public static boolean isEnabled() {
+    return maxDepth > 0;
+  }
+
+  /**
+   * @param channel channel of the file, read with positional reads only
+   * @param chunkSize size of the chunks requested
+   */
+  ReadAhead(FileChannel channel, int chunkSize) {
+    this.channel = channel;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Mark the start of a request, for the concurrency estimate
+   */
+  void enter() {
+    inFlight.incrementAndGet();
+    lastRequest = System.nanoTime();
+  }
+
+  /**
+   * Mark the end of a request
+   */
+  void exit() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Take a chunk that has been read ahead, waiting for it if the read is still going
+   *
+   * @param chunkOffset chunk index
+   * @return the chunk, or null if it has to be read from the disk
+   */
+  byte[] take(long chunkOffset) {
+    Prefetch p = chunks.remove(chunkOffset);
+    if (p == null) {
+      MISSES.increment();
+      return null;
+    }
+    BUFFERED_BYTES.addAndGet(-p.length);
+    try {
+      byte[] data = p.data.join();
+      HITS.increment();
+      return data;
+    } catch (CompletionException ex) {
+      MISSES.increment();
+      return null;
+    }
+  }
+
+  /**
+   * Account a request and read ahead of it if requests have been ascending
+   *
+   * @param chunkOffset chunk index that was requested
+   * @param fileLength current length of the file
+   */
+  synchronized void observe(long chunkOffset, long fileLength) {
+    if (retired) {
+      return;
+    }
+    if (chunkOffset > front - maxDepth && chunkOffset <= front + maxDepth) {
+      streak++;
+      //many connections asking at once land their requests out of order, by about as many as there are of them
+      long spread = front - chunkOffset + 1;
+      concurrency = 0.9 * concurrency + 0.1 * Math.max(inFlight.get(), spread);
+      front = Math.max(front, chunkOffset);
+    } else {
+      //jumped elsewhere, start over from here
+      streak = 0;
+      front = chunkOffset;
+      prefetchedUpTo = chunkOffset;
+    }
+    int depth = (int) Math.min(maxDepth, Math.max(MIN_DEPTH, Math.ceil(2 * concurrency)));
+
+    for (Map.Entry<Long, Prefetch> e : chunks.entrySet()) {
+      //a request may take it at the same time, only whoever removes it accounts for it
+      if (e.getKey() < front - STALE_DEPTHS * maxDepth && chunks.remove(e.getKey(), e.getValue())) {
+        BUFFERED_BYTES.addAndGet(-e.getValue().length);
+        WASTED_BYTES.add(e.getValue().length);
+      }
+    }
+
+    if (streak < MIN_STREAK) {
+      return;
+    }
+    long lastChunk = (fileLength - 1) / chunkSize;
+    for (long c = Math.max(prefetchedUpTo, front) + 1; c <= Math.min(lastChunk, front + depth); c++) {
+      long position = c * chunkSize;
+      int length = (int) Math.min(chunkSize, fileLength - position);
+      if (BUFFERED_BYTES.get() + length > memoryBudget) {
+        return; //try again on a later request, once some have been taken
+      }
+      BUFFERED_BYTES.addAndGet(length);
+      chunks.put(c, new Prefetch(length, CompletableFuture.supplyAsync(() -> read(position, length), pool)));
+      prefetchedUpTo = c;
+    }
+  }
+
+  /**
+   * Drop everything read ahead and stop reading ahead if no request came for a while, so a transfer that is over
+   * does not hold memory until the file is closed
+   *
+   * @return whether it was retired
+   */
+  synchronized boolean retireIfIdle() {
+    if (inFlight.get() > 0 || System.nanoTime() - lastRequest < IDLE_NANOS) {
+      return false;
+    }
+    retired = true;
+    clear();
+    return true;
+  }
+
+  /**
+   * Drop everything read ahead, such as when the file is closed
+   */
+  synchronized void clear() {
+    for (Long c : chunks.keySet()) {
+      Prefetch p = chunks.remove(c);
+      if (p != null) {
+        BUFFERED_BYTES.addAndGet(-p.length);
+        WASTED_BYTES.add(p.length);
+      }
+    }
+  }
+
+  private byte[] read(long position, int length) {
+    try {
+      byte[] data = new byte[length];
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("File shrank while reading ahead");
+        }
+      }
+      return data;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+}
@@ -0,0 +1,780 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.StatusRuntimeException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import net.dalva.alastor.MerkleTree;
+import net.dalva.alastor.Tools;
+import net.dalva.alastor.grpc.FileData;
+import net.dalva.alastor.grpc.FileInfo;
+
+/**
+ * Disk cache of a relay, filled from the upstream server chunk by chunk as clients ask for them.
+ *
+ * Every version of an upstream file gets a part file in the cache dir, written in place as chunks arrive. Which chunks
+ * it has is saved beside it every couple of seconds, once they have been forced to disk, so the cache survives a
+ * restart. A missing chunk is fetched upstream on a pool of fetchers, one per upstream connection, along with the next
+ * few chunks. Anyone asking for a chunk that is already being fetched waits on that same fetch, so each chunk crosses
+ * the upstream link once. Past the cache size, the least recently used files nobody is reading are dropped.
+ *
+ * @author Dalva
+ */
+public class RelayCache {
+
+  //how often fetched chunks are saved
+  private static final long CHECKPOINT_SECONDS = 2;
+  //how long file information from upstream is trusted before asking again
+  private static final long INFO_TTL_MILLIS = 10_000;
+  private static final int FETCH_ATTEMPTS = 5;
+
+  //name -> current version of the file, and handle -> every version still cached
+  private static final Map<String, CachedFile> FILES = new ConcurrentHashMap();
+  private static final Map<String, CachedFile> BY_HANDLE = new ConcurrentHashMap();
+  private static final Map<String, CompletableFuture<FileInfo>> INFO_QUERIES = new ConcurrentHashMap();
+  private static final LongAdder HITS = new LongAdder();
+  private static final LongAdder MISSES = new LongAdder();
+  private static final LongAdder MERGED = new LongAdder();
+  private static final LongAdder INFO_MERGED = new LongAdder();
+  private static final LongAdder FETCHED_BYTES = new LongAdder();
+  private static final LongAdder FETCH_ERRORS = new LongAdder();
+  private static final LongAdder EVICTIONS = new LongAdder();
+  private static final AtomicLong FETCH_SEQUENCE = new AtomicLong();
+  private static final ScheduledExecutorService KEEPER = Executors.newSingleThreadScheduledExecutor((r) -> {
+    Thread t = new Thread(r, "alastor-relay-cache");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static File dir;
+  private static Upstream upstream;
+  private static int chunkSize;
+  private static long budget;
+  private static int prefetch;
+  private static boolean verify;
+  private static ThreadPoolExecutor fetchers;
+  private static long reservedBytes = 0; //sizes of every cached file, guarded by the class
+
+  /**
+   * Error reported by the upstream server about a file, passed on to clients as it is
+   */
+  public static class UpstreamError extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    public UpstreamError(int code, String msg) {
+      super(msg);
+      this.code = code;
+    }
+
+    public int getCode() {
+      return code;
+    }
+  }
+
+  /**
+   * A chunk being fetched, shared by everyone waiting for it
+   */
+  private static class Pending {
+
+    private final CompletableFuture<Void> future = new CompletableFuture();
+    private final AtomicInteger started = new AtomicInteger();
+    private boolean demanded = false;
+  }
+
+  /**
+   * Fetch of a single chunk. Chunks clients wait for go first, then read-ahead in the order it was asked for.
+   */
+  private static class Fetch implements Runnable, Comparable<Fetch> {
+
+    private final CachedFile file;
+    private final long index;
+    private final Pending pending;
+    private final boolean demand;
+    private final long sequence = FETCH_SEQUENCE.incrementAndGet();
+
+    private Fetch(CachedFile file, long index, Pending pending, boolean demand) {
+      this.file = file;
+      this.index = index;
+      this.pending = pending;
+      this.demand = demand;
+    }
+
+    @Override
+    public int compareTo(Fetch o) {
+      if (demand != o.demand) {
+        return demand ? -1 : 1;
+      }
+      return Long.compare(sequence, o.sequence);
+    }
+
+    @Override
+    public void run() {
+      if (pending.started.getAndIncrement() > 0) {
+        return; //the same chunk was queued again when a client asked for it, and the other one got here first
+      }
+      try {
+        file.fetch(index);
+        file.fetched(index);
+        pending.future.complete(null);
+      } catch (IOException ex) {
+        FETCH_ERRORS.increment();
+        file.failed(index);
+        pending.future.completeExceptionally(ex);
+      }
+    }
+  }
+
+  /**
+   * A single version of an upstream file, and the chunks of it that are on disk
+   */
+  public static class CachedFile {
+
+    private final String handle;
+    private final String name;
+    private final long size;
+    private final long timestamp;
+    private final long chunkCount;
+    private final byte[] merkleRoot; //only set when verifying
+    private final File partFile;
+    private final File stateFile;
+    private final FileChannel channel;
+    private final BitSet present;
+    private final Map<Long, Pending> inflight = new HashMap(); //guarded by this
+    private final AtomicInteger users = new AtomicInteger();
+
+    private final AtomicReference<String> upstreamHandle;
+    private volatile long checkedAt = 0;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean stale = false;
+    private volatile boolean closed = false;
+    private int presentCount;
+    private boolean dirty = false;
+
+    private CachedFile(String handle, String name, long size, long timestamp, byte[] merkleRoot, String upstreamHandle, BitSet present) throws IOException {
+      this.handle = handle;
+      this.name = name;
+      this.size = size;
+      this.timestamp = timestamp;
+      this.chunkCount = (size + chunkSize - 1) / chunkSize;
+      this.merkleRoot = merkleRoot;
+      this.upstreamHandle = new AtomicReference(upstreamHandle);
+      this.partFile = new File(dir, handle + ".part");
+      this.stateFile = new File(dir, handle + ".state");
+      this.present = present == null ? new BitSet() : present;
+      this.presentCount = this.present.cardinality();
+      this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the relay's own handle on this version, given to clients
+     */
+    public String getHandle() {
+      return handle;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * @return whether the file changed upstream, so this version can no longer be completed
+     */
+    public boolean isStale() {
+      return stale;
+    }
+
+    public synchronized boolean isComplete() {
+      return presentCount == chunkCount;
+    }
+
+    /**
+     * Keep the file from being evicted while it is read
+     *
+     * @return false if it already has been
+     */
+    public boolean acquire() {
+      users.incrementAndGet();
+      if (closed) {
+        users.decrementAndGet();
+        return false;
+      }
+      lastUsed = System.currentTimeMillis();
+      return true;
+    }
+
+    public void release() {
+      users.decrementAndGet();
+    }
+
+    /**
+     * Make sure a range of the file is on disk, fetching the chunks it lacks and reading ahead of it
+     *
+     * @param position start of the range in bytes
+     * @param length length of the range in bytes
+     * @return completed once every chunk of the range is on disk
+     */
+    public CompletableFuture<Void> ensure(long position, long length) {
+      if (length <= 0) {
+        return CompletableFuture.completedFuture(null);
+      }
+      long first = position / chunkSize;
+      long last = (position + length - 1) / chunkSize;
+      List<CompletableFuture<Void>> waits = new ArrayList();
+      for (long i = first; i <= last; i++) {
+        CompletableFuture<Void> wait = request(i, true);
+        if (wait != null) {
+          waits.add(wait);
+        }
+      }
+      if (waits.isEmpty()) {
+        HITS.increment();
+      } else {
+        MISSES.increment();
+      }
+      for (long i = last + 1; i < Math.min(chunkCount, last + 1 + prefetch); i++) {
+        request(i, false);
+      }
+      return waits.isEmpty() ? CompletableFuture.completedFuture(null) : CompletableFuture.allOf(waits.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Queue the fetch of a chunk unless it is on disk or already coming
+     *
+     * @return completed when it has been fetched, null if it is on disk
+     */
+    private synchronized CompletableFuture<Void> request(long index, boolean demand) {
+      if (present.get((int) index)) {
+        return null;
+      }
+      Pending pending = inflight.get(index);
+      if (pending == null) {
+        pending = new Pending();
+        pending.demanded = demand;
+        inflight.put(index, pending);
+        fetchers.execute(new Fetch(this, index, pending, demand));
+      } else if (demand) {
+        MERGED.increment();
+        if (!pending.demanded) {
+          //it was only read ahead so far, queue it again in front so the client does not wait behind the read-ahead
+          pending.demanded = true;
+          fetchers.execute(new Fetch(this, index, pending, true));
+        }
+      }
+      return pending.future;
+    }
+
+    private synchronized void fetched(long index) {
+      present.set((int) index);
+      presentCount++;
+      dirty = true;
+      inflight.remove(index);
+      if (presentCount == chunkCount) {
+        System.out.println("Relay cache: " + name + " is now cached whole");
+      }
+    }
+
+    private synchronized void failed(long index) {
+      inflight.remove(index);
+    }
+
+    private synchronized boolean isBusy() {
+      return users.get() > 0 || !inflight.isEmpty();
+    }
+
+    /**
+     * Fetch a chunk upstream, check it and write it in place
+     */
+    private void fetch(long index) throws IOException {
+      long position = index * chunkSize;
+      long length = Math.min(chunkSize, size - position);
+      IOException failure = null;
+      for (int attempt = 0; attempt < FETCH_ATTEMPTS; attempt++) {
+        if (stale || closed) {
+          throw new IOException("File " + name + " changed upstream");
+        }
+        if (attempt > 0) {
+          try {
+            Thread.sleep(1000L * attempt);
+          } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted fetching " + name);
+          }
+        }
+        try {
+          String usedHandle = upstreamHandle.get();
+          FileData reply = upstream.fetch(name, usedHandle, chunkSize, index, merkleRoot != null);
+          int code = reply.getError().getCode();
+          if (code == 17) {
+            renew(usedHandle);
+            continue;
+          } else if (code == 18) {
+            invalidate();
+            continue;
+          } else if (code != 0) {
+            failure = new UpstreamError(code, "Upstream error " + code + ": " + reply.getError().getMsg());
+            continue;
+          }
+          ByteString data = reply.getChunkData();
+          if (data.size() != length || Tools.makeCRC32(data) != reply.getChunkCrc32()) {
+            failure = new IOException("Chunk " + index + " of " + name + " came corrupt from upstream");
+            continue;
+          }
+          if (merkleRoot != null && !MerkleTree.verify(sha256(data), index, chunkCount, reply.getChunkProof().toByteArray(), merkleRoot)) {
+            failure = new IOException("Chunk " + index + " of " + name + " does not match its Merkle proof");
+            continue;
+          }
+          long at = position;
+          for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+            while (buffer.hasRemaining()) {
+              at += channel.write(buffer, at);
+            }
+          }
+          FETCHED_BYTES.add(length);
+          return;
+        } catch (StatusRuntimeException ex) {
+          failure = new IOException("Upstream unreachable: " + ex.getStatus().getCode(), ex);
+        }
+      }
+      throw failure;
+    }
+
+    /**
+     * Get a new upstream handle once the old one expired, such as after an upstream restart.
+     * Upstream is asked without holding the file's lock, so requests for its chunks carry on meanwhile.
+     */
+    private void renew(String expired) {
+      if (!expired.equals(upstreamHandle.get())) {
+        return; //someone else already did
+      }
+      FileInfo info = upstream.info(name, merkleRoot != null ? chunkSize : 0);
+      if (info.getError().getCode() != 0 || info.getFileSize() != size || info.getFileTimestamp() != timestamp) {
+        invalidate();
+      } else if (upstreamHandle.compareAndSet(expired, info.getFileHandle())) {
+        checkedAt = System.currentTimeMillis();
+      }
+    }
+
+    /**
+     * Mark this version as changed upstream. It stays readable for what it has, and is dropped once nobody uses it.
+     */
+    private void invalidate() {
+      if (!stale) {
+        stale = true;
+        FILES.remove(name, this);
+        System.out.println("Relay cache: " + name + " changed upstream, dropping the cached version");
+      }
+    }
+
+    /**
+     * Read a range that ensure() made sure is on disk
+     *
+     * @param position start of the range in bytes
+     * @param length length of the range in bytes
+     * @return the data
+     * @throws IOException
+     */
+    public byte[] read(long position, int length) throws IOException {
+      long start = System.nanoTime();
+      try {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Cached file " + name + " is truncated");
+          }
+        }
+        return buffer.array();
+      } finally {
+        ServerMetrics.DISK_READ.recordSince(start);
+      }
+    }
+
+    /**
+     * Save which chunks are on disk, once they are safely there
+     */
+    private void checkpoint() throws IOException {
+      BitSet snapshot;
+      synchronized (this) {
+        if (!dirty || closed) {
+          return;
+        }
+        //taken before the force, so it never claims a chunk that is not on disk yet
+        snapshot = (BitSet) present.clone();
+        dirty = false;
+      }
+      try {
+        channel.force(false);
+        byte[] bitmap = snapshot.toByteArray();
+        byte[] root = merkleRoot != null ? merkleRoot : new byte[0];
+        File tmp = new File(dir, handle + ".state.tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+          out.writeUTF(name);
+          out.writeLong(size);
+          out.writeLong(timestamp);
+          out.writeInt(chunkSize);
+          out.writeInt(root.length);
+          out.write(root);
+          out.writeInt(bitmap.length);
+          out.write(bitmap);
+        }
+        Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException ex) {
+        synchronized (this) {
+          dirty = true;
+        }
+        throw ex;
+      }
+    }
+
+    private void delete() {
+      closed = true;
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        System.err.println("Cannot close cached file " + partFile + ": " + ex.getLocalizedMessage());
+      }
+      stateFile.delete();
+      partFile.delete();
+    }
+  }
+
+  /**
+   * Open the cache dir, picking up what an earlier run left in it
+   *
+   * @param cacheDir directory of the cache
+   * @param budgetBytes most bytes of files kept in the cache
+   * @param relayChunkSize size of the chunks fetched upstream, in bytes
+   * @param upstreamServer the server to fetch from
+   * @param prefetchChunks chunks to read ahead of every request
+   * @param verifyChunks whether to check every chunk against the upstream Merkle tree, and not only its CRC
+   * @throws IOException
+   */
+  public static void setup(String cacheDir, long budgetBytes, int relayChunkSize, Upstream upstreamServer, int prefetchChunks,
+          boolean verifyChunks) throws IOException {
+    dir = new File(cacheDir);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create cache directory " + dir.getAbsolutePath());
+    }
+    budget = budgetBytes;
+    chunkSize = relayChunkSize;
+    upstream = upstreamServer;
+    prefetch = prefetchChunks;
+    verify = verifyChunks;
+    AtomicInteger threadNumber = new AtomicInteger();
+    fetchers = new ThreadPoolExecutor(upstream.getConnections(), upstream.getConnections(), 0, TimeUnit.SECONDS,
+            new PriorityBlockingQueue(), (r) -> {
+              Thread t = new Thread(r, "alastor-relay-fetch-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    load();
+    KEEPER.scheduleWithFixedDelay(RelayCache::checkpointAll, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+
+    ServerMetrics.gauge("alastor_relay_files", BY_HANDLE::size);
+    ServerMetrics.gauge("alastor_relay_cache_bytes", () -> {
+      synchronized (RelayCache.class) {
+        return reservedBytes;
+      }
+    });
+    ServerMetrics.gauge("alastor_relay_fetch_queue", () -> fetchers.getQueue().size());
+    ServerMetrics.counter("alastor_relay_hits_total", HITS::sum);
+    ServerMetrics.counter("alastor_relay_misses_total", MISSES::sum);
+    ServerMetrics.counter("alastor_relay_merged_total", MERGED::sum);
+    ServerMetrics.counter("alastor_relay_info_merged_total", INFO_MERGED::sum);
+    ServerMetrics.counter("alastor_relay_upstream_bytes_total", FETCHED_BYTES::sum);
+    ServerMetrics.counter("alastor_relay_upstream_errors_total", FETCH_ERRORS::sum);
+    ServerMetrics.counter("alastor_relay_evictions_total", EVICTIONS::sum);
+  }
+
+  public static boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * Get the current version of a file, asking upstream whether it changed once the last answer is too old.
+   * If upstream cannot be reached, what is cached is served as it is.
+   *
+   * @param name file name
+   * @return the file
+   * @throws UpstreamError if upstream refuses the file, such as when it does not exist
+   * @throws IOException if upstream cannot be reached and nothing is cached
+   */
+  public static CachedFile open(String name) throws IOException {
+    CachedFile cached = FILES.get(name);
+    long now = System.currentTimeMillis();
+    if (cached != null && now - cached.checkedAt < INFO_TTL_MILLIS) {
+      return cached;
+    }
+    FileInfo info;
+    try {
+      info = queryInfo(name);
+    } catch (StatusRuntimeException ex) {
+      if (cached != null) {
+        System.err.println("Relay cache: upstream unreachable (" + ex.getStatus().getCode() + "), serving the cached " + name);
+        cached.checkedAt = now;
+        return cached;
+      }
+      throw new IOException("Upstream unreachable: " + ex.getStatus().getCode(), ex);
+    }
+    if (info.getError().getCode() != 0) {
+      if (cached != null) {
+        cached.invalidate();
+      }
+      throw new UpstreamError(info.getError().getCode(), info.getError().getMsg());
+    }
+    byte[] root = null;
+    if (verify) {
+      if (info.getMerkleRoot().size() == MerkleTree.HASH_LENGTH) {
+        root = info.getMerkleRoot().toByteArray();
+      } else {
+        System.err.println("Relay cache: upstream gave no Merkle tree for " + name + ", chunks are only checked by CRC");
+      }
+    }
+
+    synchronized (RelayCache.class) {
+      cached = FILES.get(name);
+      if (cached != null && cached.size == info.getFileSize() && cached.timestamp == info.getFileTimestamp()) {
+        cached.upstreamHandle.set(info.getFileHandle());
+        cached.checkedAt = now;
+        return cached;
+      }
+      if (cached != null) {
+        cached.invalidate();
+      }
+      String handle = handleOf(name, info.getFileSize(), info.getFileTimestamp());
+      CachedFile restored = BY_HANDLE.get(handle);
+      if (restored != null && !restored.closed) {
+        //cached by an earlier run, or dropped as changed after a version that came back
+        restored.stale = false;
+        restored.upstreamHandle.set(info.getFileHandle());
+        restored.checkedAt = now;
+        FILES.put(name, restored);
+        return restored;
+      }
+      makeRoom(info.getFileSize());
+      CachedFile created = new CachedFile(handle, name, info.getFileSize(), info.getFileTimestamp(), root, info.getFileHandle(), null);
+      created.checkedAt = now;
+      reservedBytes += created.size;
+      FILES.put(name, created);
+      BY_HANDLE.put(handle, created);
+      return created;
+    }
+  }
+
+  /**
+   * Ask upstream about a file. Concurrent callers for the same name wait for a single query, so a burst of requests
+   * once the last answer expired crosses the link once, the way chunk fetches do.
+   */
+  private static FileInfo queryInfo(String name) {
+    CompletableFuture<FileInfo> query = new CompletableFuture();
+    CompletableFuture<FileInfo> running = INFO_QUERIES.putIfAbsent(name, query);
+    if (running == null) {
+      try {
+        FileInfo info = upstream.info(name, verify ? chunkSize : 0);
+        query.complete(info);
+        return info;
+      } catch (RuntimeException ex) {
+        query.completeExceptionally(ex);
+        throw ex;
+      } finally {
+        INFO_QUERIES.remove(name, query);
+      }
+    }
+    INFO_MERGED.increment();
+    try {
+      return running.join();
+    } catch (CompletionException ex) {
+      throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+    }
+  }
+
+  /**
+   * Find a version of a file by the handle given to clients
+   *
+   * @param handle the handle
+   * @return the file, or null if it is no longer cached
+   */
+  public static CachedFile find(String handle) {
+    return BY_HANDLE.get(handle);
+  }
+
+  /**
+   * Drop the least recently used files nobody is reading, changed ones first, until there is room for more
+   *
+   * @param bytes room needed
+   */
+  private static synchronized void makeRoom(long bytes) {
+    List<CachedFile> candidates = new ArrayList();
+    for (CachedFile file : BY_HANDLE.values()) {
+      if (!file.isBusy()) {
+        candidates.add(file);
+      }
+    }
+    candidates.sort(Comparator.comparing((CachedFile f) -> !f.stale).thenComparingLong(f -> f.lastUsed));
+    for (CachedFile file : candidates) {
+      if (!file.stale && reservedBytes + bytes <= budget) {
+        break;
+      }
+      evict(file);
+    }
+    if (bytes > 0 && reservedBytes + bytes > budget) {
+      System.err.println("Relay cache: over its size, every cached file is in use");
+    }
+  }
+
+  private static synchronized void evict(CachedFile file) {
+    BY_HANDLE.remove(file.handle, file);
+    FILES.remove(file.name, file);
+    file.delete();
+    reservedBytes -= file.size;
+    EVICTIONS.increment();
+    System.out.println("Relay cache: dropped " + file.name + (file.stale ? " (changed upstream)" : ""));
+  }
+
+  /**
+   * Save the state of every cached file, and drop changed ones nobody reads anymore
+   */
+  public static void checkpointAll() {
+    for (CachedFile file : BY_HANDLE.values()) {
+      try {
+        file.checkpoint();
+      } catch (IOException ex) {
+        System.err.println("Cannot save relay cache state of " + file.name + ": " + ex.getLocalizedMessage());
+      }
+    }
+    makeRoom(0);
+  }
+
+  /**
+   * Pick up the files an earlier run cached, dropping those of another chunk size and leftovers without a state
+   */
+  private static void load() throws IOException {
+    File[] states = dir.listFiles((d, n) -> n.endsWith(".state"));
+    if (states == null) {
+      throw new IOException("Cannot list cache directory " + dir.getAbsolutePath());
+    }
+    long cachedBytes = 0;
+    for (File state : states) {
+      String handle = state.getName().substring(0, state.getName().length() - ".state".length());
+      try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+        String name = in.readUTF();
+        long size = in.readLong();
+        long timestamp = in.readLong();
+        int stateChunkSize = in.readInt();
+        byte[] root = new byte[in.readInt()];
+        in.readFully(root);
+        byte[] bitmap = new byte[in.readInt()];
+        in.readFully(bitmap);
+        if (stateChunkSize != chunkSize || !handle.equals(handleOf(name, size, timestamp))) {
+          state.delete();
+          new File(dir, handle + ".part").delete();
+          continue;
+        }
+        //chunks fetched without verifying stay unverified, the rest of the file is then only CRC-checked too
+        CachedFile file = new CachedFile(handle, name, size, timestamp, root.length > 0 && verify ? root : null, "", BitSet.valueOf(bitmap));
+        BY_HANDLE.put(handle, file);
+        CachedFile other = FILES.get(name);
+        if (other == null || other.timestamp < timestamp) {
+          FILES.put(name, file);
+        }
+        reservedBytes += size;
+        cachedBytes += (long) file.presentCount * chunkSize;
+      } catch (IOException ex) {
+        System.err.println("Cannot read relay cache state " + state + ": " + ex.getLocalizedMessage());
+      }
+    }
+    File[] parts = dir.listFiles((d, n) -> n.endsWith(".part"));
+    if (parts != null) {
+      for (File part : parts) {
+        if (!BY_HANDLE.containsKey(part.getName().substring(0, part.getName().length() - ".part".length()))) {
+          part.delete();
+        }
+      }
+    }
+    System.out.println("Relay cache: " + BY_HANDLE.size() + " files, about " + cachedBytes / (1024 * 1024) + " MB cached already");
+  }
+
+  /**
+   * Handles are derived from the file version, so the same version maps to the same part file across restarts
+   */
+  private static String handleOf(String name, long size, long timestamp) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest((name + "\n" + size + "\n" + timestamp).getBytes(StandardCharsets.UTF_8));
+      return MerkleTree.toHex(Arrays.copyOf(digest, 16));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static byte[] sha256(ByteString data) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+        md.update(buffer);
+      }
+      return md.digest();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+}
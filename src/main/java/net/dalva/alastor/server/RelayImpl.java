@@ -0,0 +1,245 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import net.dalva.alastor.Tools;
+import net.dalva.alastor.grpc.AlastorGrpc;
+import net.dalva.alastor.grpc.DataQuery;
+import net.dalva.alastor.grpc.ErrorMsg;
+import net.dalva.alastor.grpc.FileData;
+import net.dalva.alastor.grpc.FileInfo;
+import net.dalva.alastor.grpc.FileList;
+import net.dalva.alastor.grpc.FileQuery;
+import net.dalva.alastor.grpc.ListQuery;
+
+/**
+ * Server-side logic of a relay, serving another Alastor server's files out of the RelayCache.
+ *
+ * Only downloads are relayed. Chunks are served in a single message whatever size the client asks for, so clients never
+ * stream from a relay; the Merkle tree, the chunk manifest and uploads stay with the upstream server.
+ *
+ * @author Dalva
+ */
+public class RelayImpl extends AlastorGrpc.AlastorImplBase {
+
+  private static final ServerMetrics.Call INFO_CALLS = ServerMetrics.call("GetFileInfo");
+  private static final ServerMetrics.Call DATA_CALLS = ServerMetrics.call("GetFileData");
+  private static final ServerMetrics.Call LIST_CALLS = ServerMetrics.call("ListFiles");
+
+  private final int maxMessageSize;
+  private final Upstream upstream;
+
+  /**
+   * @param maxMessageSize largest message to send or accept, in bytes
+   * @param upstream the server relayed, for listings
+   */
+  public RelayImpl(int maxMessageSize, Upstream upstream) {
+    this.maxMessageSize = maxMessageSize;
+    this.upstream = upstream;
+  }
+
+  @Override
+  public void getFileInfo(FileQuery request, StreamObserver<FileInfo> responseObserver) {
+    long start = INFO_CALLS.begin();
+    if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A getFileInfo request has been denied: client key untrusted:" + request.getApiKey());
+      replyInfoError(responseObserver, start, 2, "Unauthenticated");
+      return;
+    }
+    try {
+      RelayCache.CachedFile file = RelayCache.open(request.getRequestedFilename());
+      String name = file.getName();
+      responseObserver.onNext(FileInfo.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(name.substring(name.lastIndexOf('/') + 1))
+              .setFileSize(file.getSize())
+              .setFileTimestamp(file.getTimestamp())
+              .setMaxMessageSize(maxMessageSize)
+              .setFileHandle(file.getHandle())
+              .build());
+      responseObserver.onCompleted();
+      INFO_CALLS.end(start, 0);
+    } catch (RelayCache.UpstreamError ex) {
+      replyInfoError(responseObserver, start, ex.getCode(), ex.getLocalizedMessage());
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyInfoError(responseObserver, start, 10, "General IO Error: " + ex.getLocalizedMessage());
+    }
+  }
+
+  private static void replyInfoError(StreamObserver<FileInfo> responseObserver, long start, int code, String msg) {
+    responseObserver.onNext(FileInfo.newBuilder().setError(ErrorMsg.newBuilder()
+            .setCode(code)
+            .setMsg(msg)
+            .build()).build());
+    responseObserver.onCompleted();
+    INFO_CALLS.end(start, code);
+  }
+
+  @Override
+  public void getFileData(DataQuery request, StreamObserver<FileData> responseObserver) {
+    long start = DATA_CALLS.begin();
+    //relay handles only stand for a file version, so the key is checked every time
+    if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A getFileData request has been denied: client key untrusted:" + request.getApiKey());
+      replyDataError(responseObserver, start, 2, "Unauthenticated");
+      return;
+    }
+    if (request.getChunkSize() > maxMessageSize - AlastorImpl.MESSAGE_OVERHEAD) {
+      replyDataError(responseObserver, start, 13, "Chunk too large for a single message, max " + (maxMessageSize - AlastorImpl.MESSAGE_OVERHEAD) + " bytes");
+      return;
+    }
+
+    RelayCache.CachedFile file;
+    if (!request.getFileHandle().isEmpty()) {
+      file = RelayCache.find(request.getFileHandle());
+      if (file == null) {
+        replyDataError(responseObserver, start, 17, "Unknown or expired file handle");
+        return;
+      }
+    } else {
+      try {
+        file = RelayCache.open(request.getRequestedFilename());
+      } catch (RelayCache.UpstreamError ex) {
+        replyDataError(responseObserver, start, ex.getCode(), ex.getLocalizedMessage());
+        return;
+      } catch (IOException ex) {
+        replyDataError(responseObserver, start, 10, ex.getLocalizedMessage());
+        return;
+      }
+    }
+
+    long position = request.getChunkOffset() * request.getChunkSize();
+    if (request.getChunkSize() <= 0 || request.getChunkOffset() < 0 || position > file.getSize()
+            || (position == file.getSize() && file.getSize() > 0)) {
+      replyDataError(responseObserver, start, 12, "Attempting to read chunks outside file range");
+      return;
+    }
+    int length = (int) Math.min(request.getChunkSize(), file.getSize() - position);
+    if (!file.acquire()) {
+      replyDataError(responseObserver, start, 17, "Unknown or expired file handle");
+      return;
+    }
+
+    Context context = Context.current();
+    file.ensure(position, length).whenComplete((done, ex) -> {
+      if (ex != null) {
+        file.release();
+        if (file.isStale()) {
+          replyDataError(responseObserver, start, 18, "File changed since it was opened");
+        } else {
+          replyDataError(responseObserver, start, 19, "Upstream could not provide the chunk: " + ex.getCause().getLocalizedMessage());
+        }
+        return;
+      }
+      //from here on it is an ordinary read from the cache disk
+      FairScheduler scheduler = Volumes.primary().getScheduler();
+      boolean admitted = scheduler.submit(request.getApiKey(), length, () -> {
+        try {
+          if (context.isCancelled()) {
+            DATA_CALLS.end(start, 1);
+            return;
+          }
+          serveFileData(file, position, length, request, responseObserver, start);
+        } finally {
+          file.release();
+        }
+      });
+      if (!admitted) {
+        file.release();
+        Metadata trailers = new Metadata();
+        trailers.put(Tools.RETRY_AFTER_MS, Long.toString(scheduler.estimateWaitMillis()));
+        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("Server is busy, retry later")
+                .asRuntimeException(trailers));
+        DATA_CALLS.end(start, 3);
+      }
+    });
+  }
+
+  /**
+   * Read and send a chunk that is on the cache disk, once the scheduler gave us the turn
+   */
+  private void serveFileData(RelayCache.CachedFile file, long position, int length, DataQuery request,
+          StreamObserver<FileData> responseObserver, long start) {
+    try {
+      byte[] data = file.read(position, length);
+      long stage = System.nanoTime();
+      long crc32 = Tools.makeCRC32(data);
+      stage = ServerMetrics.CRC.recordSince(stage);
+      responseObserver.onNext(FileData.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(file.getName())
+              .setChunkData(ByteString.copyFrom(data))
+              .setChunkCrc32(crc32)
+              .build());
+      responseObserver.onCompleted();
+      ServerMetrics.SERIALIZE.recordSince(stage);
+      ServerMetrics.served(request.getApiKey(), length);
+      DATA_CALLS.end(start, 0);
+    } catch (IOException ex) {
+      System.out.println(ex.getLocalizedMessage());
+      replyDataError(responseObserver, start, 10, ex.getLocalizedMessage());
+    }
+  }
+
+  private static void replyDataError(StreamObserver<FileData> responseObserver, long start, int code, String msg) {
+    responseObserver.onNext(FileData.newBuilder().setError(ErrorMsg.newBuilder()
+            .setCode(code)
+            .setMsg(msg)
+            .build()).build());
+    responseObserver.onCompleted();
+    DATA_CALLS.end(start, code);
+  }
+
+  @Override
+  public void listFiles(ListQuery request, StreamObserver<FileList> responseObserver) {
+    long start = LIST_CALLS.begin();
+    if (!Auth.checkTrusted(request.getApiKey())) {
+      System.err.println("A ListFiles request has been denied: client key untrusted:" + request.getApiKey());
+      responseObserver.onNext(FileList.newBuilder().setError(ErrorMsg.newBuilder()
+              .setCode(2)
+              .setMsg("Unauthenticated")
+              .build()).build());
+      responseObserver.onCompleted();
+      LIST_CALLS.end(start, 2);
+      return;
+    }
+    //listings are small, so they are simply passed on
+    FileList reply;
+    try {
+      reply = upstream.list(request);
+    } catch (StatusRuntimeException ex) {
+      reply = FileList.newBuilder().setError(ErrorMsg.newBuilder()
+              .setCode(10)
+              .setMsg("Upstream unreachable: " + ex.getStatus().getCode())
+              .build()).build();
+    }
+    responseObserver.onNext(reply);
+    responseObserver.onCompleted();
+    LIST_CALLS.end(start, reply.getError().getCode());
+  }
+
+}
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -53,21 +55,27 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
     }
   };
 
-  //path prefix
-  private static String prefix;
-
   static { // TODO find out why this stops after removing first file. For now it is disabled.
     //FILE_CLOSER.scheduleAtFixedRate(CLOSER_METHOD, 0, 1, TimeUnit.SECONDS);
+    ServerMetrics.gauge("alastor_open_files", () -> OPENED_FILES.size());
   }
 
   private Date lastAccessed;
+  //by chunk size, so transfers of the file with different chunk sizes don't reset each other
+  private final Map<Integer, ReadAhead> readAheads = new ConcurrentHashMap<>();
 
   public static ArrayList<ServerFileHandler> getOpenedFiles() {
     return OPENED_FILES;
   }
 
-  public static void setPrefix(String newPrefix) {
-    prefix = newPrefix;
+  /**
+   * Path a requested file name is opened at
+   *
+   * @param fname requested file name
+   * @return the path, as getFileName() of its handler gives it
+   */
+  static String pathOf(String fname) {
+    return Volumes.of(fname).getPrefix() + Tools.sanitizePath(fname);
   }
 
   /**
@@ -79,27 +87,53 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
    * @throws IOException
    */
   public synchronized static ServerFileHandler get(String fname, boolean readOnly) throws IOException {
+    String prefix = Volumes.of(fname).getPrefix();
     fname = Tools.sanitizePath(fname);
     File fileToOpen = new File(prefix + fname);
-    File prefixPath = new File(prefix);
-    if ( ! fileToOpen.getCanonicalPath().startsWith(prefixPath.getCanonicalPath())) {
-      //possible directory traversal attack
-      throw new IOException("Cannot open files outside serve dir");
-    }
     int hashCode = fileToOpen.hashCode();
 
-    //Check first to see if we have already opened the file before
+    //Check first to see if we have already opened the file before, it passed the checks below then
     for (ServerFileHandler fh : OPENED_FILES) {
       if (hashCode == fh.getHashCode()) {
         return fh;
       }
     }
 
+    //resolving the canonical paths stats every component of them, so it is only done when opening
+    File prefixPath = new File(prefix);
+    if ( ! fileToOpen.getCanonicalPath().startsWith(prefixPath.getCanonicalPath())) {
+      //possible directory traversal attack
+      throw new IOException("Cannot open files outside serve dir");
+    }
+    if (UploadSession.isEnabled() && UploadSession.isUploadFile(fileToOpen)) {
+      throw new IOException("Cannot open files that are being uploaded");
+    }
+
     //If not, then open the file
     return new ServerFileHandler(prefix + fname, readOnly);
 
   }
 
+  /**
+   * Close the handler of a file if it is open, so that the next get() opens it anew, such as after it has been replaced
+   *
+   * @param path path of the file, as get() builds it from the serve dir
+   * @throws IOException
+   */
+  public synchronized static void forget(String path) throws IOException {
+    int hashCode = new File(path).hashCode();
+    ServerFileHandler found = null;
+    for (ServerFileHandler fh : OPENED_FILES) {
+      if (hashCode == fh.getHashCode()) {
+        found = fh;
+        break;
+      }
+    }
+    if (found != null) {
+      found.close();
+    }
+  }
+
   /**
    * Opens the specified file and obtain a lock And adds it to the opened files list
    *
@@ -111,6 +145,7 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
     super(fname, readOnly);
     lastAccessed = new Date();
     OPENED_FILES.add(this);
+    ServerMetrics.FILES_OPENED.increment();
     System.out.println("Opened new file: " + fname);
   }
 
@@ -121,6 +156,9 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
    */
   @Override
   public synchronized void close() throws IOException {
+    for (ReadAhead readAhead : readAheads.values()) {
+      readAhead.clear();
+    }
     super.close();
     OPENED_FILES.remove(this);
   }
@@ -130,18 +168,72 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
   }
 
   /**
-   * Perform a Random Read on a specific chunk offset Additionally touches the file's last modification date
+   * Size of the file as the index last saw it, so that serving a chunk costs no stat. The index follows changes
+   * through its watcher and revalidation; only files it does not have (yet) are statted.
+   *
+   * @return size in bytes
+   */
+  public long getSize() {
+    ServerIndex.Entry entry = ServerIndex.lookupPath(filename);
+    return entry != null ? entry.getSize() : file.length();
+  }
+
+  /**
+   * Perform a Random Read on a specific chunk offset Additionally touches the file's last modification date.
+   * Served from memory when the chunk has been read ahead, and reads further ahead when requests are ascending.
    *
    * @param chunkOffset chunk index to read
    * @param chunkSize size of each chunk
    * @return bytes that has been read
    * @throws IOException
    */
-  public synchronized byte[] readOffsetChunk(long chunkOffset, int chunkSize) throws IOException {
+  public byte[] readOffsetChunk(long chunkOffset, int chunkSize) throws IOException {
+    long start = System.nanoTime();
+    try {
+      if (!ReadAhead.isEnabled()) {
+        return readChunkLocked(chunkOffset, chunkSize);
+      }
+      ReadAhead readAhead = readAheadFor(chunkSize);
+      readAhead.enter();
+      try {
+        byte[] data = readAhead.take(chunkOffset);
+        //start the reads ahead before our own, so they overlap with it
+        readAhead.observe(chunkOffset, getSize());
+        if (data != null) {
+          lastAccessed = new Date();
+          return data;
+        }
+        return readChunkLocked(chunkOffset, chunkSize);
+      } finally {
+        readAhead.exit();
+      }
+    } finally {
+      ServerMetrics.DISK_READ.recordSince(start);
+    }
+  }
+
+  /**
+   * Read-ahead for requests of a chunk size, retiring the ones of sizes nobody asks for anymore when a new size shows up
+   */
+  private ReadAhead readAheadFor(int chunkSize) {
+    ReadAhead readAhead = readAheads.get(chunkSize);
+    if (readAhead != null) {
+      return readAhead;
+    }
+    readAheads.values().removeIf(ReadAhead::retireIfIdle);
+    return readAheads.computeIfAbsent(chunkSize, (size) -> new ReadAhead(fileChannel, size));
+  }
+
+  private synchronized byte[] readChunkLocked(long chunkOffset, int chunkSize) throws IOException {
+    return readChunk(chunkOffset, chunkSize);
+  }
+
+  private byte[] readChunk(long chunkOffset, int chunkSize) throws IOException {
     lastAccessed = new Date();
+    long length = getSize();
     //Check first if we're getting the last chunk that are not perfectly chunkLength-sized
-    long totalChunks = file.length() / chunkSize;
-    boolean imperfectChunkExists = file.length() % chunkSize != 0;
+    long totalChunks = length / chunkSize;
+    boolean imperfectChunkExists = length % chunkSize != 0;
     if (chunkOffset < totalChunks) {
       //continue as normal
       //System.out.println("reading chunk " + (chunkOffset+1) + " out of " + totalChunks + " chunks");
@@ -149,7 +241,7 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
     } else if (chunkOffset == totalChunks) {
       if (imperfectChunkExists) {
         //we're getting the last chunk which size is lower than chunkSize
-        double lastChunkSize = file.length() % chunkSize;
+        double lastChunkSize = length % chunkSize;
         //System.out.println("reading last chunk " + (chunkOffset+1) + " with size " + lastChunkSize);
         return super.readOffset(chunkSize * chunkOffset, (int) lastChunkSize);
       } else {
@@ -163,6 +255,41 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
     }
   }
 
+  /**
+   * Get the actual length of a chunk, which is only shorter than chunkSize for the last one
+   *
+   * @param chunkOffset chunk index
+   * @param chunkSize size of each chunk
+   * @return length of the chunk in bytes
+   * @throws IOException if the chunk is outside the file
+   */
+  public long chunkLength(long chunkOffset, int chunkSize) throws IOException {
+    long start = chunkSize * chunkOffset;
+    long length = getSize();
+    if (chunkOffset < 0 || start > length || (start == length && length > 0)) {
+      throw new IOException("Attempting to read chunks outside file range");
+    }
+    return Math.min(chunkSize, length - start);
+  }
+
+  /**
+   * Perform a Random Read of an arbitrary range, such as a fragment of a chunk. Additionally touches the file's last modification date
+   *
+   * @param position offset in bytes
+   * @param length length to read in bytes
+   * @return bytes that has been read
+   * @throws IOException
+   */
+  public synchronized byte[] readRange(long position, int length) throws IOException {
+    long start = System.nanoTime();
+    lastAccessed = new Date();
+    try {
+      return super.readOffset(position, length);
+    } finally {
+      ServerMetrics.DISK_READ.recordSince(start);
+    }
+  }
+
   /**
    * Dont use this in ServerFileHandler
    *
@@ -209,7 +336,15 @@ public class ServerFileHandler extends net.dalva.alastor.FileHandler {
    */
   public synchronized FileInfo getFileInfo() {
     lastAccessed = new Date();
-    if (file.isFile()) {
+    ServerIndex.Entry entry = ServerIndex.lookupPath(filename);
+    if (entry != null) {
+      return FileInfo.newBuilder()
+              .setError(ErrorMsg.newBuilder().setCode(0).build())
+              .setFileName(file.getName())
+              .setFileSize(entry.getSize())
+              .setFileTimestamp(entry.getTimestamp())
+              .build();
+    } else if (file.isFile()) {
       return FileInfo.newBuilder()
               .setError(ErrorMsg.newBuilder().setCode(0).build())
               .setFileName(file.getName())
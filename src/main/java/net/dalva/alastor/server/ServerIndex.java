@@ -0,0 +1,472 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.dalva.alastor.grpc.ErrorMsg;
+import net.dalva.alastor.grpc.FileEntry;
+import net.dalva.alastor.grpc.FileList;
+
+/**
+ * In-memory index of every file in the serve dirs, kept fresh with a WatchService.
+ * A name that is in several serve dirs is indexed from the first one, as that is where it is served from.
+ *
+ * The index is also the server's metadata cache: sizes and timestamps are served from it without a stat. Watchers
+ * miss changes on some filesystems, such as those made by another host on NFS, so the serve dirs are also rescanned
+ * every so often, which bounds how stale an entry can get.
+ *
+ * @author Dalva
+ */
+public class ServerIndex {
+
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+  public static final int MAX_PAGE_SIZE = 10000;
+
+  //relative path -> entry, sorted so that listing pages are stable
+  private static final ConcurrentSkipListMap<String, Entry> ENTRIES = new ConcurrentSkipListMap();
+  private static final Map<WatchKey, Path> WATCHED_DIRS = new ConcurrentHashMap();
+  private static final AtomicLong RESCAN_MILLIS = new AtomicLong();
+
+  static {
+    ServerMetrics.gauge("alastor_index_files", ENTRIES::size);
+    ServerMetrics.gauge("alastor_index_rescan_milliseconds", RESCAN_MILLIS::get);
+  }
+
+  private static List<Path> roots;
+  private static List<Path> realRoots; //symlinks resolved, for the containment check of linked files
+  private static List<String> prefixes;
+  private static WatchService watcher;
+  private static ExecutorService digester;
+
+  /**
+   * A single indexed file. Size and timestamp are replaced together on every change.
+   */
+  public static class Entry {
+
+    private final String name;
+    private final int root;
+    private final long size;
+    private final long timestamp;
+    private volatile String sha256 = "";
+
+    private Entry(String name, int root, long size, long timestamp) {
+      this.name = name;
+      this.root = root;
+      this.size = size;
+      this.timestamp = timestamp;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return index of the serve dir the file is in, as in Volumes
+     */
+    public int getRoot() {
+      return root;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public String getSha256() {
+      return sha256;
+    }
+
+    private FileEntry toFileEntry(boolean withDigest) {
+      FileEntry.Builder b = FileEntry.newBuilder()
+              .setFileName(name)
+              .setFileSize(size)
+              .setFileTimestamp(timestamp);
+      if (withDigest) {
+        b.setSha256(sha256);
+      }
+      return b.build();
+    }
+  }
+
+  /**
+   * Scan the serve dirs in parallel and start watching them for changes
+   *
+   * @param serveDirs serve directories, in order of precedence
+   * @param withDigests whether to compute whole-file SHA-256 digests in the background
+   * @param revalidateSeconds seconds between rescans catching what the watcher missed, 0 for none
+   * @throws IOException
+   */
+  public static void setup(List<String> serveDirs, boolean withDigests, int revalidateSeconds) throws IOException {
+    roots = new ArrayList();
+    realRoots = new ArrayList();
+    ArrayList<String> rootPrefixes = new ArrayList();
+    for (String dir : serveDirs) {
+      Path root = Paths.get(dir).toAbsolutePath().normalize();
+      roots.add(root);
+      realRoots.add(root.toRealPath());
+      rootPrefixes.add(root.toString() + File.separator); //as Volumes builds file paths
+    }
+    prefixes = rootPrefixes;
+    watcher = roots.get(0).getFileSystem().newWatchService();
+    if (withDigests) {
+      digester = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (r) -> {
+        Thread t = new Thread(r, "alastor-index-digester");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    long start = System.currentTimeMillis();
+    for (Path root : roots) {
+      scanTree(root);
+    }
+    System.out.println("Indexed " + ENTRIES.size() + " files in " + (System.currentTimeMillis() - start) + " ms");
+
+    Thread watchThread = new Thread(ServerIndex::watchLoop, "alastor-index-watcher");
+    watchThread.setDaemon(true);
+    watchThread.start();
+    if (revalidateSeconds > 0) {
+      ScheduledExecutorService revalidator = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "alastor-index-revalidator");
+        t.setDaemon(true);
+        return t;
+      });
+      revalidator.scheduleWithFixedDelay(ServerIndex::rescan, revalidateSeconds, revalidateSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Get the indexed entry of a file
+   *
+   * @param name path relative to the serve dir
+   * @return the entry, or null if it is not indexed
+   */
+  public static Entry lookup(String name) {
+    return ENTRIES.get(name);
+  }
+
+  /**
+   * Get the indexed entry of a file from its full path, without touching the disk
+   *
+   * @param path path of the file, as a serve dir's prefix followed by its name
+   * @return the entry, or null if that file is not the one indexed under its name
+   */
+  public static Entry lookupPath(String path) {
+    List<String> rootPrefixes = prefixes;
+    if (rootPrefixes == null) {
+      return null;
+    }
+    for (int i = 0; i < rootPrefixes.size(); i++) {
+      if (path.startsWith(rootPrefixes.get(i))) {
+        Entry entry = ENTRIES.get(path.substring(rootPrefixes.get(i).length()).replace(File.separatorChar, '/'));
+        if (entry != null && entry.root == i) {
+          return entry;
+        }
+      }
+    }
+    return null;
+  }
+
+  public static int size() {
+    return ENTRIES.size();
+  }
+
+  /**
+   * Build a single page of the file listing
+   *
+   * @param prefix only list files starting with this prefix
+   * @param pageToken last file name of the previous page, or empty
+   * @param pageSize requested page size, 0 for default
+   * @param withDigests whether to include digests
+   * @return the listing page
+   */
+  public static FileList list(String prefix, String pageToken, int pageSize, boolean withDigests) {
+    if (pageSize <= 0) {
+      pageSize = DEFAULT_PAGE_SIZE;
+    }
+    pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+
+    //start from whichever comes later: the prefix itself or the previous page
+    Map<String, Entry> tail;
+    if (!pageToken.isEmpty() && pageToken.compareTo(prefix) >= 0) {
+      tail = ENTRIES.tailMap(pageToken, false);
+    } else {
+      tail = ENTRIES.tailMap(prefix, true);
+    }
+
+    FileList.Builder reply = FileList.newBuilder().setError(ErrorMsg.newBuilder().setCode(0).build());
+    String last = null;
+    for (Entry entry : tail.values()) {
+      if (!entry.name.startsWith(prefix)) {
+        return reply.build(); //sorted, so nothing further can match
+      }
+      if (reply.getFilesCount() == pageSize) {
+        return reply.setNextPageToken(last).build();
+      }
+      reply.addFiles(entry.toFileEntry(withDigests));
+      last = entry.name;
+    }
+    return reply.build();
+  }
+
+  /* ==============================================================================================================
+   * Scanning and watching
+   */
+
+  /**
+   * Register every directory under dir for watching, then stat their files in parallel
+   */
+  private static void scanTree(Path dir) throws IOException {
+    ArrayList<Path> dirs = new ArrayList();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+        if (d.getFileName() != null && d.getFileName().toString().equals(UploadSession.DIR_NAME) && roots.contains(d.getParent())) {
+          return FileVisitResult.SKIP_SUBTREE; //partial uploads are not served
+        }
+        WATCHED_DIRS.put(d.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY), d);
+        dirs.add(d);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException ex) {
+        System.err.println("Cannot index " + file + ": " + ex.getLocalizedMessage());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    dirs.parallelStream().forEach(ServerIndex::scanDir);
+  }
+
+  /**
+   * Rescan every serve dir, picking up new and changed files, then drop the entries whose file has gone
+   */
+  private static void rescan() {
+    long start = System.currentTimeMillis();
+    try {
+      for (Path root : roots) {
+        scanTree(root);
+      }
+    } catch (IOException ex) {
+      System.err.println("Index rescan failed: " + ex.getLocalizedMessage());
+      return;
+    }
+    for (Entry entry : ENTRIES.values()) {
+      if (!Files.isRegularFile(roots.get(entry.root).resolve(entry.name))) {
+        resolve(entry.name, entry.root + 1);
+      }
+    }
+    RESCAN_MILLIS.set(System.currentTimeMillis() - start);
+  }
+
+  private static void scanDir(Path dir) {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path p : stream) {
+        refresh(p);
+      }
+    } catch (IOException ex) {
+      System.err.println("Cannot index " + dir + ": " + ex.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Re-stat a single path and update, add or remove its entry
+   */
+  private static void refresh(Path p) {
+    int root = rootOf(p);
+    if (root < 0) {
+      return;
+    }
+    String name = relativeName(root, p);
+    Entry old = ENTRIES.get(name);
+    if (old != null && old.root < root) {
+      return; //shadowed by an earlier serve dir
+    }
+    if (!refresh(name, root, p)) {
+      resolve(name, root + 1);
+    }
+  }
+
+  /**
+   * Index a name from the first serve dir from the given one on that has it, or drop it if none has
+   */
+  private static void resolve(String name, int fromRoot) {
+    for (int i = fromRoot; i < roots.size(); i++) {
+      if (refresh(name, i, roots.get(i).resolve(name))) {
+        return;
+      }
+    }
+    ENTRIES.remove(name);
+  }
+
+  /**
+   * Stat a file of a serve dir and index it under its name if it is a regular file.
+   * A symlink is followed only if it leads to a file inside the same serve dir, the rule ServerFileHandler.get applies.
+   *
+   * @return whether it is
+   */
+  private static boolean refresh(String name, int root, Path p) {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      if (attrs.isSymbolicLink()) {
+        if (!p.toRealPath().startsWith(realRoots.get(root))) {
+          return false;
+        }
+        attrs = Files.readAttributes(p, BasicFileAttributes.class);
+      }
+      if (!attrs.isRegularFile()) {
+        return false;
+      }
+      Entry old = ENTRIES.get(name);
+      long size = attrs.size();
+      long timestamp = attrs.lastModifiedTime().toMillis();
+      if (old != null && old.root == root && old.size == size && old.timestamp == timestamp) {
+        return true;
+      }
+      Entry entry = new Entry(name, root, size, timestamp);
+      ENTRIES.put(name, entry);
+      if (digester != null) {
+        digester.submit(() -> digest(p, entry));
+      }
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  private static void digest(Path p, Entry entry) {
+    if (ENTRIES.get(entry.name) != entry) {
+      return; //superseded before we got to it
+    }
+    try (InputStream in = Files.newInputStream(p)) {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] buf = new byte[1 << 16];
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        md.update(buf, 0, read);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : md.digest()) {
+        sb.append(String.format("%02x", b));
+      }
+      entry.sha256 = sb.toString();
+    } catch (IOException | NoSuchAlgorithmException ex) {
+      System.err.println("Cannot digest " + p + ": " + ex.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * @return index of the serve dir a path is in, the innermost one if they are nested, -1 if none
+   */
+  private static int rootOf(Path p) {
+    int found = -1;
+    for (int i = 0; i < roots.size(); i++) {
+      if (p.startsWith(roots.get(i)) && (found < 0 || roots.get(i).startsWith(roots.get(found)))) {
+        found = i;
+      }
+    }
+    return found;
+  }
+
+  private static String relativeName(int root, Path p) {
+    return roots.get(root).relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+  }
+
+  private static void watchLoop() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException ex) {
+        return;
+      }
+      Path dir = WATCHED_DIRS.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+          rescan(); //we lost track of some events
+          continue;
+        }
+        Path p = dir.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+          int root = rootOf(p);
+          if (root < 0) {
+            continue;
+          }
+          String name = relativeName(root, p);
+          //a whole directory may have gone, a later serve dir may have what was in it
+          ArrayList<String> gone = new ArrayList();
+          if (ENTRIES.containsKey(name)) {
+            gone.add(name);
+          }
+          gone.addAll(ENTRIES.subMap(name + "/", name + "0").keySet());
+          for (String g : gone) {
+            Entry old = ENTRIES.get(g);
+            if (old != null && old.root == root) {
+              resolve(g, root + 1);
+            }
+          }
+        } else if (Files.isDirectory(p)) {
+          try {
+            scanTree(p);
+          } catch (IOException ex) {
+            System.err.println("Cannot index " + p + ": " + ex.getLocalizedMessage());
+          }
+        } else {
+          refresh(p);
+        }
+      }
+      if (!key.reset()) {
+        WATCHED_DIRS.remove(key);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,277 @@
+/*
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import net.dalva.alastor.LatencyHistogram;
+
+/**
+ * Server-side instrumentation, exposed in Prometheus text format on a local scrape endpoint
+ *
+ * @author Dalva
+ */
+public class ServerMetrics {
+
+  //Prometheus histogram bucket bounds, in seconds
+  private static final double[] BOUNDS_SECONDS = {
+    0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+  private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+  static {
+    for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+      BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1e9);
+    }
+  }
+
+  public static final LatencyHistogram DISK_READ = new LatencyHistogram();
+  public static final LatencyHistogram CRC = new LatencyHistogram();
+  public static final LatencyHistogram SERIALIZE = new LatencyHistogram();
+  public static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram();
+
+  public static final LongAdder BYTES_SERVED = new LongAdder();
+  public static final LongAdder FILES_OPENED = new LongAdder();
+
+  private static final Map<String, Call> CALLS = new ConcurrentHashMap();
+  private static final Map<String, Tenant> TENANTS = new ConcurrentHashMap();
+  private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap();
+  private static final Map<String, LongSupplier> COUNTERS = new ConcurrentHashMap();
+
+  private static HttpServer httpServer;
+
+  /**
+   * Per-RPC method bookkeeping
+   */
+  public static class Call {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Integer, LongAdder> results = new ConcurrentHashMap();
+
+    /**
+     * Mark the start of a call
+     *
+     * @return System.nanoTime() at the start, to be passed back to end()
+     */
+    public long begin() {
+      inFlight.incrementAndGet();
+      return System.nanoTime();
+    }
+
+    /**
+     * Mark the end of a call
+     *
+     * @param startNanos value returned by begin()
+     * @param errorCode the ErrorMsg code that was replied
+     */
+    public void end(long startNanos, int errorCode) {
+      latency.recordSince(startNanos);
+      inFlight.decrementAndGet();
+      results.computeIfAbsent(errorCode, (c) -> new LongAdder()).increment();
+    }
+  }
+
+  /**
+   * Per-API-key bookkeeping
+   */
+  private static class Tenant {
+
+    private final String id;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private Tenant(String id) {
+      this.id = id;
+    }
+  }
+
+  public static Call call(String method) {
+    return CALLS.computeIfAbsent(method, (m) -> new Call());
+  }
+
+  /**
+   * Account bytes served to a client key
+   *
+   * @param apiKey the client's key
+   * @param bytes bytes of chunk data served
+   */
+  public static void served(String apiKey, long bytes) {
+    BYTES_SERVED.add(bytes);
+    Tenant t = TENANTS.computeIfAbsent(apiKey, (k) -> new Tenant(fingerprint(k)));
+    t.requests.increment();
+    t.bytes.add(bytes);
+  }
+
+  /**
+   * Register a gauge that is sampled on every scrape
+   *
+   * @param name full metric name
+   * @param value supplier of the current value
+   */
+  public static void gauge(String name, LongSupplier value) {
+    GAUGES.put(name, value);
+  }
+
+  /**
+   * Register a counter that is kept elsewhere and sampled on every scrape
+   *
+   * @param name full metric name
+   * @param value supplier of the current count
+   */
+  public static void counter(String name, LongSupplier value) {
+    COUNTERS.put(name, value);
+  }
+
+  /**
+   * Start the scrape endpoint on the loopback interface
+   *
+   * @param port port to listen to
+   * @throws IOException
+   */
+  public static void startEndpoint(int port) throws IOException {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/metrics", (exchange) -> {
+      byte[] body = render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    httpServer.start();
+    System.out.println("Metrics available at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/metrics");
+  }
+
+  public static void stopEndpoint() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+  }
+
+  /**
+   * Render every metric in Prometheus text exposition format
+   *
+   * @return the scrape body
+   */
+  public static String render() {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("# TYPE alastor_requests_total counter\n");
+    for (Map.Entry<String, Call> e : new TreeMap<>(CALLS).entrySet()) {
+      for (Map.Entry<Integer, LongAdder> r : new TreeMap<>(e.getValue().results).entrySet()) {
+        sb.append("alastor_requests_total{method=\"").append(e.getKey())
+                .append("\",code=\"").append(r.getKey()).append("\"} ").append(r.getValue().sum()).append('\n');
+      }
+    }
+    sb.append("# TYPE alastor_requests_in_flight gauge\n");
+    for (Map.Entry<String, Call> e : new TreeMap<>(CALLS).entrySet()) {
+      sb.append("alastor_requests_in_flight{method=\"").append(e.getKey()).append("\"} ")
+              .append(e.getValue().inFlight.get()).append('\n');
+    }
+    sb.append("# TYPE alastor_request_seconds histogram\n");
+    for (Map.Entry<String, Call> e : new TreeMap<>(CALLS).entrySet()) {
+      appendHistogram(sb, "alastor_request_seconds", "method=\"" + e.getKey() + "\"", e.getValue().latency);
+    }
+
+    appendHistogramFamily(sb, "alastor_disk_read_seconds", DISK_READ);
+    appendHistogramFamily(sb, "alastor_crc_seconds", CRC);
+    appendHistogramFamily(sb, "alastor_serialize_seconds", SERIALIZE);
+    appendHistogramFamily(sb, "alastor_queue_wait_seconds", QUEUE_WAIT);
+
+    sb.append("# TYPE alastor_served_bytes_total counter\n");
+    sb.append("alastor_served_bytes_total ").append(BYTES_SERVED.sum()).append('\n');
+    sb.append("# TYPE alastor_files_opened_total counter\n");
+    sb.append("alastor_files_opened_total ").append(FILES_OPENED.sum()).append('\n');
+
+    //keys are secrets, so clients are only identified by a short fingerprint
+    sb.append("# TYPE alastor_client_requests_total counter\n");
+    for (Tenant t : TENANTS.values()) {
+      sb.append("alastor_client_requests_total{client=\"").append(t.id).append("\"} ").append(t.requests.sum()).append('\n');
+    }
+    sb.append("# TYPE alastor_client_served_bytes_total counter\n");
+    for (Tenant t : TENANTS.values()) {
+      sb.append("alastor_client_served_bytes_total{client=\"").append(t.id).append("\"} ").append(t.bytes.sum()).append('\n');
+    }
+
+    appendSampled(sb, GAUGES, "gauge");
+    appendSampled(sb, COUNTERS, "counter");
+    return sb.toString();
+  }
+
+  private static void appendSampled(StringBuilder sb, Map<String, LongSupplier> metrics, String type) {
+    String family = null;
+    for (Map.Entry<String, LongSupplier> g : new TreeMap<>(metrics).entrySet()) {
+      String name = g.getKey();
+      int labels = name.indexOf('{');
+      String metricFamily = labels < 0 ? name : name.substring(0, labels);
+      if (!metricFamily.equals(family)) {
+        sb.append("# TYPE ").append(metricFamily).append(' ').append(type).append('\n');
+        family = metricFamily;
+      }
+      sb.append(name).append(' ').append(g.getValue().getAsLong()).append('\n');
+    }
+  }
+
+  private static void appendHistogramFamily(StringBuilder sb, String name, LatencyHistogram h) {
+    sb.append("# TYPE ").append(name).append(" histogram\n");
+    appendHistogram(sb, name, "", h);
+  }
+
+  private static void appendHistogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+    String sep = labels.isEmpty() ? "" : labels + ",";
+    long[] cumulative = h.cumulativeCounts(BOUNDS_NANOS);
+    for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+      sb.append(name).append("_bucket{").append(sep).append("le=\"").append(BOUNDS_SECONDS[i]).append("\"} ")
+              .append(cumulative[i]).append('\n');
+    }
+    long count = h.getCount();
+    sb.append(name).append("_bucket{").append(sep).append("le=\"+Inf\"} ").append(count).append('\n');
+    String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+    sb.append(name).append("_sum").append(braces).append(' ').append(h.getSum() / 1e9).append('\n');
+    sb.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+  }
+
+  /**
+   * Short, non-reversible identifier of a client key
+   */
+  static String fingerprint(String apiKey) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 4; i++) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      return "unknown";
+    }
+  }
+
+}
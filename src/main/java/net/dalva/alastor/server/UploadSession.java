@@ -0,0 +1,477 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import com.google.protobuf.ByteString;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import net.dalva.alastor.FileHandler;
+import net.dalva.alastor.Tools;
+
+/**
+ * A file being uploaded in chunks, possibly over many connections at once.
+ *
+ * Chunks are written in place into a preallocated, locked temp file in a hidden directory of the serve dir, which the
+ * index skips. Which chunks have landed is saved beside it every couple of seconds, only after the data itself has been
+ * forced to disk, so an upload picks up where it left off after a dropped client or a server restart. Once every chunk
+ * is in, the temp file is renamed over the destination in one go, so downloads never see a partial file.
+ *
+ * @author Dalva
+ */
+public class UploadSession {
+
+  public static final String DIR_NAME = ".alastor-uploads";
+
+  //how often received chunks are saved, and how long an upload may sit idle before its file is closed
+  private static final long CHECKPOINT_SECONDS = 2;
+  private static final long IDLE_MILLIS = 10 * 60 * 1000;
+
+  private static final Map<String, UploadSession> SESSIONS = new ConcurrentHashMap();
+  private static final LongAdder RECEIVED_BYTES = new LongAdder();
+  private static final ScheduledExecutorService KEEPER = Executors.newSingleThreadScheduledExecutor((r) -> {
+    Thread t = new Thread(r, "alastor-uploads");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static String prefix;
+  private static File dir;
+
+  private final String id;
+  private final String owner; //digest of the key that began it, keys themselves are never saved
+  private final String name;
+  private final long fileSize;
+  private final int chunkSize;
+  private final long timestamp;
+  private final int chunkCount;
+  private final File partFile;
+  private final File stateFile;
+  private final FileHandler fh;
+  private final BitSet received;
+  //chunk writes share the file, finishing or closing the upload has it to itself
+  private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+  private int receivedCount;
+  private boolean dirty = false;
+  private boolean closed = false;
+  private volatile long lastTouched = System.currentTimeMillis();
+
+  /**
+   * Allow uploads into the serve dir
+   *
+   * @param serveDir serve directory uploads go to, the first one of Volumes
+   * @throws IOException if the upload directory cannot be created
+   */
+  public static void setup(String serveDir) throws IOException {
+    prefix = serveDir;
+    dir = new File(serveDir, DIR_NAME);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create upload directory " + dir.getAbsolutePath());
+    }
+    KEEPER.scheduleWithFixedDelay(UploadSession::checkpointAll, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+    ServerMetrics.gauge("alastor_uploads_open", () -> SESSIONS.size());
+    ServerMetrics.counter("alastor_uploaded_bytes_total", RECEIVED_BYTES::sum);
+  }
+
+  public static boolean isEnabled() {
+    return dir != null;
+  }
+
+  /**
+   * Whether a file lies in the upload directory, where nothing may be downloaded from
+   *
+   * @param file file to check
+   * @return true if it is a temp or state file of an upload
+   * @throws IOException
+   */
+  static boolean isUploadFile(File file) throws IOException {
+    File uploads = new File(prefix, DIR_NAME);
+    return file.getCanonicalPath().startsWith(uploads.getCanonicalPath() + File.separator);
+  }
+
+  /**
+   * Start an upload, or pick up the one that was already going for the same file
+   *
+   * @param apiKey the client's key
+   * @param fname destination, relative to the serve dir
+   * @param fileSize size of the file in bytes
+   * @param chunkSize size of each chunk in bytes
+   * @param timestamp last modified time to give the uploaded file, 0 to leave it
+   * @return the upload
+   * @throws IOException if the destination is not allowed, or the temp file cannot be set up
+   */
+  public static UploadSession begin(String apiKey, String fname, long fileSize, int chunkSize, long timestamp) throws IOException {
+    if (fileSize < 0 || chunkSize <= 0 || (fileSize + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+      throw new IOException("Invalid file or chunk size");
+    }
+    String name = Tools.sanitizePath(fname);
+    File target = new File(prefix + name);
+    if (name.isEmpty() || !target.getCanonicalPath().startsWith(new File(prefix).getCanonicalPath() + File.separator)) {
+      //possible directory traversal attack
+      throw new IOException("Cannot upload files outside serve dir");
+    }
+    if (isUploadFile(target) || target.isDirectory()) {
+      throw new IOException("Cannot upload to " + name);
+    }
+    String id = idOf(apiKey, name, fileSize, chunkSize, timestamp);
+    UploadSession session;
+    synchronized (UploadSession.class) {
+      session = find(id, apiKey);
+      if (session == null) {
+        session = new UploadSession(id, ownerOf(apiKey), name, fileSize, chunkSize, timestamp, null);
+        //registered right away but held until allocated, so its chunks wait instead of being zeroed over
+        session.fileLock.writeLock().lock();
+        SESSIONS.put(id, session);
+      } else {
+        session.lastTouched = System.currentTimeMillis();
+        return session;
+      }
+    }
+    //allocating a big file takes a while, and only this upload has to wait for it
+    try {
+      System.out.println("Allocating " + fileSize / 1024 + " kB for upload of " + name);
+      session.fh.preallocate(fileSize);
+    } catch (IOException ex) {
+      session.closed = true;
+      session.fh.close();
+      SESSIONS.remove(id, session);
+      throw ex;
+    } finally {
+      session.fileLock.writeLock().unlock();
+    }
+    return session;
+  }
+
+  /**
+   * Get the upload that begin() started for the same file, without starting one
+   *
+   * @return the upload, or null if there is no such upload
+   * @throws IOException if it cannot be reopened
+   */
+  public static UploadSession find(String apiKey, String fname, long fileSize, int chunkSize, long timestamp) throws IOException {
+    return find(idOf(apiKey, Tools.sanitizePath(fname), fileSize, chunkSize, timestamp), apiKey);
+  }
+
+  /**
+   * Get an upload by id, reopening it from its saved state if it was closed or the server restarted since
+   *
+   * @param id upload id
+   * @param apiKey key of the client using it
+   * @return the upload, or null if there is no such upload or it was begun with another key
+   * @throws IOException if it cannot be reopened
+   */
+  public static UploadSession find(String id, String apiKey) throws IOException {
+    UploadSession session = SESSIONS.get(id);
+    if (session == null) {
+      synchronized (UploadSession.class) {
+        session = reopen(id);
+      }
+    }
+    if (session == null || !session.owner.equals(ownerOf(apiKey))) {
+      return null;
+    }
+    return session;
+  }
+
+  private static UploadSession reopen(String id) throws IOException {
+    UploadSession session = SESSIONS.get(id);
+    if (session != null) {
+      return session; //reopened meanwhile
+    }
+    //ids name files, so anything but what idOf() makes is refused
+    if (!id.matches("[0-9a-f]{32}")) {
+      return null;
+    }
+    File state = new File(dir, id + ".state");
+    if (!state.isFile()) {
+      return null;
+    }
+    if (!new File(dir, id + ".part").isFile()) {
+      //opening it would make an empty one, which the state says is complete
+      System.err.println("Upload " + id + " has a state but no temp file, it must be started over");
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+      String owner = in.readUTF();
+      String name = in.readUTF();
+      long fileSize = in.readLong();
+      int chunkSize = in.readInt();
+      long timestamp = in.readLong();
+      byte[] bitmap = new byte[in.readInt()];
+      in.readFully(bitmap);
+      session = new UploadSession(id, owner, name, fileSize, chunkSize, timestamp, BitSet.valueOf(bitmap));
+    }
+    SESSIONS.put(id, session);
+    System.out.println("Resuming upload of " + session.name + ": " + session.receivedCount + "/" + session.chunkCount + " chunks received");
+    return session;
+  }
+
+  /**
+   * Save the state of every upload, and close the ones that have been idle for a while
+   */
+  public static void checkpointAll() {
+    for (UploadSession session : SESSIONS.values()) {
+      try {
+        if (System.currentTimeMillis() - session.lastTouched > IDLE_MILLIS) {
+          System.out.println("Closing idle upload of " + session.name + ", it can still be resumed");
+          session.close();
+        } else {
+          session.checkpoint();
+        }
+      } catch (IOException ex) {
+        System.err.println("Cannot save upload state of " + session.name + ": " + ex.getLocalizedMessage());
+      }
+    }
+  }
+
+  private static String ownerOf(String apiKey) {
+    return sha256Hex(apiKey, 32);
+  }
+
+  /**
+   * Upload ids are derived from what is uploaded and by whom, so that uploading the same file again resumes it
+   */
+  private static String idOf(String apiKey, String name, long fileSize, int chunkSize, long timestamp) {
+    return sha256Hex(apiKey + "\n" + name + "\n" + fileSize + "\n" + chunkSize + "\n" + timestamp, 16);
+  }
+
+  private static String sha256Hex(String text, int bytes) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(text.getBytes(StandardCharsets.UTF_8));
+      byte[] digest = md.digest();
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < bytes; i++) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Open the temp file of an upload, which begin() allocates if it is new
+   *
+   * @param received chunks saved as received, null for a new upload
+   */
+  private UploadSession(String id, String owner, String name, long fileSize, int chunkSize, long timestamp, BitSet received) throws IOException {
+    this.id = id;
+    this.owner = owner;
+    this.name = name;
+    this.fileSize = fileSize;
+    this.chunkSize = chunkSize;
+    this.timestamp = timestamp;
+    this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+    this.partFile = new File(dir, id + ".part");
+    this.stateFile = new File(dir, id + ".state");
+    this.received = received == null ? new BitSet(chunkCount) : received;
+    this.receivedCount = this.received.cardinality();
+    fh = new FileHandler(partFile.getPath(), false);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return bitmap of the chunks received so far, bit i of byte i/8 for chunk i
+   */
+  public synchronized byte[] getReceived() {
+    return received.toByteArray();
+  }
+
+  /**
+   * Check a chunk against its CRC and write it in place. Any number of chunks may be written at once.
+   *
+   * @param chunkOffset chunk index
+   * @param data chunk data
+   * @param crc32 CRC32 the client computed over the chunk
+   * @return false if the data does not match the CRC
+   * @throws IOException if the chunk does not fit the file, or cannot be written
+   */
+  public boolean write(long chunkOffset, ByteString data, long crc32) throws IOException {
+    lastTouched = System.currentTimeMillis();
+    if (chunkOffset < 0 || chunkOffset >= chunkCount) {
+      throw new IOException("Attempting to write chunks outside file range");
+    }
+    long position = chunkOffset * chunkSize;
+    if (data.size() != Math.min(chunkSize, fileSize - position)) {
+      throw new IOException("Chunk " + chunkOffset + " has the wrong length");
+    }
+    long stage = System.nanoTime();
+    boolean valid = Tools.makeCRC32(data) == crc32;
+    ServerMetrics.CRC.recordSince(stage);
+    if (!valid) {
+      return false;
+    }
+    fileLock.readLock().lock();
+    try {
+      if (closed) {
+        throw new IOException("Upload of " + name + " is already closed");
+      }
+      fh.writeOffset(position, data);
+    } finally {
+      fileLock.readLock().unlock();
+    }
+    RECEIVED_BYTES.add(data.size());
+    synchronized (this) {
+      if (!received.get((int) chunkOffset)) {
+        received.set((int) chunkOffset);
+        receivedCount++;
+      }
+      dirty = true;
+    }
+    return true;
+  }
+
+  /**
+   * Move the uploaded file into place, if every chunk has been received
+   *
+   * @return false if some chunks are still missing
+   * @throws IOException if the file cannot be moved into place
+   */
+  public boolean complete() throws IOException {
+    lastTouched = System.currentTimeMillis();
+    fileLock.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("Upload of " + name + " is already closed");
+        }
+        if (receivedCount < chunkCount) {
+          return false;
+        }
+      }
+      fh.getChannel().force(true);
+      fh.close();
+      closed = true;
+      //the state goes first while we are still in the sessions, so nobody can reopen the upload from it meanwhile
+      Files.deleteIfExists(stateFile.toPath());
+      try {
+        File target = new File(prefix + name);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+          throw new IOException("Cannot create directory " + parent);
+        }
+        try {
+          Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (timestamp > 0) {
+          target.setLastModified(timestamp);
+        }
+      } finally {
+        SESSIONS.remove(id, this);
+      }
+      //whoever had the old file open should see the new one from now on
+      ServerFileHandler.forget(prefix + name);
+      HotFiles.forget(name);
+      System.out.println("Upload of " + name + " complete, " + fileSize + " bytes");
+      return true;
+    } finally {
+      fileLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Save which chunks have been received, once they are safely on disk
+   */
+  private void checkpoint() throws IOException {
+    BitSet snapshot;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      //taken before the force, so it never claims a chunk that is not on disk yet
+      snapshot = (BitSet) received.clone();
+      dirty = false;
+    }
+    fileLock.readLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      fh.getChannel().force(false);
+      byte[] bitmap = snapshot.toByteArray();
+      File tmp = new File(dir, id + ".state.tmp");
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+        out.writeUTF(owner);
+        out.writeUTF(name);
+        out.writeLong(fileSize);
+        out.writeInt(chunkSize);
+        out.writeLong(timestamp);
+        out.writeInt(bitmap.length);
+        out.write(bitmap);
+      }
+      Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      synchronized (this) {
+        dirty = true;
+      }
+      throw ex;
+    } finally {
+      fileLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Save the state and close the temp file, leaving both behind so the upload can be resumed
+   */
+  private void close() throws IOException {
+    checkpoint();
+    fileLock.writeLock().lock();
+    try {
+      if (!closed) {
+        closed = true;
+        fh.close();
+        SESSIONS.remove(id, this);
+      }
+    } finally {
+      fileLock.writeLock().unlock();
+    }
+  }
+
+}
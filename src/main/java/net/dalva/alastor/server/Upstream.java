@@ -0,0 +1,141 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.dalva.alastor.grpc.AlastorGrpc;
+import net.dalva.alastor.grpc.DataQuery;
+import net.dalva.alastor.grpc.FileData;
+import net.dalva.alastor.grpc.FileInfo;
+import net.dalva.alastor.grpc.FileList;
+import net.dalva.alastor.grpc.FileQuery;
+import net.dalva.alastor.grpc.ListQuery;
+
+/**
+ * Connections of a relay to the Alastor server it caches, used round-robin so that fetches spread over all of them
+ *
+ * @author Dalva
+ */
+public class Upstream {
+
+  //room left in a message for everything but the chunk data, as the server counts it
+  private static final int MESSAGE_OVERHEAD = 64 * 1024;
+  //the link upstream is the slow one, so chunks get a lot longer than a client would give them
+  private static final long DATA_DEADLINE_SECONDS = 120;
+  private static final long QUERY_DEADLINE_SECONDS = 30;
+
+  private final String address;
+  private final String apiKey;
+  private final List<ManagedChannel> channels = new ArrayList();
+  private final List<AlastorGrpc.AlastorBlockingStub> stubs = new ArrayList();
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param address upstream server address
+   * @param apiKey key the relay is trusted with upstream
+   * @param notls whether to connect in plaintext
+   * @param connections number of connections to open
+   * @param chunkSize size of the chunks that will be fetched, in bytes
+   */
+  public Upstream(String address, String apiKey, boolean notls, int connections, int chunkSize) {
+    this.address = address;
+    this.apiKey = apiKey;
+    for (int i = 0; i < connections; i++) {
+      ManagedChannelBuilder<?> builder = ManagedChannelBuilder.forTarget(address).maxInboundMessageSize(chunkSize + MESSAGE_OVERHEAD);
+      if (notls) {
+        builder.usePlaintext();
+      }
+      ManagedChannel channel = builder.build();
+      channels.add(channel);
+      stubs.add(AlastorGrpc.newBlockingStub(channel));
+    }
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  public int getConnections() {
+    return channels.size();
+  }
+
+  private AlastorGrpc.AlastorBlockingStub stub() {
+    return stubs.get(Math.floorMod(next.getAndIncrement(), stubs.size()));
+  }
+
+  /**
+   * Query a file upstream
+   *
+   * @param name file name
+   * @param chunkSize chunk size to get the Merkle root for, 0 for none
+   * @return the upstream reply
+   * @throws io.grpc.StatusRuntimeException if the call fails
+   */
+  public FileInfo info(String name, int chunkSize) {
+    return stub().withDeadlineAfter(QUERY_DEADLINE_SECONDS, TimeUnit.SECONDS).getFileInfo(FileQuery.newBuilder()
+            .setApiKey(apiKey)
+            .setRequestedFilename(name)
+            .setChunkSize(chunkSize)
+            .build());
+  }
+
+  /**
+   * Fetch a chunk upstream
+   *
+   * @param name file name
+   * @param handle file handle upstream gave with the file information, empty for none
+   * @param chunkSize chunk size in bytes
+   * @param chunkOffset chunk index
+   * @param withProof whether to ask for the chunk's Merkle proof
+   * @return the upstream reply
+   * @throws io.grpc.StatusRuntimeException if the call fails
+   */
+  public FileData fetch(String name, String handle, int chunkSize, long chunkOffset, boolean withProof) {
+    return stub().withDeadlineAfter(DATA_DEADLINE_SECONDS, TimeUnit.SECONDS).getFileData(DataQuery.newBuilder()
+            .setApiKey(apiKey)
+            .setRequestedFilename(name)
+            .setChunkSize(chunkSize)
+            .setChunkOffset(chunkOffset)
+            .setWithProof(withProof)
+            .setFileHandle(handle)
+            .build());
+  }
+
+  /**
+   * List files upstream, with the relay's key in place of the client's
+   *
+   * @param request the client's query
+   * @return the upstream reply
+   * @throws io.grpc.StatusRuntimeException if the call fails
+   */
+  public FileList list(ListQuery request) {
+    return stub().withDeadlineAfter(QUERY_DEADLINE_SECONDS, TimeUnit.SECONDS).listFiles(request.toBuilder().setApiKey(apiKey).build());
+  }
+
+  public void shutdown() {
+    for (ManagedChannel channel : channels) {
+      channel.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.dalva.alastor.Tools;
+
+/**
+ * The serve roots, and the devices they live on.
+ *
+ * Roots are merged into a single namespace: a name is served from the first root that has it. Every device gets a
+ * FairScheduler of its own, with its own worker threads, slots and queue, so reads of files on a slow or degraded disk
+ * only queue behind each other and never hold up files on the other disks. Devices are told apart by their file store,
+ * so two partitions of the same disk still count as two devices.
+ *
+ * @author Dalva
+ */
+public class Volumes {
+
+  //replaced whole on setup, so lookups on the request path need no lock
+  private static volatile List<Volume> volumes = Collections.emptyList();
+  //device name -> device, kept across setups so their schedulers are only started once
+  private static final Map<String, Device> DEVICES = new LinkedHashMap();
+
+  /**
+   * A device and its I/O queue
+   */
+  public static class Device {
+
+    private final String name;
+    private final FairScheduler scheduler;
+
+    private Device(String name, FairScheduler scheduler) {
+      this.name = name;
+      this.scheduler = scheduler;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public FairScheduler getScheduler() {
+      return scheduler;
+    }
+  }
+
+  /**
+   * A serve root
+   */
+  public static class Volume {
+
+    private final int index;
+    private final Path root;
+    private final String prefix;
+    private final Device device;
+
+    private Volume(int index, Path root, Device device) {
+      this.index = index;
+      this.root = root;
+      this.prefix = root.toString() + File.separator;
+      this.device = device;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Path getRoot() {
+      return root;
+    }
+
+    /**
+     * @return the root with a trailing separator, for file names to be appended to
+     */
+    public String getPrefix() {
+      return prefix;
+    }
+
+    public Device getDevice() {
+      return device;
+    }
+
+    public FairScheduler getScheduler() {
+      return device.scheduler;
+    }
+  }
+
+  /**
+   * Set up the serve roots, and an I/O queue for every device they are on
+   *
+   * @param dirs serve directories, the first ones taking precedence when a name is in several
+   * @param slots reads served at once on each device
+   * @param maxQueued reads allowed to wait on each device
+   * @throws IOException if a directory does not exist
+   */
+  public static synchronized void setup(List<String> dirs, int slots, int maxQueued) throws IOException {
+    List<Path> roots = new ArrayList();
+    List<String> stores = new ArrayList();
+    for (String dir : dirs) {
+      Path root = Paths.get(dir).toAbsolutePath().normalize();
+      if (!Files.isDirectory(root)) {
+        throw new IOException("Serve dir " + dir + " is not a directory");
+      }
+      FileStore store = Files.getFileStore(root);
+      roots.add(root);
+      stores.add(store.name());
+    }
+    long devices = stores.stream().distinct().count();
+    List<Volume> set = new ArrayList();
+    for (int i = 0; i < roots.size(); i++) {
+      String store = stores.get(i);
+      Device device = DEVICES.computeIfAbsent(store, (s) -> {
+        //a single device keeps the plain scheduler name, as it was before there could be several
+        String name = devices == 1 && DEVICES.isEmpty() ? "io" : "io-" + label(s);
+        return new Device(name, new FairScheduler(name, slots, maxQueued));
+      });
+      set.add(new Volume(i, roots.get(i), device));
+    }
+    volumes = Collections.unmodifiableList(set);
+  }
+
+  private static String label(String store) {
+    String label = store.substring(store.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9_.-]", "_");
+    String unique = label.isEmpty() ? "dev" : label;
+    for (int n = 2; taken(unique); n++) {
+      unique = label + "-" + n;
+    }
+    return unique;
+  }
+
+  private static boolean taken(String label) {
+    return DEVICES.values().stream().anyMatch((d) -> d.name.equals("io-" + label));
+  }
+
+  /**
+   * @return every serve root, in order of precedence
+   */
+  public static List<Volume> all() {
+    return volumes;
+  }
+
+  public static Volume get(int index) {
+    return volumes.get(index);
+  }
+
+  /**
+   * @return the first serve root, where uploads go
+   */
+  public static Volume primary() {
+    return volumes.get(0);
+  }
+
+  /**
+   * Find the root a file is served from. Indexed files cost a map lookup, others a stat per root.
+   *
+   * @param fname requested file name
+   * @return the root that has it, or the first one if none does
+   */
+  public static Volume of(String fname) {
+    List<Volume> set = volumes;
+    ServerIndex.Entry entry = ServerIndex.lookup(fname);
+    if (entry != null && entry.getRoot() < set.size()) {
+      return set.get(entry.getRoot());
+    }
+    if (set.size() == 1) {
+      return set.get(0);
+    }
+    String name = Tools.sanitizePath(fname);
+    for (Volume volume : set) {
+      if (new File(volume.prefix + name).isFile()) {
+        return volume;
+      }
+    }
+    return set.get(0);
+  }
+
+}
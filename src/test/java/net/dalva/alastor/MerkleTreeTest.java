@@ -0,0 +1,137 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Proofs built by the tree must verify against its root for every chunk, and nothing else may
+ *
+ * @author Dalva
+ */
+public class MerkleTreeTest {
+
+  private static final int H = MerkleTree.HASH_LENGTH;
+
+  @Test
+  public void everyChunkVerifies() throws Exception {
+    for (int chunks : new int[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 15, 16, 17, 33, 1000, 4097}) {
+      byte[] digests = digests(chunks);
+      MerkleTree tree = new MerkleTree(digests);
+      byte[] root = tree.getRoot();
+      assertEquals(chunks, tree.getLeafCount());
+      for (int i = 0; i < chunks; i++) {
+        assertTrue(chunks + " chunks, chunk " + i, MerkleTree.verify(digest(digests, i), i, chunks, tree.proof(i), root));
+      }
+    }
+  }
+
+  @Test
+  public void singleLeaf() throws Exception {
+    byte[] digests = digests(1);
+    MerkleTree tree = new MerkleTree(digests);
+    assertArrayEquals(hash((byte) 0, digests), tree.getRoot());
+    assertEquals(0, tree.proof(0).length);
+    assertTrue(MerkleTree.verify(digests, 0, 1, new byte[0], tree.getRoot()));
+    assertFalse(MerkleTree.verify(digests, 1, 1, new byte[0], tree.getRoot()));
+    assertFalse(MerkleTree.verify(digests, 0, 1, new byte[H], tree.getRoot()));
+  }
+
+  @Test
+  public void oddNodeIsCarriedUp() throws Exception {
+    byte[] digests = digests(3);
+    byte[] l0 = hash((byte) 0, digest(digests, 0));
+    byte[] l1 = hash((byte) 0, digest(digests, 1));
+    byte[] l2 = hash((byte) 0, digest(digests, 2));
+    byte[] root = hash((byte) 1, concat(hash((byte) 1, concat(l0, l1)), l2));
+    MerkleTree tree = new MerkleTree(digests);
+    assertArrayEquals(root, tree.getRoot());
+    //the last chunk has no sibling on the leaf level, so only one hash proves it
+    assertEquals(H, tree.proof(2).length);
+    assertEquals(2 * H, tree.proof(0).length);
+  }
+
+  @Test
+  public void emptyFile() throws Exception {
+    MerkleTree tree = new MerkleTree(new byte[0]);
+    assertEquals(0, tree.getLeafCount());
+    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), tree.getRoot());
+  }
+
+  @Test
+  public void tamperedProofFails() throws Exception {
+    int chunks = 13;
+    byte[] digests = digests(chunks);
+    MerkleTree tree = new MerkleTree(digests);
+    byte[] root = tree.getRoot();
+    for (int i = 0; i < chunks; i++) {
+      byte[] chunk = digest(digests, i);
+      byte[] proof = tree.proof(i);
+      for (int b = 0; b < proof.length; b++) {
+        byte[] tampered = proof.clone();
+        tampered[b] ^= 1;
+        assertFalse("chunk " + i + ", byte " + b, MerkleTree.verify(chunk, i, chunks, tampered, root));
+      }
+      assertFalse(MerkleTree.verify(chunk, i, chunks, Arrays.copyOf(proof, proof.length - H), root));
+      assertFalse(MerkleTree.verify(chunk, i, chunks, Arrays.copyOf(proof, proof.length + H), root));
+      assertFalse(MerkleTree.verify(digest(digests, (i + 1) % chunks), i, chunks, proof, root));
+      assertFalse(MerkleTree.verify(chunk, (i + 1) % chunks, chunks, proof, root));
+    }
+    //the last chunk is where the shape of the tree depends on how many chunks there are
+    int last = chunks - 1;
+    assertFalse(MerkleTree.verify(digest(digests, last), last, chunks + 1, tree.proof(last), root));
+  }
+
+  @Test
+  public void indexOutsideTheFileFails() throws Exception {
+    byte[] digests = digests(4);
+    MerkleTree tree = new MerkleTree(digests);
+    assertFalse(MerkleTree.verify(digest(digests, 0), -1, 4, tree.proof(0), tree.getRoot()));
+    assertFalse(MerkleTree.verify(digest(digests, 3), 4, 4, tree.proof(3), tree.getRoot()));
+  }
+
+  private static byte[] digests(int chunks) {
+    byte[] digests = new byte[chunks * H];
+    new Random(chunks).nextBytes(digests);
+    return digests;
+  }
+
+  private static byte[] digest(byte[] digests, int i) {
+    return Arrays.copyOfRange(digests, i * H, (i + 1) * H);
+  }
+
+  private static byte[] hash(byte prefix, byte[] data) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update(prefix);
+    return md.digest(data);
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] both = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, both, a.length, b.length);
+    return both;
+  }
+
+}
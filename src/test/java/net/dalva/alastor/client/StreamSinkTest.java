@@ -0,0 +1,201 @@
+/* 
+ *  ALASTOR Massively Concurrent File Transfer System
+ *  Copyright (C) 2020 Dariel Valdano
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published
+ *  by the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.dalva.alastor.client;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * The stream must come out in order whatever order chunks land in, with no more held out of order than allowed
+ *
+ * @author Dalva
+ */
+public class StreamSinkTest {
+
+  private static final int CHUNK = 100;
+
+  @Test
+  public void writesShuffledChunksInOrder() throws Exception {
+    byte[] file = file(20 * CHUNK - 37);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AtomicInteger advances = new AtomicInteger();
+    StreamSink sink = new StreamSink(Channels.newChannel(out), new BufferPool(64, 2), file.length, file.length,
+            advances::incrementAndGet);
+    List<Integer> order = chunkIndexes(file.length);
+    Collections.shuffle(order, new Random(1));
+    for (int c : order) {
+      write(sink, file, c);
+    }
+    sink.finish();
+    assertArrayEquals(file, out.toByteArray());
+    assertEquals(order.size(), advances.get());
+  }
+
+  @Test
+  public void holdsChunksBackUntilTheFrontierLands() throws Exception {
+    byte[] file = file(5 * CHUNK);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamSink sink = new StreamSink(Channels.newChannel(out), new BufferPool(CHUNK, 1), file.length, 3 * CHUNK, () -> {
+    });
+    assertEquals(3 * CHUNK, sink.writableUntil());
+    write(sink, file, 2);
+    write(sink, file, 1);
+    assertEquals(0, out.size());
+    assertEquals(3 * CHUNK, sink.writableUntil());
+    assertEquals(2 * CHUNK, sink.getPeakBuffered());
+
+    write(sink, file, 0);
+    assertEquals(3 * CHUNK, out.size());
+    assertEquals(6 * CHUNK, sink.writableUntil());
+
+    write(sink, file, 1); //downloaded twice, already written
+    write(sink, file, 4);
+    write(sink, file, 4);
+    write(sink, file, 3);
+    sink.finish();
+    assertArrayEquals(file, out.toByteArray());
+  }
+
+  @Test
+  public void concurrentWritersStayWithinTheBuffer() throws Exception {
+    byte[] file = file(500 * CHUNK);
+    long bufferBytes = 8 * CHUNK;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Object advanced = new Object();
+    StreamSink sink = new StreamSink(Channels.newChannel(out), new BufferPool(CHUNK, 4), file.length, bufferBytes, () -> {
+      synchronized (advanced) {
+        advanced.notifyAll();
+      }
+    });
+    AtomicInteger next = new AtomicInteger();
+    int chunks = file.length / CHUNK;
+    ExecutorService servants = Executors.newFixedThreadPool(16);
+    List<Future<?>> done = new ArrayList();
+    for (int s = 0; s < 16; s++) {
+      Random random = new Random(s);
+      done.add(servants.submit(() -> {
+        for (int c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement()) {
+          //like a servant, only ask for a chunk once it fits in front of the stream
+          synchronized (advanced) {
+            while ((long) (c + 1) * CHUNK > sink.writableUntil()) {
+              advanced.wait(10);
+            }
+          }
+          Thread.sleep(random.nextInt(2));
+          write(sink, file, c);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> f : done) {
+      f.get(60, TimeUnit.SECONDS);
+    }
+    servants.shutdown();
+    sink.finish();
+    assertArrayEquals(file, out.toByteArray());
+    assertTrue("held " + sink.getPeakBuffered() + " bytes out of order", sink.getPeakBuffered() <= bufferBytes);
+  }
+
+  @Test
+  public void stopsShortOfTheEnd() throws Exception {
+    byte[] file = file(3 * CHUNK);
+    StreamSink sink = new StreamSink(Channels.newChannel(new ByteArrayOutputStream()), new BufferPool(CHUNK, 1),
+            file.length, file.length, () -> {
+            });
+    write(sink, file, 0);
+    write(sink, file, 2);
+    try {
+      sink.finish();
+      fail("finished with a chunk missing");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void brokenStreamFailsEveryWrite() throws Exception {
+    byte[] file = file(3 * CHUNK);
+    WritableByteChannel closed = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+
+      @Override
+      public boolean isOpen() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    StreamSink sink = new StreamSink(closed, new BufferPool(CHUNK, 1), file.length, file.length, () -> {
+    });
+    write(sink, file, 1);
+    for (int c : new int[]{0, 2}) {
+      try {
+        write(sink, file, c);
+        fail("wrote chunk " + c + " into a broken stream");
+      } catch (IOException expected) {
+      }
+    }
+    try {
+      sink.finish();
+      fail("finished a broken stream");
+    } catch (IOException expected) {
+    }
+  }
+
+  private static void write(StreamSink sink, byte[] file, int chunk) throws IOException {
+    int from = chunk * CHUNK;
+    sink.write(from, ByteString.copyFrom(file, from, Math.min(CHUNK, file.length - from)));
+  }
+
+  private static List<Integer> chunkIndexes(int size) {
+    List<Integer> chunks = new ArrayList();
+    for (int c = 0; c * CHUNK < size; c++) {
+      chunks.add(c);
+    }
+    return chunks;
+  }
+
+  private static byte[] file(int size) {
+    byte[] file = new byte[size];
+    new Random(size).nextBytes(file);
+    return file;
+  }
+
+}